@@ -0,0 +1,41 @@
+package bench;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocol.RFC1994Response;
+
+/**
+ * The CHAP response digest computed by both the client and the KDC.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChapDigestBenchmark {
+    private byte[] challenge;
+
+    @Setup
+    public void setup() {
+        challenge = new byte[32];
+        new SecureRandom().nextBytes(challenge);
+    }
+
+    @Benchmark
+    public String chapDigest() throws Exception {
+        return RFC1994Response.computeHash("password", challenge);
+    }
+}
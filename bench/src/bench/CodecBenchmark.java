@@ -0,0 +1,120 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.FrameCodec;
+import common.Ticket;
+import common.TicketIssuer;
+import common.TicketResponse;
+import common.service.ClientHello;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Serialize and deserialize cost of the largest protocol messages in each
+ * wire codec. Serialize covers toJSONType plus frame encoding; deserialize
+ * covers frame decoding plus the message's own deserialize.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({ "legacy", "json", "binary" })
+    public String codec;
+
+    private int codecId;
+    private Ticket ticket;
+    private TicketResponse ticketResponse;
+    private ClientHello clientHello;
+    private byte[] ticketPayload;
+    private byte[] ticketResponsePayload;
+    private byte[] clientHelloPayload;
+
+    @Setup
+    public void setup() throws Exception {
+        switch (codec) {
+            case "json":
+                codecId = FrameCodec.JSON;
+                break;
+            case "binary":
+                codecId = FrameCodec.BINARY;
+                break;
+            default:
+                codecId = FrameCodec.LEGACY;
+                break;
+        }
+
+        String sessionKey = TicketIssuer.newSessionKey();
+        ticket = TicketIssuer.sealTicket("alice", "echoservice", sessionKey, "servicepass", 60000L);
+        ticketResponse = new TicketResponse(sessionKey, ticket);
+        byte[] nonce = new byte[16];
+        clientHello = new ClientHello((JSONObject) ticket.toJSONType(), Base64.getEncoder().encodeToString(nonce));
+
+        ticketPayload = payloadOf(FrameCodec.encode(codecId, (JSONObject) ticket.toJSONType()));
+        ticketResponsePayload = payloadOf(FrameCodec.encode(codecId, (JSONObject) ticketResponse.toJSONType()));
+        clientHelloPayload = payloadOf(FrameCodec.encode(codecId, (JSONObject) clientHello.toJSONType()));
+    }
+
+    /**
+     * Strips the frame header, or the trailing newline of a legacy frame.
+     */
+    private byte[] payloadOf(byte[] frame) {
+        if (codecId == FrameCodec.LEGACY) {
+            return Arrays.copyOf(frame, frame.length - 1);
+        }
+        return Arrays.copyOfRange(frame, FrameCodec.HEADER_SIZE, frame.length);
+    }
+
+    @Benchmark
+    public byte[] serializeTicket() {
+        return FrameCodec.encode(codecId, (JSONObject) ticket.toJSONType());
+    }
+
+    @Benchmark
+    public Ticket deserializeTicket() throws Exception {
+        Ticket t = new Ticket(null, null, 0L, null, null);
+        t.deserialize(FrameCodec.decode(codecId, ticketPayload));
+        return t;
+    }
+
+    @Benchmark
+    public byte[] serializeTicketResponse() {
+        return FrameCodec.encode(codecId, (JSONObject) ticketResponse.toJSONType());
+    }
+
+    @Benchmark
+    public TicketResponse deserializeTicketResponse() throws Exception {
+        TicketResponse r = new TicketResponse(null, null);
+        r.deserialize(FrameCodec.decode(codecId, ticketResponsePayload));
+        return r;
+    }
+
+    @Benchmark
+    public byte[] serializeClientHello() {
+        return FrameCodec.encode(codecId, (JSONObject) clientHello.toJSONType());
+    }
+
+    @Benchmark
+    public ClientHello deserializeClientHello() throws Exception {
+        ClientHello h = new ClientHello(null, "");
+        h.deserialize(FrameCodec.decode(codecId, clientHelloPayload));
+        return h;
+    }
+}
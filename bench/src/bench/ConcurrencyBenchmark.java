@@ -0,0 +1,114 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+import protocol.RFC1994Claim;
+
+/**
+ * Loopback benchmark for the KDC connection handling modes.
+ *
+ * Opens a number of concurrent CHAP sessions against a running KDC and keeps
+ * every one of them open until all sessions have been attempted, the way a
+ * crowd of slow clients would. For each session the latency from sending the
+ * claim to receiving the challenge is recorded. Run it once against a KDC
+ * started with "io-mode" set to "pool" and once with "virtual" (or "nio") to
+ * compare how many sessions each mode serves concurrently and at what p99.
+ *
+ * usage: ConcurrencyBenchmark [host] [port] [sessions] [user] [timeout-ms]
+ */
+public class ConcurrencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        String user = args.length > 3 ? args[3] : "alice";
+        long timeoutMs = args.length > 4 ? Long.parseLong(args[4]) : 5000L;
+
+        long[] latencies = new long[sessions];
+        AtomicInteger served = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch attempted = new CountDownLatch(sessions);
+        CountDownLatch release = new CountDownLatch(1);
+        Queue<Socket> sockets = new ConcurrentLinkedQueue<>();
+
+        ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < sessions; i++) {
+            final int id = i;
+            clients.submit(() -> {
+                Socket sock = null;
+                try {
+                    sock = new Socket(host, port);
+                    sock.setSoTimeout((int) timeoutMs);
+                    sockets.add(sock);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+                    PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
+
+                    long start = System.nanoTime();
+                    out.println(new RFC1994Claim(user).toJSONType().toJSON());
+                    String line = in.readLine();
+                    long elapsed = System.nanoTime() - start;
+
+                    JSONObject reply = line == null ? null : JsonIO.readObject(line);
+                    if (reply != null && "RFC1994 Challenge".equals(reply.getString("type"))) {
+                        latencies[id] = elapsed;
+                        served.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                } finally {
+                    attempted.countDown();
+                }
+
+                // Hold the session open like an idle client would.
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+                return null;
+            });
+        }
+
+        attempted.await();
+        release.countDown();
+        for (Socket sock : sockets) {
+            try {
+                sock.close();
+            } catch (IOException ignored) {
+            }
+        }
+        clients.shutdown();
+        clients.awaitTermination(10, TimeUnit.SECONDS);
+
+        long[] ok = Arrays.stream(latencies).filter(l -> l > 0).sorted().toArray();
+        System.out.println("sessions attempted: " + sessions);
+        System.out.println("sessions served:    " + served.get());
+        System.out.println("sessions failed:    " + failed.get());
+        if (ok.length > 0) {
+            System.out.printf("p50 latency: %.3f ms%n", percentile(ok, 0.50) / 1e6);
+            System.out.printf("p99 latency: %.3f ms%n", percentile(ok, 0.99) / 1e6);
+            System.out.printf("max latency: %.3f ms%n", ok[ok.length - 1] / 1e6);
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,87 @@
+package bench;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.CryptoUtils;
+import common.TicketIssuer;
+
+/**
+ * AES-GCM encrypt and decrypt through {@link CryptoUtils}, with the
+ * password derived key taken from the cache, with a forced scrypt
+ * derivation, and with a raw session key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+    private static final String PASSWORD = "servicepass";
+
+    private String message;
+    private String passwordCiphertext;
+    private String sessionCiphertext;
+    private SecretKey sessionKey;
+
+    @Setup
+    public void setup() throws Exception {
+        message = TicketIssuer.newSessionKey();
+        passwordCiphertext = CryptoUtils.encryptAESGCM(message, PASSWORD);
+        sessionKey = new SecretKeySpec(Base64.getDecoder().decode(TicketIssuer.newSessionKey()), "AES");
+        sessionCiphertext = CryptoUtils.encryptAESGCM(message, sessionKey);
+    }
+
+    @Benchmark
+    public String encryptCachedKey() throws Exception {
+        return CryptoUtils.encryptAESGCM(message, PASSWORD);
+    }
+
+    @Benchmark
+    public String decryptCachedKey() throws Exception {
+        return CryptoUtils.decryptAESGCM(passwordCiphertext, PASSWORD);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 20)
+    public String encryptWithDerivation() throws Exception {
+        CryptoUtils.invalidateDerivedKey(PASSWORD);
+        return CryptoUtils.encryptAESGCM(message, PASSWORD);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 20)
+    public String decryptWithDerivation() throws Exception {
+        CryptoUtils.invalidateDerivedKey(PASSWORD);
+        return CryptoUtils.decryptAESGCM(passwordCiphertext, PASSWORD);
+    }
+
+    @Benchmark
+    public String encryptSessionKey() throws Exception {
+        return CryptoUtils.encryptAESGCM(message, sessionKey);
+    }
+
+    @Benchmark
+    public String decryptSessionKey() throws Exception {
+        return CryptoUtils.decryptAESGCM(sessionCiphertext, sessionKey);
+    }
+}
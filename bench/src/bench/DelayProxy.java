@@ -0,0 +1,115 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A loopback TCP proxy that holds every chunk for a fixed one-way delay
+ * before forwarding it, emulating a long link without limiting its
+ * bandwidth. Bytes keep their order, and a chunk read while earlier ones are
+ * still held is delayed from when it was read, as on a real path.
+ */
+public class DelayProxy implements AutoCloseable {
+    private final ServerSocket server;
+    private final int targetPort;
+    private final long delayNanos;
+
+    /**
+     * A chunk of bytes and when it may be forwarded.
+     */
+    private record Held(long due, byte[] data) {
+    }
+
+    /**
+     * Starts a proxy to a loopback port.
+     * @param targetPort the port to forward to.
+     * @param delayMillis the delay added in each direction.
+     * @throws IOException if the proxy cannot listen.
+     */
+    public DelayProxy(int targetPort, long delayMillis) throws IOException {
+        this.server = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+        this.targetPort = targetPort;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        Thread acceptor = new Thread(this::acceptLoop, "delay-proxy-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket client = server.accept();
+                Socket target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                client.setTcpNoDelay(true);
+                target.setTcpNoDelay(true);
+                pipe(client, target);
+                pipe(target, client);
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+    }
+
+    /**
+     * Forwards one direction with a reader and a writer thread joined by a
+     * queue of held chunks.
+     */
+    private void pipe(Socket from, Socket to) throws IOException {
+        InputStream in = from.getInputStream();
+        OutputStream out = to.getOutputStream();
+        BlockingQueue<Held> queue = new LinkedBlockingQueue<>();
+        Thread.ofVirtual().start(() -> {
+            byte[] buf = new byte[16384];
+            try {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    queue.put(new Held(System.nanoTime() + delayNanos, Arrays.copyOf(buf, n)));
+                }
+            } catch (IOException | InterruptedException e) {
+                // Peer gone.
+            }
+            queue.add(new Held(0, null));
+        });
+        Thread.ofVirtual().start(() -> {
+            try {
+                while (true) {
+                    Held held = queue.take();
+                    if (held.data() == null) {
+                        break;
+                    }
+                    long wait = held.due() - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    out.write(held.data());
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // Peer gone.
+            }
+            try {
+                from.close();
+                to.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
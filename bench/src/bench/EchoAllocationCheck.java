@@ -0,0 +1,141 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import common.CryptoPrimitives;
+import common.CryptoUtils;
+import common.EchoServiceHandler;
+import common.MessageSink;
+import common.Randomness;
+import common.StripedReplayCache;
+import common.Ticket;
+import common.TicketIssuer;
+import common.service.ClientHello;
+import common.service.ClientResponse;
+import common.service.HandshakeResponse;
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Allocation regression check for the per-message echo path.
+ *
+ * Drives an {@link EchoServiceHandler} in process through the handshake and
+ * a warm-up, then feeds it pre-encrypted messages and fails (exit status 1)
+ * if handling them constructed any JCE object or allocated more than
+ * {@link #MAX_BYTES_PER_MESSAGE} bytes per message. Most of the budget is
+ * the JSON parse of the decrypted payload (about 22 KB); a Cipher.getInstance
+ * adds about 3 KB, so the byte budget also catches a JCE lookup that bypasses
+ * {@link CryptoPrimitives}. Run with: ant alloc-check
+ */
+public class EchoAllocationCheck {
+    private static final String USER = "alice";
+    private static final String SERVICE = "echoservice";
+    private static final String SERVICE_SECRET = "servicepass";
+    private static final int WARMUP_MESSAGES = 20000;
+    private static final int MEASURED_MESSAGES = 20000;
+    private static final long MAX_BYTES_PER_MESSAGE = 28 * 1024;
+
+    /**
+     * Keeps the last reply sent by the handler.
+     */
+    private static final class LastReply implements MessageSink {
+        private JSONObject last;
+
+        @Override
+        public void sendMessage(JSONObject jsonMessage) {
+            last = jsonMessage;
+        }
+
+        @Override
+        public void sendMessage(JSONSerializable message) {
+            last = (JSONObject) message.toJSONType();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        echoservice.Config config = new echoservice.Config();
+        config.serviceName = SERVICE;
+        config.serviceSecret = SERVICE_SECRET;
+        LastReply sink = new LastReply();
+        EchoServiceHandler handler = new EchoServiceHandler(sink, new StripedReplayCache(16, 600), config);
+
+        String base64SessionKey = TicketIssuer.newSessionKey();
+        SecretKeySpec sessionKey = new SecretKeySpec(Base64.getDecoder().decode(base64SessionKey), "AES");
+        Ticket ticket = TicketIssuer.sealTicket(USER, SERVICE, base64SessionKey, SERVICE_SECRET, 3600000L);
+
+        String base64Nc = Base64.getEncoder().encodeToString(Randomness.nonce());
+        handler.onFrame((JSONObject) new ClientHello((JSONObject) ticket.toJSONType(), base64Nc).toJSONType());
+        HandshakeResponse handshake = new HandshakeResponse("", "", "", "");
+        handshake.deserialize(sink.last);
+        byte[] nc = CryptoUtils.decryptAESGCMToBytes(
+                TicketIssuer.combineIVandCipher(handshake.getIv(), handshake.getEncryptedNonce()), sessionKey);
+        if (!Base64.getEncoder().encodeToString(nc).equals(base64Nc)) {
+            throw new IllegalStateException("Handshake failed");
+        }
+        byte[] iv = Randomness.iv();
+        byte[] encNs = CryptoPrimitives.encryptGcm(sessionKey, iv, Base64.getDecoder().decode(handshake.getNonce()));
+        handler.onFrame((JSONObject) new ClientResponse(base64Nc, USER,
+                Base64.getEncoder().encodeToString(iv), Base64.getEncoder().encodeToString(encNs)).toJSONType());
+
+        List<JSONObject> warmup = messages(sessionKey, WARMUP_MESSAGES);
+        List<JSONObject> measured = messages(sessionKey, MEASURED_MESSAGES);
+        for (JSONObject msg : warmup) {
+            handler.onFrame(msg);
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().threadId();
+        long createdBefore = CryptoPrimitives.getCreated();
+        long bytesBefore = threads.getThreadAllocatedBytes(tid);
+        for (JSONObject msg : measured) {
+            handler.onFrame(msg);
+        }
+        long bytesPerMessage = (threads.getThreadAllocatedBytes(tid) - bytesBefore) / MEASURED_MESSAGES;
+        long created = CryptoPrimitives.getCreated() - createdBefore;
+
+        System.out.println("JCE objects created: " + created);
+        System.out.println("Bytes allocated per message: " + bytesPerMessage);
+        if (sink.last == null || sink.last.getString("message") == null) {
+            System.out.println("❌ Handler did not reply to messages.");
+            System.exit(1);
+        }
+        if (created != 0 || bytesPerMessage > MAX_BYTES_PER_MESSAGE) {
+            System.out.println("❌ Allocation regression on the echo message path.");
+            System.exit(1);
+        }
+        System.out.println("✅ Echo message path is within its allocation budget.");
+    }
+
+    /**
+     * Builds encrypted echo messages ahead of time so that only the
+     * handler's work is measured.
+     */
+    private static List<JSONObject> messages(SecretKeySpec sessionKey, int count) throws Exception {
+        List<JSONObject> out = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            JSONObject payload = new JSONObject();
+            payload.put("nonce", Base64.getEncoder().encodeToString(Randomness.nonce()));
+            payload.put("user", USER);
+            payload.put("service", SERVICE);
+            payload.put("message", "allocation check " + i);
+            byte[] iv = Randomness.iv();
+            byte[] enc = CryptoPrimitives.encryptGcm(sessionKey, iv, payload.toJSON().getBytes(StandardCharsets.UTF_8));
+            JSONObject msg = new JSONObject();
+            msg.put("iv", Base64.getEncoder().encodeToString(iv));
+            msg.put("message", Base64.getEncoder().encodeToString(enc));
+            out.add(msg);
+        }
+        return out;
+    }
+}
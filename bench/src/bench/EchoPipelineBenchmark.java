@@ -0,0 +1,144 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import client.ServiceSession;
+import common.Channel;
+import common.EchoServiceHandler;
+import common.FrameCodec;
+import common.ReplayCache;
+import common.StripedReplayCache;
+import common.TicketIssuer;
+
+/**
+ * Echo throughput of one service session with 1, 10 and 100 messages in
+ * flight, straight over loopback and through a {@link DelayProxy} adding
+ * {@value #WAN_DELAY_MILLIS} ms each way. On loopback pipelining mostly
+ * saves wakeups; over the delayed link a window of one is bound by the
+ * round trip and larger windows approach the server's own rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class EchoPipelineBenchmark {
+    private static final String USER = "alice";
+    private static final String SERVICE = "echoservice";
+    private static final String SERVICE_SECRET = "servicepass";
+    static final int BATCH = 100;
+    static final long WAN_DELAY_MILLIS = 10;
+
+    @Param({ "1", "10", "100" })
+    public int window;
+
+    @Param({ "loopback", "wan" })
+    public String link;
+
+    private ServerSocket echoSocket;
+    private Thread acceptor;
+    private DelayProxy proxy;
+    private ServiceSession session;
+    private List<String> batch;
+
+    @Setup
+    public void setup() throws Exception {
+        echoservice.Config config = new echoservice.Config();
+        config.serviceName = SERVICE;
+        config.serviceSecret = SERVICE_SECRET;
+        ReplayCache nonces = new StripedReplayCache(16, 60);
+        echoSocket = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(() -> {
+            while (!echoSocket.isClosed()) {
+                try {
+                    Channel channel = new Channel(echoSocket.accept());
+                    Thread.ofVirtual().start(() -> new EchoServiceHandler(channel, nonces, config).run());
+                } catch (IOException e) {
+                    // Closed by tearDown.
+                }
+            }
+        }, "bench-accept-echo");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        int port = echoSocket.getLocalPort();
+        if ("wan".equals(link)) {
+            proxy = new DelayProxy(port, WAN_DELAY_MILLIS);
+            port = proxy.getPort();
+        }
+        Channel channel = new Channel(new Socket(InetAddress.getLoopbackAddress(), port));
+        channel.setCodec(FrameCodec.BINARY);
+        String sessionKey = TicketIssuer.newSessionKey();
+        session = new ServiceSession(channel, USER, SERVICE, sessionKey);
+        session.handshake(TicketIssuer.sealTicket(USER, SERVICE, sessionKey, SERVICE_SECRET, 3600000L));
+
+        batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            batch.add("pipelined message " + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        session.close();
+        if (proxy != null) {
+            proxy.close();
+        }
+        echoSocket.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<String> echoBatch() throws Exception {
+        return session.sendPipelined(batch, window);
+    }
+
+    /**
+     * Runs the benchmark's cases once each without JMH and prints messages
+     * per second, for a quick comparison.
+     */
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        for (String link : new String[] { "loopback", "wan" }) {
+            for (int window : new int[] { 1, 10, 100 }) {
+                EchoPipelineBenchmark b = new EchoPipelineBenchmark();
+                b.link = link;
+                b.window = window;
+                b.setup();
+                try {
+                    b.echoBatch();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < rounds; i++) {
+                        b.echoBatch();
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    System.out.printf("%-8s window %3d: %10.0f messages/s%n", link, window,
+                            rounds * BATCH / seconds);
+                } finally {
+                    b.tearDown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Base64;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import client.KDCSession;
+import client.ServiceSession;
+import common.Channel;
+import common.ChapHandler;
+import common.EchoServiceHandler;
+import common.FrameCodec;
+import common.MapPrincipalDatabase;
+import common.ReplayCache;
+import common.StripedReplayCache;
+import common.Ticket;
+import common.TicketIssuer;
+import common.TicketRequest;
+import common.TicketResponse;
+import protocol.RFC1994Challenge;
+import protocol.RFC1994Claim;
+import protocol.RFC1994Response;
+import protocol.RFC1994Result;
+
+/**
+ * End-to-end protocol flows against in-process servers on loopback sockets:
+ * the CHAP plus ticket exchange against a {@link ChapHandler}, and the
+ * service handshake plus one echo round trip against an
+ * {@link EchoServiceHandler}. Each invocation opens a fresh connection, as
+ * real clients do, except the KDC session benchmarks, which send tagged
+ * ticket requests over one {@link KDCSession} opened in setup (always in the
+ * binary codec), one at a time and {@value #PIPELINE_DEPTH} in flight.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark {
+    private static final String USER = "alice";
+    private static final String USER_SECRET = "password";
+    private static final String SERVICE = "echoservice";
+    private static final String SERVICE_SECRET = "servicepass";
+    private static final int PIPELINE_DEPTH = 16;
+
+    @Param({ "legacy", "binary" })
+    public String codec;
+
+    private int codecId;
+    private ExecutorService connections;
+    private ServerSocket kdcSocket;
+    private ServerSocket echoSocket;
+    private Ticket serviceTicket;
+    private String base64SessionKey;
+    private KDCSession kdcSession;
+
+    /**
+     * Serves one accepted connection.
+     */
+    private interface ConnectionTask {
+        void serve(Socket sock) throws Exception;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        codecId = "binary".equals(codec) ? FrameCodec.BINARY : FrameCodec.LEGACY;
+        connections = Executors.newVirtualThreadPerTaskExecutor();
+
+        Map<String, String> secrets = new HashMap<>();
+        secrets.put(USER, USER_SECRET);
+        secrets.put(SERVICE, SERVICE_SECRET);
+        ReplayCache kdcNonces = new StripedReplayCache(32, 60);
+        kdcSocket = listen(sock -> new ChapHandler(new Channel(sock), kdcNonces, new MapPrincipalDatabase(secrets)).run());
+
+        echoservice.Config config = new echoservice.Config();
+        config.serviceName = SERVICE;
+        config.serviceSecret = SERVICE_SECRET;
+        ReplayCache echoNonces = new StripedReplayCache(16, 60);
+        echoSocket = listen(sock -> new EchoServiceHandler(new Channel(sock), echoNonces, config).run());
+
+        base64SessionKey = TicketIssuer.newSessionKey();
+        serviceTicket = TicketIssuer.sealTicket(USER, SERVICE, base64SessionKey, SERVICE_SECRET, 3600000L);
+        kdcSession = KDCSession.open(new Socket(InetAddress.getLoopbackAddress(), kdcSocket.getLocalPort()),
+                USER, USER_SECRET);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        kdcSession.close();
+        kdcSocket.close();
+        echoSocket.close();
+        connections.shutdownNow();
+    }
+
+    private ServerSocket listen(ConnectionTask task) throws IOException {
+        ServerSocket server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket sock = server.accept();
+                    connections.submit(() -> {
+                        task.serve(sock);
+                        return null;
+                    });
+                } catch (IOException e) {
+                    // Closed by tearDown.
+                }
+            }
+        }, "bench-accept-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    private Channel connect(ServerSocket server) throws IOException {
+        Channel channel = new Channel(new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+        channel.setCodec(codecId);
+        return channel;
+    }
+
+    @Benchmark
+    public TicketResponse chapTicketExchange() throws Exception {
+        Channel channel = connect(kdcSocket);
+        try {
+            channel.sendMessage(new RFC1994Claim(USER));
+            RFC1994Challenge challenge = new RFC1994Challenge("");
+            challenge.deserialize(channel.receiveMessage());
+
+            byte[] challengeBytes = Base64.getDecoder().decode(challenge.getChallenge());
+            channel.sendMessage(new RFC1994Response(RFC1994Response.computeHash(USER_SECRET, challengeBytes)));
+            RFC1994Result result = new RFC1994Result(false);
+            result.deserialize(channel.receiveMessage());
+            if (!result.getResult()) {
+                throw new IllegalStateException("CHAP failed");
+            }
+
+            channel.sendMessage(new TicketRequest(SERVICE, USER));
+            TicketResponse resp = new TicketResponse(null, null);
+            resp.deserialize(channel.receiveMessage());
+            return resp;
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Benchmark
+    public TicketResponse sessionTicket() throws Exception {
+        return kdcSession.requestTicket(SERVICE).get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public TicketResponse sessionTicketsPipelined() throws Exception {
+        List<CompletableFuture<TicketResponse>> inFlight = new ArrayList<>(PIPELINE_DEPTH);
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            inFlight.add(kdcSession.requestTicket(SERVICE));
+        }
+        TicketResponse last = null;
+        for (CompletableFuture<TicketResponse> f : inFlight) {
+            last = f.get();
+        }
+        return last;
+    }
+
+    @Benchmark
+    public String echoHandshakeAndMessage() throws Exception {
+        try (ServiceSession session = new ServiceSession(connect(echoSocket), USER, SERVICE, base64SessionKey)) {
+            session.handshake(serviceTicket);
+            return session.send("hello benchmark");
+        }
+    }
+}
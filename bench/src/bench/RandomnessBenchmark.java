@@ -0,0 +1,51 @@
+package bench;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.Randomness;
+
+/**
+ * IV generation as done before and after the shared randomness service:
+ * a new SecureRandom per value, the per-thread DRBG and the pre-filled pool.
+ * Runs with several threads, since seeding contention is the cost at issue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class RandomnessBenchmark {
+
+    @Benchmark
+    public byte[] newSecureRandomIv() {
+        byte[] iv = new byte[Randomness.IV_SIZE];
+        new SecureRandom().nextBytes(iv);
+        return iv;
+    }
+
+    @Benchmark
+    public byte[] threadLocalIv() {
+        byte[] iv = new byte[Randomness.IV_SIZE];
+        Randomness.nextBytes(iv);
+        return iv;
+    }
+
+    @Benchmark
+    public byte[] pooledIv() {
+        return Randomness.iv();
+    }
+}
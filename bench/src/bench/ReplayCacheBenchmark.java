@@ -0,0 +1,165 @@
+package bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.BloomReplayCache;
+import common.Randomness;
+import common.ReplayCache;
+import common.ReplayCaches;
+import common.StripedReplayCache;
+import merrimackutil.util.NonceCache;
+
+/**
+ * Check-and-add throughput of merrimackutil's NonceCache, as the servers
+ * used it, against {@link StripedReplayCache} and a {@link BloomReplayCache}
+ * at the default size, with every thread adding fresh 32 byte nonces to one
+ * shared cache. JMH runs it at the thread count given with -t;
+ * {@link #main(String[])} sweeps 1 to 64 threads.
+ *
+ * NonceCache never evicts, so its runs also carry an ever larger map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class ReplayCacheBenchmark {
+    static final int NONCE_SIZE = 32;
+    static final int AGE_SECONDS = 60;
+
+    @Param({ "nonce-cache", "striped", "bloom" })
+    public String impl;
+
+    private ReplayCache cache;
+
+    /**
+     * NonceCache behind the ReplayCache interface, checking and adding in
+     * two calls as the handlers did before.
+     */
+    static final class NonceCacheAdapter implements ReplayCache {
+        private final NonceCache cache;
+
+        NonceCacheAdapter(int nonceSize, int ageSeconds) {
+            this.cache = new NonceCache(nonceSize, ageSeconds);
+        }
+
+        @Override
+        public boolean containsNonce(byte[] nonce) {
+            return cache.containsNonce(nonce);
+        }
+
+        @Override
+        public void addNonce(byte[] nonce) {
+            cache.addNonce(nonce);
+        }
+
+        @Override
+        public boolean checkAndAdd(byte[] nonce) {
+            if (cache.containsNonce(nonce)) {
+                return false;
+            }
+            cache.addNonce(nonce);
+            return true;
+        }
+
+        @Override
+        public long size() {
+            return -1;
+        }
+    }
+
+    /**
+     * A thread's nonce source: random bytes with a counter in front, so
+     * making a nonce costs nothing next to the cache.
+     */
+    @State(Scope.Thread)
+    public static class Nonces {
+        private final byte[] nonce = Randomness.bytes(NONCE_SIZE);
+        private long counter;
+
+        byte[] next() {
+            long c = ++counter;
+            for (int i = 0; i < 8; i++) {
+                nonce[i] = (byte) (c >>> (56 - 8 * i));
+            }
+            return nonce;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        cache = create(impl);
+    }
+
+    static ReplayCache create(String impl) {
+        switch (impl) {
+            case "striped":
+                return new StripedReplayCache(NONCE_SIZE, AGE_SECONDS);
+            case "bloom":
+                return new BloomReplayCache(NONCE_SIZE, AGE_SECONDS, ReplayCaches.DEFAULT_CAPACITY,
+                        ReplayCaches.DEFAULT_FALSE_POSITIVE_RATE);
+            default:
+                return new NonceCacheAdapter(NONCE_SIZE, AGE_SECONDS);
+        }
+    }
+
+    @Benchmark
+    public boolean checkAndAdd(Nonces nonces) {
+        return cache.checkAndAdd(nonces.next());
+    }
+
+    /**
+     * Sweeps both caches over 1 to 64 threads without JMH and prints
+     * operations per second, for a quick comparison.
+     */
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        for (String impl : new String[] { "nonce-cache", "striped", "bloom" }) {
+            for (int threads = 1; threads <= 64; threads *= 2) {
+                ReplayCache cache = create(impl);
+                run(cache, threads, millis / 4);
+                double opsPerSecond = run(cache, threads, millis) * 1000.0 / millis;
+                System.out.printf("%-11s %2d threads: %12.0f ops/s%n", impl, threads, opsPerSecond);
+            }
+        }
+    }
+
+    private static long run(ReplayCache cache, int threads, long millis) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong ops = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                Nonces nonces = new Nonces();
+                long n = 0;
+                while (!stop.get()) {
+                    cache.checkAndAdd(nonces.next());
+                    n++;
+                }
+                ops.addAndGet(n);
+                done.countDown();
+            });
+            thread.start();
+        }
+        Thread.sleep(millis);
+        stop.set(true);
+        done.await();
+        return ops.get();
+    }
+}
@@ -0,0 +1,60 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.Randomness;
+import common.SessionKeySupplier;
+import common.TicketIssuer;
+import kdcd.HkdfSessionKeySupplier;
+import kdcd.PooledSessionKeySupplier;
+
+/**
+ * Cost of obtaining a session key on the ticket path for each KDC
+ * "session-keys" mode. The pool is measured on a back-to-back loop, so it
+ * shows the stall cost once the refill thread falls behind; at real request
+ * rates it is a dequeue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionKeyBenchmark {
+
+    @Param({ "inline", "pool", "hkdf" })
+    public String mode;
+
+    private SessionKeySupplier supplier;
+
+    @Setup
+    public void setup() {
+        switch (mode) {
+            case "pool":
+                supplier = new PooledSessionKeySupplier(1024);
+                break;
+            case "hkdf":
+                supplier = new HkdfSessionKeySupplier(Randomness.bytes(32));
+                break;
+            default:
+                supplier = TicketIssuer::generateSessionKey;
+        }
+    }
+
+    @Benchmark
+    public String nextSessionKey() throws Exception {
+        return supplier.nextSessionKey();
+    }
+}
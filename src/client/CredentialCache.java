@@ -0,0 +1,202 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Base64;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import common.CryptoUtils;
+import common.Randomness;
+import common.TicketResponse;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.util.Tuple;
+
+/**
+ * An on-disk credential cache (ccache) shared by client processes.
+ *
+ * Each entry is keyed by (user, service) and holds the ticket response from
+ * the KDC together with the decrypted session key. Session keys are stored
+ * encrypted under a local protection key kept in a separate, owner-only key
+ * file. Readers take a shared lock on the cache file and writers an
+ * exclusive one, so concurrent clients can safely use the same cache.
+ */
+public class CredentialCache {
+    public static final String DEFAULT_CACHE_FILE = "ccache.json";
+    public static final String DEFAULT_KEY_FILE = "ccache.key";
+
+    // Do not hand out tickets that are about to expire mid-handshake.
+    private static final long EXPIRY_MARGIN = 5000L;
+
+    private final File cacheFile;
+    private final File keyFile;
+
+    public CredentialCache() {
+        this(new File(DEFAULT_CACHE_FILE), new File(DEFAULT_KEY_FILE));
+    }
+
+    public CredentialCache(File cacheFile, File keyFile) {
+        this.cacheFile = cacheFile;
+        this.keyFile = keyFile;
+    }
+
+    /**
+     * Looks up a valid credential.
+     *
+     * @param user The client principal.
+     * @param service The service the ticket is for.
+     * @return The ticket response and base64 session key, or null if there is
+     *         no unexpired credential for (user, service).
+     */
+    public Tuple<TicketResponse, String> lookup(String user, String service) {
+        if (!cacheFile.exists() || !keyFile.exists()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+                FileChannel fc = raf.getChannel()) {
+            FileLock lock = fc.lock(0L, Long.MAX_VALUE, true);
+            try {
+                JSONArray entries = readEntries(fc);
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < entries.size(); i++) {
+                    JSONObject entry = entries.getObject(i);
+                    if (!user.equals(entry.getString("user")) || !service.equals(entry.getString("service"))) {
+                        continue;
+                    }
+                    if (entry.getLong("expires") - EXPIRY_MARGIN <= now) {
+                        return null;
+                    }
+                    TicketResponse resp = new TicketResponse(null, null);
+                    resp.deserialize(entry.getObject("ticket-response"));
+                    String sessionKey = CryptoUtils.decryptAESGCM(entry.getString("session-key"), loadKey(false));
+                    return new Tuple<>(resp, sessionKey);
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (Exception e) {
+            System.err.println("Ignoring unreadable credential cache: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Stores a credential, replacing any previous one for (user, service) and
+     * dropping expired entries.
+     *
+     * @param user The client principal.
+     * @param service The service the ticket is for.
+     * @param resp The ticket response from the KDC.
+     * @param base64SessionKey The decrypted session key, base64 encoded.
+     */
+    public void store(String user, String service, TicketResponse resp, String base64SessionKey) {
+        try {
+            createOwnerOnly(cacheFile);
+        } catch (IOException e) {
+            System.err.println("Could not create credential cache: " + e.getMessage());
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+                FileChannel fc = raf.getChannel()) {
+            FileLock lock = fc.lock();
+            try {
+                JSONArray entries = readEntries(fc);
+                JSONArray kept = new JSONArray();
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < entries.size(); i++) {
+                    JSONObject entry = entries.getObject(i);
+                    boolean same = user.equals(entry.getString("user")) && service.equals(entry.getString("service"));
+                    if (!same && entry.getLong("expires") > now) {
+                        kept.add(entry);
+                    }
+                }
+
+                JSONObject entry = new JSONObject();
+                entry.put("user", user);
+                entry.put("service", service);
+                entry.put("expires", resp.getTicket().getCreationTime() + resp.getTicket().getValidityTime());
+                entry.put("ticket-response", resp.toJSONType());
+                entry.put("session-key", CryptoUtils.encryptAESGCM(base64SessionKey, loadKey(true)));
+                kept.add(entry);
+
+                JSONObject root = new JSONObject();
+                root.put("entries", kept);
+                byte[] data = root.getFormattedJSON().getBytes(StandardCharsets.UTF_8);
+                fc.truncate(0L);
+                fc.write(ByteBuffer.wrap(data), 0L);
+                fc.force(true);
+            } finally {
+                lock.release();
+            }
+        } catch (Exception e) {
+            System.err.println("Could not update credential cache: " + e.getMessage());
+        }
+    }
+
+    private JSONArray readEntries(FileChannel fc) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) fc.size());
+        fc.read(buf, 0L);
+        String text = new String(buf.array(), StandardCharsets.UTF_8).trim();
+        if (text.isEmpty()) {
+            return new JSONArray();
+        }
+        JSONObject root = JsonIO.readObject(text);
+        if (root == null || root.getArray("entries") == null) {
+            return new JSONArray();
+        }
+        return root.getArray("entries");
+    }
+
+    /**
+     * Loads the local protection key, creating it if requested. Creation only
+     * happens while holding the exclusive cache lock.
+     */
+    private SecretKeySpec loadKey(boolean create) throws IOException {
+        if (!keyFile.exists()) {
+            if (!create) {
+                throw new IOException("Missing credential cache key.");
+            }
+            byte[] key = Randomness.bytes(32);
+            createOwnerOnly(keyFile);
+            Files.write(keyFile.toPath(), Base64.getEncoder().encode(key));
+        }
+        byte[] encoded = Files.readAllBytes(keyFile.toPath());
+        return new SecretKeySpec(Base64.getDecoder().decode(new String(encoded, StandardCharsets.UTF_8).trim()), "AES");
+    }
+
+    /**
+     * Creates the file with owner-only permissions so its contents are never
+     * readable by others, even briefly. An existing file is tightened instead.
+     */
+    private static void createOwnerOnly(File file) throws IOException {
+        try {
+            Files.createFile(file.toPath(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (FileAlreadyExistsException e) {
+            restrictToOwner(file);
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, rely on the default permissions.
+            if (!file.exists()) {
+                Files.createFile(file.toPath());
+            }
+        }
+    }
+
+    private static void restrictToOwner(File file) {
+        try {
+            Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException | IOException e) {
+            // Not a POSIX file system, rely on the default permissions.
+        }
+    }
+}
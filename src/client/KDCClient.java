@@ -5,25 +5,23 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import common.Channel;
 import common.CryptoUtils;
+import common.FrameCodec;
+import common.TgsHandler;
+import common.TgsRequest;
+import common.Ticket;
 import common.TicketRequest;
 import common.TicketResponse;
-import common.service.ClientHello;
-import common.service.ClientResponse;
-import common.service.HandshakeResponse;
 import merrimackutil.cli.LongOption;
 import merrimackutil.cli.OptionParser;
 import merrimackutil.json.JsonIO;
@@ -39,8 +37,7 @@ import protocol.RFC1994Result;
 public class KDCClient {
     private static String user = null;
     private static String service = null;
-    private static String kdcHost;
-    private static int kdcPort;
+    private static KDCSelector kdcs;
 
    public static void usageClient(Channel channel) {
         // Create an instance of the UsageMessage class
@@ -88,39 +85,105 @@ public class KDCClient {
             user = promptForUsername("Enter username");
         }
 
-        String password = promptForPassword("Enter password");
-
         // 🔐 Load KDC host info (forces hosts.json to be created if needed)
-        Tuple<String, Integer> kdcHostInfo = getHostInfo("kdcd");
-        kdcHost = kdcHostInfo.getFirst();
-        kdcPort = kdcHostInfo.getSecond();
+        kdcs = new KDCSelector(getKdcEndpoints(user, argsMap.get("kdc")));
 
-        Channel channel = authenticateWithKDC(user, password, kdcHost, kdcPort);
-        if (channel != null) {
-            try {
-                TicketRequest req = new TicketRequest(service, user);
-                channel.sendMessage(req);
+        try {
+            // 🗃️ A cached service ticket skips the KDC entirely
+            CredentialCache ccache = new CredentialCache();
+            Tuple<TicketResponse, String> cached = ccache.lookup(user, service);
+            if (cached != null) {
+                System.out.println("🗃️ [CLIENT] Using cached ticket for " + service);
+                connectToService(cached.getFirst(), cached.getSecond());
+                return;
+            }
 
-                JSONObject respJson = channel.receiveMessage();
-                TicketResponse resp = new TicketResponse(null, null);
-                resp.deserialize(respJson);
+            // 🗃️ A cached TGT skips CHAP and the password prompt
+            Tuple<TicketResponse, String> tgt = ccache.lookup(user, TgsHandler.TGS_SERVICE);
+            if (tgt == null) {
+                String password = promptForPassword("Enter password");
+                tgt = requestTicketGrantingTicket(password);
+                if (tgt == null) {
+                    return;
+                }
+                ccache.store(user, TgsHandler.TGS_SERVICE, tgt.getFirst(), tgt.getSecond());
+            } else {
+                System.out.println("🗃️ [CLIENT] Using cached ticket-granting ticket");
+            }
 
-                String encryptedSessionKey = resp.getSessionKey();
-                String base64SessionKey = CryptoUtils.decryptAESGCM(encryptedSessionKey, password);
-                System.out.println("🔑 [CLIENT] Decrypted Session Key (base64): " + base64SessionKey);
+            // TGS exchange: trade the TGT for a service ticket, no password needed
+            TicketResponse resp = requestServiceTicket(tgt.getFirst().getTicket(), tgt.getSecond(), service);
+            SecretKeySpec tgtKey = new SecretKeySpec(Base64.getDecoder().decode(tgt.getSecond()), "AES");
+            String base64SessionKey = CryptoUtils.decryptAESGCM(resp.getSessionKey(), tgtKey);
+            System.out.println("🔑 [CLIENT] Decrypted Session Key (base64): " + base64SessionKey);
+            ccache.store(user, service, resp, base64SessionKey);
 
 
 
-                System.out.println("Ticket and session key received");
-                System.out.println("Session key (base64): " + base64SessionKey);
+            System.out.println("Ticket and session key received");
+            System.out.println("Session key (base64): " + base64SessionKey);
 
-                connectToService(resp, base64SessionKey);
+            connectToService(resp, base64SessionKey);
+        } catch (Exception e) {
+            System.err.println("Error requesting session key: " + e.getMessage());
+        }
+    }
 
-                channel.close();
-            } catch (Exception e) {
-                System.err.println("Error requesting session key: " + e.getMessage());
+    /**
+     * Runs CHAP with the KDC and requests a ticket-granting ticket.
+     *
+     * @param password The user's password.
+     * @return The TGT response and the decrypted TGT session key (base64), or
+     *         null if authentication failed.
+     * @throws Exception If the KDC exchange fails.
+     */
+    public static Tuple<TicketResponse, String> requestTicketGrantingTicket(String password) throws Exception {
+        return kdcs.call(socket -> {
+            Channel channel = new Channel(socket);
+            channel.setCodec(FrameCodec.BINARY);
+            if (!authenticateWithKDC(user, password, channel)) {
+                return null;
             }
-        }
+            // AS exchange: CHAP already ran, ask for a ticket-granting ticket
+            TicketRequest req = new TicketRequest(TgsHandler.TGS_SERVICE, user);
+            channel.sendMessage(req);
+
+            JSONObject tgtJson = channel.receiveMessage();
+            TicketResponse tgtResp = new TicketResponse(null, null);
+            tgtResp.deserialize(tgtJson);
+
+            String base64TgtKey = CryptoUtils.decryptAESGCM(tgtResp.getSessionKey(), password);
+            System.out.println("🎟️ [CLIENT] Ticket-granting ticket received");
+            return new Tuple<>(tgtResp, base64TgtKey);
+        });
+    }
+
+    /**
+     * Requests a service ticket from the KDC with a ticket-granting ticket.
+     *
+     * @param tgt The ticket-granting ticket.
+     * @param base64TgtKey The TGT session key, base64 encoded.
+     * @param serviceName The service to request a ticket for.
+     * @return The ticket response. Its session key is encrypted under the TGT
+     *         session key.
+     * @throws Exception If the KDC rejects the request.
+     */
+    public static TicketResponse requestServiceTicket(Ticket tgt, String base64TgtKey, String serviceName) throws Exception {
+        SecretKeySpec tgtKey = new SecretKeySpec(Base64.getDecoder().decode(base64TgtKey), "AES");
+        return kdcs.call(socket -> {
+            Channel channel = new Channel(socket);
+            channel.setCodec(FrameCodec.BINARY);
+            String authenticator = TgsHandler.buildAuthenticator(user, tgtKey);
+            channel.sendMessage(new TgsRequest(serviceName, tgt, authenticator));
+
+            JSONObject respJson = channel.receiveMessage();
+            if (!"Ticket Response".equals(respJson.getString("type"))) {
+                throw new SecurityException("KDC rejected the ticket-granting ticket.");
+            }
+            TicketResponse resp = new TicketResponse(null, null);
+            resp.deserialize(respJson);
+            return resp;
+        });
     }
     /**
      * Process the command line arguments to the client.
@@ -138,6 +201,7 @@ public class KDCClient {
         String hostsFile = "host.json";
         String user = null;
         String service = null;
+        String kdc = null;
 
         UsageMessage usageMessage = new UsageMessage();
 
@@ -169,6 +233,15 @@ public class KDCClient {
                     System.out.println(usageMessage.getUsageMessage());
                     return null; // Return null to indicate error
                 }
+            } else if (args[i].equals("-k") || args[i].equals("--kdc")) {
+                if (i + 1 < args.length) {
+                    kdc = args[i + 1];
+                    i++; // Skip the next argument as it's the value for --kdc
+                } else {
+                    System.err.println("Error: Missing value for --kdc.");
+                    System.out.println(usageMessage.getUsageMessage());
+                    return null; // Return null to indicate error
+                }
             } else if (args[i].equals("-h") || args[i].equals("--help")) {
                 System.out.println(usageMessage.getUsageMessage());
                 return null; // Exit after showing help
@@ -183,11 +256,53 @@ public class KDCClient {
         Map<String, String> result = new HashMap<>();
         result.put("user", user);
         result.put("service", service);
+        result.put("kdc", kdc);
         return result;
     }
 
     
 
+    /**
+     * Finds the KDCs that hold a user's secret. Endpoints given with --kdc
+     * win; otherwise, with a pool of KDC shards in hosts.json, the user is
+     * routed by consistent hashing to every address of their shard, and
+     * without one the "kdcd" entry is used.
+     *
+     * @param user The user principal.
+     * @param kdcOption The --kdc value, "host:port[,host:port...]", or null.
+     * @return The KDC addresses to choose between.
+     */
+    public static List<Tuple<String, Integer>> getKdcEndpoints(String user, String kdcOption) {
+        if (kdcOption != null) {
+            List<Tuple<String, Integer>> endpoints = new ArrayList<>();
+            for (String addr : kdcOption.split(",")) {
+                int colon = addr.lastIndexOf(':');
+                try {
+                    endpoints.add(new Tuple<>(addr.substring(0, colon).trim(),
+                            Integer.parseInt(addr.substring(colon + 1).trim())));
+                } catch (RuntimeException e) {
+                    System.err.println("Invalid KDC address: " + addr);
+                    System.exit(1);
+                }
+            }
+            return endpoints;
+        }
+        File file = new File("hosts.json");
+        if (file.exists()) {
+            try {
+                KdcShardMap shards = KdcShardMap.load(file);
+                if (shards.isSharded()) {
+                    System.out.println("🧭 [CLIENT] Routing " + user + " to KDC shard " + shards.shardOf(user));
+                    return shards.addresses(user);
+                }
+            } catch (IOException e) {
+                System.err.println("Error loading host file: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        return List.of(getHostInfo(KdcShardMap.KDC_HOST));
+    }
+
     public static Tuple<String, Integer> getHostInfo(String hostName) {
         File file = new File("hosts.json");
 
@@ -249,47 +364,12 @@ public class KDCClient {
             // Open connection manually
             Socket socket = new Socket(host, port);
             Channel channel = new Channel(socket);
-    
-            // Message 1: Send identity claim
-            RFC1994Claim claim = new RFC1994Claim(username);
-            channel.sendMessage(claim);
-    
-            // Message 2: Receive challenge
-            JSONObject challengeJson = channel.receiveMessage();
-            if (!challengeJson.getString("type").equals("RFC1994 Challenge")) {
-                System.out.println("Authentication failed: Unknown user or bad response");
-                channel.close(); // clean up
-                return null;
-            }
-    
-            RFC1994Challenge challenge = new RFC1994Challenge("");
-            challenge.deserialize(challengeJson);
-            byte[] challengeBytes = Base64.getDecoder().decode(challenge.getChallenge());
-    
-            // Compute hash of password and challenge using SHA-256
-            byte[] secretBytes = (password + new String(challengeBytes)).getBytes();
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = digest.digest(secretBytes);
-            String hashBase64 = Base64.getEncoder().encodeToString(hashBytes);
-    
-            // Message 3: Send response
-            RFC1994Response response = new RFC1994Response(hashBase64);
-            channel.sendMessage(response);
-    
-            // Message 4: Receive result
-            JSONObject resultJson = channel.receiveMessage();
-            RFC1994Result result = new RFC1994Result(false);
-            result.deserialize(resultJson);
-    
-            if (result.getResult()) {
-                System.out.println("Authentication successful");
+            channel.setCodec(FrameCodec.BINARY);
+            if (authenticateWithKDC(username, password, channel)) {
                 return channel; // return open channel
-            } else {
-                System.out.println("Authentication failed: Invalid password");
-                channel.close();
-                return null;
             }
-    
+            channel.close();
+            return null;
         } catch (Exception e) {
             System.err.println("Error during authentication: " + e.getMessage());
             e.printStackTrace();
@@ -297,6 +377,52 @@ public class KDCClient {
         }
     }
 
+    /**
+     * Runs CHAP on an open channel to the KDC.
+     *
+     * @param username The user principal.
+     * @param password The user's password.
+     * @param channel The channel to the KDC.
+     * @return true if the KDC accepted the password.
+     * @throws Exception If the exchange fails; I/O errors let the caller fail
+     *         over to another KDC.
+     */
+    public static boolean authenticateWithKDC(String username, String password, Channel channel) throws Exception {
+        // Message 1: Send identity claim
+        RFC1994Claim claim = new RFC1994Claim(username);
+        channel.sendMessage(claim);
+
+        // Message 2: Receive challenge
+        JSONObject challengeJson = channel.receiveMessage();
+        if (!challengeJson.getString("type").equals("RFC1994 Challenge")) {
+            System.out.println("Authentication failed: Unknown user or bad response");
+            return false;
+        }
+
+        RFC1994Challenge challenge = new RFC1994Challenge("");
+        challenge.deserialize(challengeJson);
+        byte[] challengeBytes = Base64.getDecoder().decode(challenge.getChallenge());
+
+        // Compute hash of password and challenge using SHA-256
+        String hashBase64 = RFC1994Response.computeHash(password, challengeBytes);
+
+        // Message 3: Send response
+        RFC1994Response response = new RFC1994Response(hashBase64);
+        channel.sendMessage(response);
+
+        // Message 4: Receive result
+        JSONObject resultJson = channel.receiveMessage();
+        RFC1994Result result = new RFC1994Result(false);
+        result.deserialize(resultJson);
+
+        if (result.getResult()) {
+            System.out.println("Authentication successful");
+            return true;
+        }
+        System.out.println("Authentication failed: Invalid password");
+        return false;
+    }
+
     public static String bytesToHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (byte b : bytes) {
@@ -316,127 +442,33 @@ public class KDCClient {
 
 
     public static void connectToService(TicketResponse response, String base64SessionKey) {
-    try {
         Tuple<String, Integer> serviceHost = getHostInfo(service);
-        Socket socket = new Socket(serviceHost.getFirst(), serviceHost.getSecond());
-        Channel serviceChannel = new Channel(socket);
-
-        // Step 1: Derive session key from password
-        byte[] sessionKeyBytes = Base64.getDecoder().decode(base64SessionKey);
-        System.out.println("🔑 [CLIENT] Using session key bytes: " + Base64.getEncoder().encodeToString(sessionKeyBytes));
-        SecretKeySpec ks = new SecretKeySpec(sessionKeyBytes, "AES");
-
-        // Step 2: Generate fresh nonce Nc
-        byte[] nonceClient = new byte[16];
-        new SecureRandom().nextBytes(nonceClient);
-        String base64Nc = Base64.getEncoder().encodeToString(nonceClient);
-
-        // Step 3: Send ClientHello (Ticket + Nc)
-        JSONObject ticketJson = (JSONObject) response.getTicket().toJSONType();
-        ClientHello hello = new ClientHello(ticketJson, base64Nc);
-        serviceChannel.sendMessage(hello);
-        System.out.println("📤 Sent ClientHello");
-
-        // Step 4: Receive HandshakeResponse
-        JSONObject responseJson = serviceChannel.receiveMessage();
-        HandshakeResponse handshake = new HandshakeResponse("", "", "", "");
-        handshake.deserialize(responseJson);
-        System.out.println("📥 Received HandshakeResponse");
-
-        // Step 5: Decrypt Enc(Nc) and verify it matches original
-        String encNcCombined = combineIVandCipher(handshake.getIv(), handshake.getEncryptedNonce());
-        byte[] decrypted = CryptoUtils.decryptAESGCMToBytes(encNcCombined, ks);
-        System.out.println("🧾 [CLIENT] Original Nc: " + base64Nc);
-        System.out.println("🔓 [CLIENT] Decrypted enc(Nc): " + Base64.getEncoder().encodeToString(decrypted));
-        if (!Base64.getEncoder().encodeToString(decrypted).equals(base64Nc)) {
-            throw new SecurityException("❌ Server failed to prove knowledge of session key.");
-        }
+        try (ServiceSession session = ServiceSession.connect(serviceHost.getFirst(), serviceHost.getSecond(),
+                user, service, response.getTicket(), base64SessionKey)) {
+            System.out.println("✅ Verified encrypted Nc matches");
+            System.out.println("🟢 Secure echo session started. Type a message or /quit to exit.");
+            Scanner sc = new Scanner(System.in);
+
+            while (true) {
+                System.out.print("Message to send: ");
+                String input = sc.nextLine();
+
+                if (input.equalsIgnoreCase("/quit")) {
+                    System.out.println("👋 Exiting session.");
+                    break;
+                }
 
-        System.out.println("✅ Verified encrypted Nc matches");
-
-        // Step 6: Generate fresh Nr and send ClientResponse
-        byte[] nonceR = new byte[16];
-        new SecureRandom().nextBytes(nonceR);
-        String base64Nr = Base64.getEncoder().encodeToString(nonceR);
-
-        byte[] nonceS = Base64.getDecoder().decode(handshake.getNonce()); // Ns
-        byte[] responseIv = new byte[12];
-        new SecureRandom().nextBytes(responseIv);
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        cipher.init(Cipher.ENCRYPT_MODE, ks, new GCMParameterSpec(128, responseIv));
-        byte[] encNs = cipher.doFinal(nonceS);
-
-        ClientResponse finalResp = new ClientResponse(
-            base64Nr,
-            user,
-            Base64.getEncoder().encodeToString(responseIv),
-            Base64.getEncoder().encodeToString(encNs)
-        );
-        serviceChannel.sendMessage(finalResp);
-        System.out.println("📤 Sent ClientResponse");
-
-        System.out.println("🟢 Secure echo session started. Type a message or /quit to exit.");
-Scanner sc = new Scanner(System.in);
-
-while (true) {
-    try {
-        System.out.print("Message to send: ");
-        String input = sc.nextLine();
-
-        if (input.equalsIgnoreCase("/quit")) {
-            System.out.println("👋 Exiting session.");
-            serviceChannel.close();
-            break;
+                try {
+                    System.out.println("📥 Response: " + session.send(input));
+                } catch (Exception e) {
+                    System.err.println("❌ Error during encrypted message exchange: " + e.getMessage());
+                    e.printStackTrace();
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Error during handshake with service: " + e.getMessage());
+            e.printStackTrace();
         }
-
-        // Construct message JSON with nonce, user, service, and message
-        byte[] msgIv = new byte[12];
-        new SecureRandom().nextBytes(msgIv);
-        byte[] msgNonce = new byte[16];
-        new SecureRandom().nextBytes(msgNonce);
-        String base64Nonce = Base64.getEncoder().encodeToString(msgNonce);
-
-        JSONObject payload = new JSONObject();
-        payload.put("nonce", base64Nonce);
-        payload.put("user", user);
-        payload.put("service", service);
-        payload.put("message", input);
-
-        String payloadStr = payload.getFormattedJSON();
-        Cipher encryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
-        encryptCipher.init(Cipher.ENCRYPT_MODE, ks, new GCMParameterSpec(128, msgIv));
-        byte[] encryptedMessage = encryptCipher.doFinal(payloadStr.getBytes(StandardCharsets.UTF_8));
-
-        JSONObject msgObj = new JSONObject();
-        msgObj.put("iv", Base64.getEncoder().encodeToString(msgIv));
-        msgObj.put("message", Base64.getEncoder().encodeToString(encryptedMessage));
-        serviceChannel.sendMessage(msgObj);
-
-        // Receive encrypted response
-        JSONObject respJson = serviceChannel.receiveMessage();
-        byte[] respIv = Base64.getDecoder().decode(respJson.getString("iv"));
-        byte[] respCipher = Base64.getDecoder().decode(respJson.getString("message"));
-
-        Cipher decryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
-        decryptCipher.init(Cipher.DECRYPT_MODE, ks, new GCMParameterSpec(128, respIv));
-        byte[] decryptedResponse = decryptCipher.doFinal(respCipher);
-
-        String responseText = new String(decryptedResponse, StandardCharsets.UTF_8);
-        System.out.println("📥 Response: " + responseText);
-
-    } catch (Exception e) {
-        System.err.println("❌ Error during encrypted message exchange: " + e.getMessage());
-        e.printStackTrace();
-        serviceChannel.close();
-        break;
     }
 }
-
-    } catch (Exception e) {
-        System.err.println("❌ Error during handshake with service: " + e.getMessage());
-        e.printStackTrace();
-    }
-}
-
-   
-}
\ No newline at end of file
@@ -0,0 +1,211 @@
+package client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import merrimackutil.util.Tuple;
+
+/**
+ * Picks a KDC out of several equivalent endpoints, such as the addresses of
+ * one shard, and fails over between them.
+ *
+ * Each endpoint keeps an exponentially weighted average of its exchange
+ * time and of its error rate. A request samples two healthy endpoints at
+ * random and takes the cheaper one (power of two choices), where the cost is
+ * the average exchange time scaled by the requests already in flight there
+ * and by the error rate. Sampling two rather than always taking the best
+ * keeps many clients from stampeding the same KDC on stale numbers, while
+ * still steering away from a slow one. Endpoints without measurements cost
+ * nothing, so each is tried early.
+ *
+ * A connect error or timeout marks the endpoint down for a backoff that
+ * doubles with each consecutive failure, and the exchange is retried on
+ * another endpoint. Errors the KDC reports, such as a wrong password, are
+ * not failures of the endpoint and are passed to the caller.
+ */
+public class KDCSelector {
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 5000;
+    static final double ALPHA = 0.2;
+    static final long BASE_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    /**
+     * One request/response exchange over a connected socket.
+     */
+    public interface Exchange<T> {
+        T run(Socket socket) throws Exception;
+    }
+
+    /**
+     * A KDC address and what has been observed about it.
+     */
+    public static final class Endpoint {
+        private final String host;
+        private final int port;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private double rttNanos = 0;
+        private double errorRate = 0;
+        private int consecutiveFailures = 0;
+        private long downUntil = 0;
+
+        Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public synchronized double getRttMillis() {
+            return rttNanos / 1e6;
+        }
+
+        public synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        synchronized boolean isUp(long now) {
+            return now >= downUntil;
+        }
+
+        synchronized long getDownUntil() {
+            return downUntil;
+        }
+
+        synchronized double cost() {
+            return rttNanos * (inFlight.get() + 1) / (1 - Math.min(errorRate, 0.95));
+        }
+
+        synchronized void success(long nanos) {
+            rttNanos = rttNanos == 0 ? nanos : rttNanos + ALPHA * (nanos - rttNanos);
+            errorRate -= ALPHA * errorRate;
+            consecutiveFailures = 0;
+            downUntil = 0;
+        }
+
+        synchronized void failure(long now) {
+            errorRate += ALPHA * (1 - errorRate);
+            consecutiveFailures++;
+            long backoff = BASE_BACKOFF_MILLIS << Math.min(consecutiveFailures - 1, 5);
+            downUntil = now + Math.min(backoff, MAX_BACKOFF_MILLIS);
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    public KDCSelector(List<Tuple<String, Integer>> addresses) {
+        this(addresses, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param addresses the KDC endpoints.
+     * @param connectTimeoutMillis how long to wait for a connection.
+     * @param readTimeoutMillis how long to wait for each reply.
+     */
+    public KDCSelector(List<Tuple<String, Integer>> addresses, int connectTimeoutMillis, int readTimeoutMillis) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No KDC endpoints.");
+        }
+        List<Endpoint> list = new ArrayList<>();
+        for (Tuple<String, Integer> addr : addresses) {
+            list.add(new Endpoint(addr.getFirst(), addr.getSecond()));
+        }
+        this.endpoints = List.copyOf(list);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Runs an exchange on the best available KDC, failing over to the others
+     * on connect errors and timeouts.
+     * @param exchange the exchange to run.
+     * @return what the exchange returned.
+     * @throws IOException if no endpoint could complete the exchange.
+     * @throws Exception whatever the exchange throws other than I/O errors.
+     */
+    public <T> T call(Exchange<T> exchange) throws Exception {
+        Set<Endpoint> tried = new HashSet<>();
+        IOException last = null;
+        while (tried.size() < endpoints.size()) {
+            Endpoint ep = pick(tried);
+            tried.add(ep);
+            ep.inFlight.incrementAndGet();
+            long start = System.nanoTime();
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(ep.host, ep.port), connectTimeoutMillis);
+                socket.setSoTimeout(readTimeoutMillis);
+                T result = exchange.run(socket);
+                ep.success(System.nanoTime() - start);
+                return result;
+            } catch (IOException e) {
+                ep.failure(System.currentTimeMillis());
+                last = e;
+                if (tried.size() < endpoints.size()) {
+                    System.err.println("⚠️ [CLIENT] KDC " + ep + " failed (" + e.getMessage() + "), trying another");
+                }
+            } finally {
+                ep.inFlight.decrementAndGet();
+            }
+        }
+        throw new IOException("No KDC reachable, last error: " + last.getMessage(), last);
+    }
+
+    /**
+     * Chooses an endpoint not yet tried: the cheaper of two random healthy
+     * ones, or the one coming back soonest if none is healthy.
+     */
+    Endpoint pick(Set<Endpoint> tried) {
+        long now = System.currentTimeMillis();
+        List<Endpoint> up = new ArrayList<>(endpoints.size());
+        Endpoint soonest = null;
+        for (Endpoint ep : endpoints) {
+            if (tried.contains(ep)) {
+                continue;
+            }
+            if (ep.isUp(now)) {
+                up.add(ep);
+            } else if (soonest == null || ep.getDownUntil() < soonest.getDownUntil()) {
+                soonest = ep;
+            }
+        }
+        if (up.isEmpty()) {
+            return soonest;
+        }
+        if (up.size() == 1) {
+            return up.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(up.size());
+        int j = random.nextInt(up.size() - 1);
+        if (j >= i) {
+            j++;
+        }
+        Endpoint a = up.get(i);
+        Endpoint b = up.get(j);
+        return a.cost() <= b.cost() ? a : b;
+    }
+}
@@ -0,0 +1,201 @@
+package client;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import common.Channel;
+import common.FrameCodec;
+import common.TgsHandler;
+import common.TgsRequest;
+import common.Ticket;
+import common.TicketError;
+import common.TicketRequest;
+import common.TicketResponse;
+import merrimackutil.json.types.JSONObject;
+import protocol.RFC1994Challenge;
+import protocol.RFC1994Claim;
+import protocol.RFC1994Response;
+import protocol.RFC1994Result;
+
+/**
+ * A connection to the KDC that stays open for many ticket requests.
+ *
+ * CHAP runs once when the session opens. Every request after that carries
+ * a "request-id" and may be sent without waiting for earlier answers; a
+ * reader thread matches each response to its request by that id. The KDC
+ * closes a session that stays idle past its timeout, after which requests
+ * fail and a new session has to be opened.
+ */
+public class KDCSession implements AutoCloseable {
+    private final Channel channel;
+    private final String user;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Map<Long, CompletableFuture<TicketResponse>> pending = new ConcurrentHashMap<>();
+    private volatile IOException failure;
+
+    private KDCSession(Channel channel, String user) {
+        this.channel = channel;
+        this.user = user;
+    }
+
+    /**
+     * Opens a session and authenticates with CHAP.
+     *
+     * @param host The KDC address.
+     * @param port The KDC port.
+     * @param user The user principal.
+     * @param password The user's password.
+     * @return The open session.
+     * @throws SecurityException If the KDC rejects the user or password.
+     * @throws IOException If the KDC cannot be reached.
+     */
+    public static KDCSession open(String host, int port, String user, String password) throws Exception {
+        return open(new Socket(host, port), user, password);
+    }
+
+    /**
+     * Authenticates with CHAP over a connected socket and starts the session.
+     *
+     * @param socket A socket connected to the KDC.
+     * @param user The user principal.
+     * @param password The user's password.
+     * @return The open session.
+     */
+    public static KDCSession open(Socket socket, String user, String password) throws Exception {
+        Channel channel = new Channel(socket);
+        channel.setCodec(FrameCodec.BINARY);
+        try {
+            channel.sendMessage(new RFC1994Claim(user));
+            JSONObject challengeJson = channel.receiveMessage();
+            if (!"RFC1994 Challenge".equals(challengeJson.getString("type"))) {
+                throw new SecurityException("Unknown user.");
+            }
+            RFC1994Challenge challenge = new RFC1994Challenge("");
+            challenge.deserialize(challengeJson);
+            byte[] challengeBytes = Base64.getDecoder().decode(challenge.getChallenge());
+            channel.sendMessage(new RFC1994Response(RFC1994Response.computeHash(password, challengeBytes)));
+
+            RFC1994Result result = new RFC1994Result(false);
+            result.deserialize(channel.receiveMessage());
+            if (!result.getResult()) {
+                throw new SecurityException("CHAP failed.");
+            }
+        } catch (Exception e) {
+            channel.close();
+            throw e;
+        }
+        KDCSession session = new KDCSession(channel, user);
+        session.startReader();
+        return session;
+    }
+
+    /**
+     * Asks for a ticket for a service. The session key in the response is
+     * encrypted under the user's password-derived key.
+     *
+     * @param service The service to request a ticket for.
+     * @return The response, completed when the KDC answers.
+     */
+    public CompletableFuture<TicketResponse> requestTicket(String service) {
+        long id = nextId.getAndIncrement();
+        return send(id, (JSONObject) new TicketRequest(service, user, id).toJSONType());
+    }
+
+    /**
+     * Asks for a service ticket with a ticket-granting ticket. The session
+     * key in the response is encrypted under the TGT session key.
+     *
+     * @param tgt The ticket-granting ticket.
+     * @param tgtKey The TGT session key.
+     * @param service The service to request a ticket for.
+     * @return The response, completed when the KDC answers.
+     */
+    public CompletableFuture<TicketResponse> requestServiceTicket(Ticket tgt, SecretKeySpec tgtKey, String service) {
+        long id = nextId.getAndIncrement();
+        try {
+            TgsRequest req = new TgsRequest(service, tgt, TgsHandler.buildAuthenticator(user, tgtKey));
+            req.setRequestId(id);
+            return send(id, (JSONObject) req.toJSONType());
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @return how many requests are waiting for an answer.
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    public boolean isOpen() {
+        return failure == null;
+    }
+
+    private CompletableFuture<TicketResponse> send(long id, JSONObject request) {
+        CompletableFuture<TicketResponse> future = new CompletableFuture<>();
+        if (failure != null) {
+            future.completeExceptionally(failure);
+            return future;
+        }
+        pending.put(id, future);
+        synchronized (channel) {
+            channel.sendMessage(request);
+        }
+        if (failure != null && pending.remove(id) != null) {
+            future.completeExceptionally(failure);
+        }
+        return future;
+    }
+
+    private void startReader() {
+        Thread.ofVirtual().name("kdc-session-" + user).start(() -> {
+            try {
+                while (true) {
+                    JSONObject frame = channel.receiveMessage();
+                    Long id = frame.containsKey("request-id") ? frame.getLong("request-id") : null;
+                    CompletableFuture<TicketResponse> future = id == null ? null : pending.remove(id);
+                    if (future == null) {
+                        continue;
+                    }
+                    if ("Ticket Error".equals(frame.getString("type"))) {
+                        TicketError error = new TicketError(null, null);
+                        error.deserialize(frame);
+                        future.completeExceptionally(new SecurityException(error.getError()));
+                    } else {
+                        TicketResponse resp = new TicketResponse(null, null);
+                        resp.deserialize(frame);
+                        future.complete(resp);
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (Exception e) {
+                fail(new IOException("Bad response on KDC session: " + e.getMessage(), e));
+            }
+        });
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        for (Long id : pending.keySet()) {
+            CompletableFuture<TicketResponse> future = pending.remove(id);
+            if (future != null) {
+                future.completeExceptionally(e);
+            }
+        }
+        channel.close();
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("KDC session closed."));
+    }
+}
@@ -0,0 +1,120 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.ConsistentHashRing;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.util.Tuple;
+
+/**
+ * The KDC pool described by hosts.json, and which KDC serves a principal.
+ *
+ * A hosts entry with a "shard" field belongs to the pool; entries sharing a
+ * shard id are addresses of the same shard. Principals are spread over the
+ * shard ids with a {@link ConsistentHashRing}, the same ring
+ * {@code kdcd.SecretsSplitter} uses to split secrets.json, so a principal
+ * always goes to the KDC holding its secret. For example:
+ *
+ * <pre>
+ * { "host-name" : "kdcd-a", "address" : "127.0.0.1", "port" : 5000, "shard" : "a" },
+ * { "host-name" : "kdcd-b", "address" : "127.0.0.1", "port" : 5010, "shard" : "b" }
+ * </pre>
+ *
+ * Without any "shard" entries every principal goes to the "kdcd" entry, as
+ * before.
+ */
+public class KdcShardMap {
+    public static final String KDC_HOST = "kdcd";
+
+    private final ConsistentHashRing<List<Tuple<String, Integer>>> ring = new ConsistentHashRing<>();
+    private final Tuple<String, Integer> single;
+
+    private KdcShardMap(Map<String, List<Tuple<String, Integer>>> shards, Tuple<String, Integer> single) {
+        for (Map.Entry<String, List<Tuple<String, Integer>>> e : shards.entrySet()) {
+            ring.add(e.getKey(), Collections.unmodifiableList(e.getValue()));
+        }
+        this.single = single;
+    }
+
+    /**
+     * Reads the KDC pool from a hosts file.
+     * @param hostsFile the hosts.json file.
+     * @return the shard map.
+     * @throws IOException if the file cannot be read or names no KDC.
+     */
+    public static KdcShardMap load(File hostsFile) throws IOException {
+        JSONObject root = JsonIO.readObject(hostsFile);
+        JSONArray hosts = root == null ? null : root.getArray("hosts");
+        if (hosts == null) {
+            throw new IOException("No 'hosts' array found in " + hostsFile);
+        }
+        Map<String, List<Tuple<String, Integer>>> shards = new LinkedHashMap<>();
+        Tuple<String, Integer> single = null;
+        for (int i = 0; i < hosts.size(); i++) {
+            JSONObject host = hosts.getObject(i);
+            Tuple<String, Integer> addr = new Tuple<>(host.getString("address"), host.getInt("port"));
+            if (host.containsKey("shard")) {
+                shards.computeIfAbsent(host.getString("shard"), k -> new ArrayList<>()).add(addr);
+            } else if (KDC_HOST.equals(host.getString("host-name"))) {
+                single = addr;
+            }
+        }
+        if (shards.isEmpty() && single == null) {
+            throw new IOException("No KDC found in " + hostsFile);
+        }
+        return new KdcShardMap(shards, single);
+    }
+
+    /**
+     * @return true if hosts.json describes a pool of KDC shards.
+     */
+    public boolean isSharded() {
+        return ring.size() > 0;
+    }
+
+    /**
+     * @return the shard ids, sorted.
+     */
+    public List<String> getShards() {
+        return ring.getNodeIds();
+    }
+
+    /**
+     * Returns the shard a principal belongs to.
+     * @param principal the user principal.
+     * @return the shard id, or null when the KDC is not sharded.
+     */
+    public String shardOf(String principal) {
+        return ring.getNodeId(principal);
+    }
+
+    /**
+     * Returns the KDC to send a principal's requests to: the first address
+     * of its shard. Ticket-granting requests are routed by the user, not the
+     * service, so they reach the shard that issued the TGT.
+     * @param principal the user principal.
+     * @return the KDC address and port.
+     */
+    public Tuple<String, Integer> route(String principal) {
+        List<Tuple<String, Integer>> addrs = ring.get(principal);
+        return addrs == null ? single : addrs.get(0);
+    }
+
+    /**
+     * Returns every address of a principal's shard.
+     * @param principal the user principal.
+     * @return the addresses, the first being the one {@link #route} picks.
+     */
+    public List<Tuple<String, Integer>> addresses(String principal) {
+        List<Tuple<String, Integer>> addrs = ring.get(principal);
+        return addrs == null ? List.of(single) : addrs;
+    }
+}
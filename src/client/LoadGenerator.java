@@ -0,0 +1,428 @@
+package client;
+
+import java.io.File;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import common.Channel;
+import common.CryptoUtils;
+import common.FrameCodec;
+import common.LatencyHistogram;
+import common.TicketRequest;
+import common.TicketResponse;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.net.hostdb.HostsDatabase;
+import merrimackutil.util.Tuple;
+import protocol.RFC1994Challenge;
+import protocol.RFC1994Claim;
+import protocol.RFC1994Response;
+import protocol.RFC1994Result;
+
+/**
+ * Headless load generator for the KDC and the echo service.
+ *
+ * Every session runs the full client flow: CHAP with the KDC, a TicketRequest
+ * for the service, the service handshake and then a number of echo messages.
+ * Two modes are supported:
+ *
+ * <ul>
+ * <li>closed: a fixed number of virtual users each run sessions back to back,
+ * optionally paced to one session per --interval-ms. With pacing, latencies
+ * are corrected for coordinated omission by back-filling the samples a
+ * stalled user never sent.
+ * <li>open: sessions arrive at a fixed --rate regardless of how fast earlier
+ * ones complete, with at most --users in flight. The first phase and the
+ * whole session are measured from the intended start time, so queueing
+ * delay caused by a slow server is not hidden.
+ * </ul>
+ *
+ * With --kdc-sessions true, ticket requests go over {@link KDCSession}s kept
+ * open between sessions, one per concurrent session, so CHAP is only
+ * measured when a KDC session has to be opened.
+ *
+ * With --window N, each session's echo messages are pipelined with up to N
+ * awaiting a reply; the default of 1 waits a round trip per message.
+ *
+ * usage: LoadGenerator [--mode closed|open] [--users N] [--rate R]
+ *        [--duration S] [--messages M] [--interval-ms I] [--user U]
+ *        [--password P] [--service S] [--kdc host:port]
+ *        [--service-addr host:port] [--kdc-sessions true|false]
+ *        [--window N]
+ */
+public class LoadGenerator {
+
+    /**
+     * The measured phases of a session.
+     */
+    private enum Phase { CHAP, TICKET, HANDSHAKE, ECHO, SESSION }
+
+    private String mode = "closed";
+    private int users = 16;
+    private double rate = 50.0;
+    private int durationSeconds = 30;
+    private int messages = 10;
+    private long intervalMs = 0;
+    private String user = "alice";
+    private String password = "password";
+    private String service = "echoservice";
+    private String kdcHost = "127.0.0.1";
+    private int kdcPort = 5000;
+    private boolean kdcGiven = false;
+    private String serviceHost = "127.0.0.1";
+    private int servicePort = 5001;
+    private boolean kdcSessions = false;
+    private int window = 1;
+    private final Queue<KDCSession> idleKdcSessions = new ConcurrentLinkedQueue<>();
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[Phase.values().length];
+    private final AtomicLong[] errors = new AtomicLong[Phase.values().length];
+    private final AtomicLong sessionsCompleted = new AtomicLong();
+    private final AtomicLong messagesCompleted = new AtomicLong();
+
+    public LoadGenerator() {
+        for (Phase p : Phase.values()) {
+            latency[p.ordinal()] = new LatencyHistogram(p.name().toLowerCase());
+            errors[p.ordinal()] = new AtomicLong();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator gen = new LoadGenerator();
+        if (!gen.parseArgs(args)) {
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        if ("open".equals(gen.mode)) {
+            gen.runOpen();
+        } else {
+            gen.runClosed();
+        }
+        gen.report(System.nanoTime() - start);
+        System.exit(0);
+    }
+
+    private boolean parseArgs(String[] args) {
+        loadHosts();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String opt = args[i];
+                if (i + 1 >= args.length) {
+                    System.err.println("Missing value for " + opt);
+                    return false;
+                }
+                String val = args[++i];
+                switch (opt) {
+                    case "--mode": mode = val; break;
+                    case "--users": users = Integer.parseInt(val); break;
+                    case "--rate": rate = Double.parseDouble(val); break;
+                    case "--duration": durationSeconds = Integer.parseInt(val); break;
+                    case "--messages": messages = Integer.parseInt(val); break;
+                    case "--interval-ms": intervalMs = Long.parseLong(val); break;
+                    case "--user": user = val; break;
+                    case "--password": password = val; break;
+                    case "--service": service = val; break;
+                    case "--kdc-sessions": kdcSessions = Boolean.parseBoolean(val); break;
+                    case "--window": window = Integer.parseInt(val); break;
+                    case "--kdc":
+                        kdcGiven = true;
+                        kdcHost = val.substring(0, val.lastIndexOf(':'));
+                        kdcPort = Integer.parseInt(val.substring(val.lastIndexOf(':') + 1));
+                        break;
+                    case "--service-addr":
+                        serviceHost = val.substring(0, val.lastIndexOf(':'));
+                        servicePort = Integer.parseInt(val.substring(val.lastIndexOf(':') + 1));
+                        break;
+                    default:
+                        System.err.println("Invalid argument: " + opt);
+                        return false;
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Invalid argument value: " + e.getMessage());
+            return false;
+        }
+        if (!kdcGiven) {
+            routeKdc();
+        }
+        if (!"open".equals(mode) && !"closed".equals(mode)) {
+            System.err.println("Mode must be open or closed.");
+            return false;
+        }
+        return users > 0 && rate > 0 && durationSeconds > 0 && messages >= 0 && window > 0;
+    }
+
+    /**
+     * Picks up the KDC and service addresses from hosts.json when present.
+     */
+    private void loadHosts() {
+        File file = new File("hosts.json");
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            HostsDatabase db = new HostsDatabase(file);
+            if (db.hostKnown("kdcd")) {
+                kdcHost = db.getAddress("kdcd");
+                kdcPort = db.getPort("kdcd");
+            }
+            if (db.hostKnown(service)) {
+                serviceHost = db.getAddress(service);
+                servicePort = db.getPort(service);
+            }
+        } catch (Exception e) {
+            System.err.println("Ignoring unreadable hosts.json: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the load to the KDC shard of --user when hosts.json describes a
+     * pool of KDC shards.
+     */
+    private void routeKdc() {
+        File file = new File("hosts.json");
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            KdcShardMap shards = KdcShardMap.load(file);
+            if (shards.isSharded()) {
+                Tuple<String, Integer> kdc = shards.route(user);
+                kdcHost = kdc.getFirst();
+                kdcPort = kdc.getSecond();
+                System.out.println("🧭 Routing " + user + " to KDC shard " + shards.shardOf(user));
+            }
+        } catch (Exception e) {
+            System.err.println("Ignoring unreadable hosts.json: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closed loop: each virtual user starts its next session when the
+     * previous one finishes, or at its next pacing slot if pacing is on.
+     */
+    private void runClosed() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long interval = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
+        for (int u = 0; u < users; u++) {
+            pool.submit(() -> {
+                long next = System.nanoTime();
+                while (next < deadline) {
+                    runSession(System.nanoTime(), interval);
+                    if (interval > 0) {
+                        // Slots missed while stalled are not made up with a
+                        // burst; the histograms back-fill them instead.
+                        next = Math.max(next + interval, System.nanoTime());
+                        sleepUntil(next);
+                    } else {
+                        next = System.nanoTime();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(durationSeconds + 60L, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Open loop: sessions are scheduled at a fixed arrival rate. If all
+     * --users slots are busy the arrival waits, and that wait is charged to
+     * the session because it is measured from the intended start.
+     */
+    private void runOpen() throws InterruptedException {
+        long period = (long) (1e9 / rate);
+        long begin = System.nanoTime();
+        long deadline = begin + TimeUnit.SECONDS.toNanos(durationSeconds);
+        Semaphore inFlight = new Semaphore(users);
+        ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
+        for (long i = 0; ; i++) {
+            long intended = begin + i * period;
+            if (intended >= deadline) {
+                break;
+            }
+            sleepUntil(intended);
+            inFlight.acquire();
+            pool.submit(() -> {
+                try {
+                    runSession(intended, 0);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(60L, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Runs one full session.
+     *
+     * @param measuredFrom When the session is considered to have started,
+     *        the intended start in open loop mode.
+     * @param expectedInterval The pacing interval for coordinated omission
+     *        correction, or 0.
+     */
+    private void runSession(long measuredFrom, long expectedInterval) {
+        Phase phase = Phase.CHAP;
+        try {
+            if (kdcSessions) {
+                runSessionOverKdcSession(measuredFrom, expectedInterval);
+                return;
+            }
+            Channel kdc = new Channel(new Socket(kdcHost, kdcPort));
+            kdc.setCodec(FrameCodec.BINARY);
+            TicketResponse resp;
+            String sessionKey;
+            try {
+                authenticate(kdc);
+                record(Phase.CHAP, System.nanoTime() - measuredFrom, expectedInterval);
+
+                phase = Phase.TICKET;
+                long t = System.nanoTime();
+                kdc.sendMessage(new TicketRequest(service, user));
+                JSONObject respJson = kdc.receiveMessage();
+                resp = new TicketResponse(null, null);
+                resp.deserialize(respJson);
+                if (resp.getSessionKey() == null || resp.getTicket() == null) {
+                    throw new IllegalStateException("KDC did not issue a ticket.");
+                }
+                sessionKey = CryptoUtils.decryptAESGCM(resp.getSessionKey(), password);
+                record(Phase.TICKET, System.nanoTime() - t, expectedInterval);
+            } finally {
+                kdc.close();
+            }
+
+            phase = Phase.HANDSHAKE;
+            long t = System.nanoTime();
+            try (ServiceSession session = ServiceSession.connect(serviceHost, servicePort, user, service,
+                    resp.getTicket(), sessionKey)) {
+                record(Phase.HANDSHAKE, System.nanoTime() - t, expectedInterval);
+
+                phase = Phase.ECHO;
+                runEcho(session, expectedInterval);
+            }
+            record(Phase.SESSION, System.nanoTime() - measuredFrom, expectedInterval);
+            sessionsCompleted.incrementAndGet();
+        } catch (Exception e) {
+            errors[phase.ordinal()].incrementAndGet();
+            errors[Phase.SESSION.ordinal()].incrementAndGet();
+        }
+    }
+
+    /**
+     * Sends the session's echo messages, pipelined with up to --window of
+     * them in flight. Each message is measured from when it was sent.
+     */
+    private void runEcho(ServiceSession session, long expectedInterval) throws Exception {
+        List<String> batch = new ArrayList<>(messages);
+        for (int m = 0; m < messages; m++) {
+            batch.add("load test message " + m);
+        }
+        session.sendPipelined(batch, window, (index, reply, latencyNanos) -> {
+            record(Phase.ECHO, latencyNanos, expectedInterval);
+            messagesCompleted.incrementAndGet();
+        });
+    }
+
+    /**
+     * Runs one session taking its ticket from a reused KDC session.
+     */
+    private void runSessionOverKdcSession(long measuredFrom, long expectedInterval) {
+        Phase phase = Phase.CHAP;
+        KDCSession kdc = idleKdcSessions.poll();
+        try {
+            if (kdc == null || !kdc.isOpen()) {
+                kdc = KDCSession.open(kdcHost, kdcPort, user, password);
+                record(Phase.CHAP, System.nanoTime() - measuredFrom, expectedInterval);
+            }
+
+            phase = Phase.TICKET;
+            long t = System.nanoTime();
+            TicketResponse resp = kdc.requestTicket(service).get();
+            String sessionKey = CryptoUtils.decryptAESGCM(resp.getSessionKey(), password);
+            record(Phase.TICKET, System.nanoTime() - t, expectedInterval);
+            idleKdcSessions.add(kdc);
+            kdc = null;
+
+            phase = Phase.HANDSHAKE;
+            t = System.nanoTime();
+            try (ServiceSession session = ServiceSession.connect(serviceHost, servicePort, user, service,
+                    resp.getTicket(), sessionKey)) {
+                record(Phase.HANDSHAKE, System.nanoTime() - t, expectedInterval);
+
+                phase = Phase.ECHO;
+                runEcho(session, expectedInterval);
+            }
+            record(Phase.SESSION, System.nanoTime() - measuredFrom, expectedInterval);
+            sessionsCompleted.incrementAndGet();
+        } catch (Exception e) {
+            if (kdc != null) {
+                kdc.close();
+            }
+            errors[phase.ordinal()].incrementAndGet();
+            errors[Phase.SESSION.ordinal()].incrementAndGet();
+        }
+    }
+
+    private void authenticate(Channel kdc) throws Exception {
+        kdc.sendMessage(new RFC1994Claim(user));
+        JSONObject challengeJson = kdc.receiveMessage();
+        if (!"RFC1994 Challenge".equals(challengeJson.getString("type"))) {
+            throw new SecurityException("Unknown user.");
+        }
+        RFC1994Challenge challenge = new RFC1994Challenge("");
+        challenge.deserialize(challengeJson);
+        byte[] challengeBytes = Base64.getDecoder().decode(challenge.getChallenge());
+        kdc.sendMessage(new RFC1994Response(RFC1994Response.computeHash(password, challengeBytes)));
+
+        RFC1994Result result = new RFC1994Result(false);
+        result.deserialize(kdc.receiveMessage());
+        if (!result.getResult()) {
+            throw new SecurityException("CHAP failed.");
+        }
+    }
+
+    private void record(Phase phase, long nanos, long expectedInterval) {
+        latency[phase.ordinal()].recordWithExpectedInterval(nanos, expectedInterval);
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        if ("open".equals(mode)) {
+            System.out.printf("mode: open, %.1f sessions/s, at most %d in flight, %d s%n", rate, users, durationSeconds);
+        } else {
+            System.out.printf("mode: closed, %d users, pacing %s, %d s%n", users,
+                    intervalMs > 0 ? intervalMs + " ms" : "none", durationSeconds);
+        }
+        System.out.printf("sessions: %d ok, %d failed, %.1f sessions/s, %.1f messages/s%n",
+                sessionsCompleted.get(), errors[Phase.SESSION.ordinal()].get(),
+                sessionsCompleted.get() / seconds, messagesCompleted.get() / seconds);
+        System.out.printf("%-10s %8s %7s %9s %9s %9s %9s %9s%n",
+                "phase", "count", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Phase p : Phase.values()) {
+            LatencyHistogram h = latency[p.ordinal()];
+            System.out.printf("%-10s %8d %7d %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                    h.getName(), h.getCount(), errors[p.ordinal()].get(),
+                    h.getValueAtQuantile(0.5) / 1e6, h.getValueAtQuantile(0.9) / 1e6,
+                    h.getValueAtQuantile(0.99) / 1e6, h.getValueAtQuantile(0.999) / 1e6,
+                    h.getMax() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package client;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import common.Channel;
+import common.CryptoPrimitives;
+import common.CryptoUtils;
+import common.FrameCodec;
+import common.Randomness;
+import common.RecordProtection;
+import common.Ticket;
+import common.TicketIssuer;
+import common.service.ClientHello;
+import common.service.ClientResponse;
+import common.service.HandshakeResponse;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * A headless client session with a Kerberized service.
+ *
+ * Performs the ClientHello / HandshakeResponse / ClientResponse handshake
+ * with a service ticket and then exchanges encrypted messages, either one
+ * round trip at a time or pipelined. Every message is a record with a
+ * sequence number that the service echoes on its reply, encrypted under a
+ * per-connection record key with an IV derived from that number (see
+ * {@link RecordProtection}). It does no console
+ * I/O, so it can be driven by the interactive client as well as by the load
+ * generator and benchmarks.
+ */
+public class ServiceSession implements AutoCloseable {
+    private final Channel channel;
+    private final String user;
+    private final String service;
+    private final SecretKeySpec sessionKey;
+    private SecretKeySpec recordKey;
+    private long nextSeq = 1;
+
+    /**
+     * Wraps an open channel to a service. Call {@link #handshake(Ticket)}
+     * before sending messages.
+     *
+     * @param channel The channel to the service.
+     * @param user The client principal.
+     * @param service The service name, checked by the service on each message.
+     * @param base64SessionKey The session key from the ticket response.
+     */
+    public ServiceSession(Channel channel, String user, String service, String base64SessionKey) {
+        this.channel = channel;
+        this.user = user;
+        this.service = service;
+        this.sessionKey = new SecretKeySpec(Base64.getDecoder().decode(base64SessionKey), "AES");
+    }
+
+    /**
+     * Connects to a service and completes the handshake.
+     *
+     * @param host The service address.
+     * @param port The service port.
+     * @param user The client principal.
+     * @param service The service name.
+     * @param ticket The service ticket.
+     * @param base64SessionKey The session key from the ticket response.
+     * @return An established session.
+     * @throws Exception If the connection or the handshake fails.
+     */
+    public static ServiceSession connect(String host, int port, String user, String service,
+            Ticket ticket, String base64SessionKey) throws Exception {
+        Channel channel = new Channel(new Socket(host, port));
+        channel.setCodec(FrameCodec.BINARY);
+        ServiceSession session = new ServiceSession(channel, user, service, base64SessionKey);
+        try {
+            session.handshake(ticket);
+        } catch (Exception e) {
+            session.close();
+            throw e;
+        }
+        return session;
+    }
+
+    /**
+     * Runs the service handshake: sends the ticket with a fresh nonce Nc,
+     * checks that the service returned enc(Nc) under the session key, and
+     * proves knowledge of the key by returning enc(Ns).
+     *
+     * @param ticket The service ticket.
+     * @throws Exception If the service fails to prove the session key.
+     */
+    public void handshake(Ticket ticket) throws Exception {
+        byte[] nonceClient = Randomness.nonce();
+        String base64Nc = Base64.getEncoder().encodeToString(nonceClient);
+        channel.sendMessage(new ClientHello((JSONObject) ticket.toJSONType(), base64Nc));
+
+        HandshakeResponse handshake = new HandshakeResponse("", "", "", "");
+        handshake.deserialize(channel.receiveMessage());
+        String encNc = TicketIssuer.combineIVandCipher(handshake.getIv(), handshake.getEncryptedNonce());
+        byte[] decrypted = CryptoUtils.decryptAESGCMToBytes(encNc, sessionKey);
+        if (!Base64.getEncoder().encodeToString(decrypted).equals(base64Nc)) {
+            throw new SecurityException("❌ Server failed to prove knowledge of session key.");
+        }
+
+        byte[] nonceServer = Base64.getDecoder().decode(handshake.getNonce());
+        recordKey = RecordProtection.deriveKey(sessionKey, nonceClient, nonceServer);
+
+        byte[] nonceR = Randomness.nonce();
+        byte[] responseIv = Randomness.iv();
+        byte[] encNs = encrypt(responseIv, nonceServer);
+        channel.sendMessage(new ClientResponse(
+            Base64.getEncoder().encodeToString(nonceR),
+            user,
+            Base64.getEncoder().encodeToString(responseIv),
+            Base64.getEncoder().encodeToString(encNs)
+        ));
+    }
+
+    /**
+     * Sends one encrypted message and waits for the service's reply.
+     *
+     * @param message The plaintext message.
+     * @return The decrypted reply.
+     * @throws Exception If the exchange or decryption fails.
+     */
+    public String send(String message) throws Exception {
+        long seq = nextSeq++;
+        channel.sendMessage(seal(seq, message));
+        return open(seq, channel.receiveMessage());
+    }
+
+    /**
+     * Receives each reply of a pipelined exchange.
+     */
+    public interface ReplyListener {
+        /**
+         * @param index The position of the message in the batch.
+         * @param reply The decrypted reply.
+         * @param latencyNanos The time from sending the message to its reply.
+         */
+        void onReply(int index, String reply, long latencyNanos);
+    }
+
+    /**
+     * Streams messages to the service with up to {@code window} of them
+     * awaiting a reply, instead of waiting a round trip for each. The
+     * service answers in order, so replies are matched to messages by their
+     * sequence numbers.
+     *
+     * @param messages The plaintext messages.
+     * @param window The most messages in flight at once, at least 1.
+     * @return The decrypted replies, in message order.
+     * @throws Exception If the exchange or decryption fails.
+     */
+    public List<String> sendPipelined(List<String> messages, int window) throws Exception {
+        List<String> replies = new ArrayList<>(messages.size());
+        sendPipelined(messages, window, (index, reply, latencyNanos) -> replies.add(reply));
+        return replies;
+    }
+
+    /**
+     * Streams messages as {@link #sendPipelined(List, int)} does, handing
+     * each reply to a listener as it arrives.
+     *
+     * @param messages The plaintext messages.
+     * @param window The most messages in flight at once, at least 1.
+     * @param listener Receives each reply.
+     * @throws Exception If the exchange or decryption fails.
+     */
+    public void sendPipelined(List<String> messages, int window, ReplyListener listener) throws Exception {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be at least 1.");
+        }
+        long firstSeq = nextSeq;
+        long[] sentAt = new long[messages.size()];
+        int sent = 0;
+        int received = 0;
+        while (received < messages.size()) {
+            if (sent < messages.size() && sent - received < window) {
+                sentAt[sent] = System.nanoTime();
+                channel.sendMessage(seal(nextSeq++, messages.get(sent)));
+                sent++;
+                // Keep filling the window before blocking on a reply.
+                continue;
+            }
+            String reply = open(firstSeq + received, channel.receiveMessage());
+            listener.onReply(received, reply, System.nanoTime() - sentAt[received]);
+            received++;
+        }
+    }
+
+    /**
+     * Encrypts a message as a sequence-numbered record. Its IV is derived
+     * from the sequence number, so the record carries none.
+     */
+    private JSONObject seal(long seq, String message) throws Exception {
+        JSONObject payload = new JSONObject();
+        payload.put("user", user);
+        payload.put("service", service);
+        payload.put("message", message);
+
+        byte[] encrypted = CryptoPrimitives.encryptGcm(recordKey,
+                RecordProtection.iv(RecordProtection.CLIENT_TO_SERVICE, seq),
+                payload.toJSON().getBytes(StandardCharsets.UTF_8));
+
+        JSONObject msgObj = new JSONObject();
+        msgObj.put("message", Base64.getEncoder().encodeToString(encrypted));
+        msgObj.put("seq", seq);
+        return msgObj;
+    }
+
+    /**
+     * Decrypts the reply to the record with the given sequence number.
+     */
+    private String open(long seq, JSONObject respJson) throws Exception {
+        if (!respJson.containsKey("seq") || respJson.getString("message") == null) {
+            throw new IOException("Unexpected reply from service.");
+        }
+        if (respJson.getLong("seq") != seq) {
+            throw new IOException("Reply " + respJson.getLong("seq") + " out of order, expected " + seq + ".");
+        }
+        byte[] plain = CryptoPrimitives.decryptGcm(recordKey,
+                RecordProtection.iv(RecordProtection.SERVICE_TO_CLIENT, seq),
+                Base64.getDecoder().decode(respJson.getString("message")));
+        return new String(plain, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        channel.close();
+    }
+
+    private byte[] encrypt(byte[] iv, byte[] plain) throws Exception {
+        return CryptoPrimitives.encryptGcm(sessionKey, iv, plain);
+    }
+}
@@ -19,7 +19,8 @@ public class UsageMessage implements JSONSerializable {
             "options: \n" +
             "    -h, --hosts       Set the hosts file.\n" +
             "    -u, --user        The user name.\n" +
-            "    -s, --service     The name of the service.\n");
+            "    -s, --service     The name of the service.\n" +
+            "    -k, --kdc         KDC endpoints, host:port[,host:port...].\n");
     }
 
     /**
@@ -0,0 +1,94 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP endpoint exposing {@link Metrics}, bound to the loopback
+ * interface only.
+ *
+ * <ul>
+ * <li>GET /metrics: Prometheus text format.
+ * <li>GET /metrics.json: the same data as JSON.
+ * </ul>
+ */
+public class AdminServer {
+    private final HttpServer server;
+
+    /**
+     * Creates the admin server; call {@link #start()} to begin serving.
+     * @param port the loopback port to listen on.
+     * @throws IOException if the port cannot be bound.
+     */
+    public AdminServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "admin-http");
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    public void start() {
+        server.start();
+        Log.info("Admin endpoint listening on http://127.0.0.1:" + server.getAddress().getPort() + "/metrics");
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * Starts an admin server if a port is configured. Failures are logged and
+     * do not stop the daemon.
+     * @param port the configured port, 0 or less to disable.
+     */
+    public static void startIfConfigured(int port) {
+        if (port <= 0) {
+            return;
+        }
+        try {
+            new AdminServer(port).start();
+        } catch (IOException e) {
+            Log.error("Could not start admin endpoint on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            String body;
+            String contentType;
+            if (path.equals("/metrics")) {
+                body = Metrics.toPrometheus();
+                contentType = "text/plain; version=0.0.4; charset=utf-8";
+            } else if (path.equals("/metrics.json")) {
+                body = Metrics.toJSON().getFormattedJSON();
+                contentType = "application/json";
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
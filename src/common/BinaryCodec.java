@@ -0,0 +1,296 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidObjectException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * A compact binary encoding of the JSON protocol messages.
+ *
+ * Well known keys are sent as one byte dictionary ids, integers as zig-zag
+ * varints and strings that are canonical Base64 (nonces, IVs, ciphertexts,
+ * keys) as their raw bytes. Decoding rebuilds the exact same JSONObject the
+ * JSON parser would, so message classes need no changes: Base64 fields come
+ * back as the same strings and numbers come back as Doubles.
+ *
+ * Frames come from the network, so decoding treats every count and length
+ * as hostile: objects and arrays may nest at most {@link #MAX_DEPTH} deep,
+ * and any malformed input is reported as an InvalidObjectException.
+ */
+public final class BinaryCodec {
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_BASE64 = 2;
+    private static final int TAG_INTEGER = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_TRUE = 5;
+    private static final int TAG_FALSE = 6;
+    private static final int TAG_OBJECT = 7;
+    private static final int TAG_ARRAY = 8;
+
+    private static final int KEY_LITERAL = 0xFF;
+
+    /** How deep objects and arrays may nest in a decoded message. */
+    public static final int MAX_DEPTH = 32;
+
+    // Keys used by the RFC1994, ticket, service handshake and echo messages.
+    // Ids are positions in this list, so only ever append to it.
+    private static final String[] KEYS = {
+        "type", "id", "challenge", "hash", "result", "service", "username",
+        "creationTime", "validityTime", "iv", "encryptedSessionKey",
+        "sessionKey", "ticket", "nonce", "clientId", "encryptedNonce",
+        "message", "tgt", "authenticator", "user", "timestamp", "data",
+        "signature", "error", "request-id", "seq"
+    };
+    private static final Map<String, Integer> KEY_IDS = new HashMap<>();
+
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            KEY_IDS.put(KEYS[i], i);
+        }
+    }
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Encodes a JSON object.
+     * @param obj the object to encode.
+     * @return the encoded bytes.
+     */
+    public static byte[] encode(JSONObject obj) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        writeObject(out, obj);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a JSON object.
+     * @param data the encoded bytes.
+     * @return the decoded object.
+     * @throws InvalidObjectException if the data is not a valid encoding.
+     */
+    public static JSONObject decode(byte[] data) throws InvalidObjectException {
+        Reader in = new Reader(data);
+        try {
+            JSONObject obj = in.readObject(0);
+            if (in.pos != data.length) {
+                throw new InvalidObjectException("Trailing bytes after binary message");
+            }
+            return obj;
+        } catch (IndexOutOfBoundsException e) {
+            throw new InvalidObjectException("Truncated binary message");
+        } catch (RuntimeException e) {
+            throw new InvalidObjectException("Malformed binary message: " + e);
+        }
+    }
+
+    private static void writeObject(ByteArrayOutputStream out, JSONObject obj) {
+        writeVarint(out, obj.size());
+        for (Map.Entry<String, Object> entry : obj.entrySet()) {
+            Integer keyId = KEY_IDS.get(entry.getKey());
+            if (keyId != null) {
+                out.write(keyId);
+            } else {
+                out.write(KEY_LITERAL);
+                writeString(out, entry.getKey());
+            }
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            out.write(TAG_NULL);
+        } else if (value instanceof String) {
+            String str = (String) value;
+            byte[] raw = decodeCanonicalBase64(str);
+            if (raw != null) {
+                out.write(TAG_BASE64);
+                writeVarint(out, raw.length);
+                out.write(raw, 0, raw.length);
+            } else {
+                out.write(TAG_STRING);
+                writeString(out, str);
+            }
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Long || value instanceof Integer) {
+            out.write(TAG_INTEGER);
+            writeVarint(out, zigZag(((Number) value).longValue()));
+        } else if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            if (d == Math.rint(d) && Math.abs(d) < (double) (1L << 53)) {
+                out.write(TAG_INTEGER);
+                writeVarint(out, zigZag((long) d));
+            } else {
+                out.write(TAG_DOUBLE);
+                long bits = Double.doubleToLongBits(d);
+                for (int i = 7; i >= 0; i--) {
+                    out.write((int) (bits >>> (i * 8)));
+                }
+            }
+        } else if (value instanceof JSONObject) {
+            out.write(TAG_OBJECT);
+            writeObject(out, (JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray arr = (JSONArray) value;
+            out.write(TAG_ARRAY);
+            writeVarint(out, arr.size());
+            for (Object item : arr) {
+                writeValue(out, item);
+            }
+        } else {
+            out.write(TAG_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    /**
+     * Returns the raw bytes of a string if it is canonical Base64, i.e. it
+     * re-encodes to exactly the same string, otherwise null.
+     */
+    private static byte[] decodeCanonicalBase64(String str) {
+        if (str.length() < 4 || str.length() % 4 != 0) {
+            return null;
+        }
+        try {
+            byte[] raw = Base64.getDecoder().decode(str);
+            return Base64.getEncoder().encodeToString(raw).equals(str) ? raw : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Cursor over an encoded message.
+     */
+    private static final class Reader {
+        private final byte[] data;
+        private int pos = 0;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        JSONObject readObject(int depth) throws InvalidObjectException {
+            if (depth >= MAX_DEPTH) {
+                throw new InvalidObjectException("Binary message nested too deeply");
+            }
+            long count = readLength();
+            JSONObject obj = new JSONObject();
+            for (long i = 0; i < count; i++) {
+                int keyId = data[pos++] & 0xFF;
+                String key;
+                if (keyId == KEY_LITERAL) {
+                    key = readString();
+                } else if (keyId < KEYS.length) {
+                    key = KEYS[keyId];
+                } else {
+                    throw new InvalidObjectException("Unknown key id " + keyId);
+                }
+                obj.put(key, readValue(depth + 1));
+            }
+            return obj;
+        }
+
+        Object readValue(int depth) throws InvalidObjectException {
+            int tag = data[pos++] & 0xFF;
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_STRING:
+                    return readString();
+                case TAG_BASE64:
+                    return Base64.getEncoder().encodeToString(readBytes());
+                case TAG_INTEGER:
+                    long v = readVarint();
+                    return Double.valueOf((double) ((v >>> 1) ^ -(v & 1)));
+                case TAG_DOUBLE:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits = (bits << 8) | (data[pos++] & 0xFF);
+                    }
+                    return Double.longBitsToDouble(bits);
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_OBJECT:
+                    return readObject(depth);
+                case TAG_ARRAY:
+                    if (depth >= MAX_DEPTH) {
+                        throw new InvalidObjectException("Binary message nested too deeply");
+                    }
+                    long count = readLength();
+                    JSONArray arr = new JSONArray();
+                    for (long i = 0; i < count; i++) {
+                        arr.add(readValue(depth + 1));
+                    }
+                    return arr;
+                default:
+                    throw new InvalidObjectException("Unknown value tag " + tag);
+            }
+        }
+
+        String readString() throws InvalidObjectException {
+            return new String(readBytes(), StandardCharsets.UTF_8);
+        }
+
+        byte[] readBytes() throws InvalidObjectException {
+            long len = readLength();
+            byte[] bytes = new byte[(int) len];
+            System.arraycopy(data, pos, bytes, 0, bytes.length);
+            pos += bytes.length;
+            return bytes;
+        }
+
+        /**
+         * Reads a count or length, which every element needs at least one
+         * byte for, so it can never exceed the bytes left.
+         */
+        long readLength() throws InvalidObjectException {
+            long len = readVarint();
+            if (len < 0 || len > data.length - pos) {
+                throw new InvalidObjectException("Invalid length " + len);
+            }
+            return len;
+        }
+
+        long readVarint() throws InvalidObjectException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = data[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new InvalidObjectException("Varint too long");
+        }
+    }
+}
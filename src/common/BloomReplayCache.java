@@ -0,0 +1,217 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link ReplayCache} whose memory is fixed by its configuration rather
+ * than by traffic, at the cost of occasionally refusing a fresh nonce.
+ *
+ * Nonces go into two rotating Bloom filters. New nonces are added to the
+ * current filter and both are checked; every age period the older filter
+ * is dropped and a fresh one takes its place, so a nonce is remembered for
+ * at least one and at most two periods. Each filter is sized for
+ * {@code capacity} nonces per period at half the target false-positive
+ * rate, since a check consults both:
+ *
+ * <pre>
+ *   m = -n ln(p/2) / (ln 2)^2 bits, rounded up to a power of two
+ *   k = round(m/n ln 2) hash functions
+ * </pre>
+ *
+ * Indexes come from one keyed 64-bit fingerprint by double hashing
+ * (Kirsch and Mitzenmacher). A false positive only ever refuses a fresh
+ * message; a replay within the period is always caught. If more than
+ * {@code capacity} nonces arrive in a period the rate rises above the
+ * target rather than memory growing, which the live estimate
+ * {@link #getFalsePositiveRate()} shows: the fraction of bits set in each
+ * filter raised to the power k.
+ *
+ * The locks are ReentrantLocks, as in {@link StripedReplayCache}, so
+ * virtual threads waiting on them do not pin their carriers.
+ */
+public class BloomReplayCache implements ReplayCache {
+    private static final int LOCKS = 64;
+    private static final double LN2 = Math.log(2);
+
+    private final int nonceSize;
+    private final long periodMillis;
+    private final int bits;
+    private final int hashes;
+    private final long seed = Randomness.secureRandom().nextLong();
+    private final ReentrantLock[] locks = new ReentrantLock[LOCKS];
+    private final ReentrantLock rotateLock = new ReentrantLock();
+    private volatile Filter current;
+    private volatile Filter previous;
+
+    /**
+     * @param nonceSize the length of every nonce in bytes.
+     * @param ageSeconds how long a nonce is remembered at least.
+     * @param capacity the nonces expected per age period.
+     * @param falsePositiveRate the target rate of fresh nonces refused.
+     * @throws IllegalArgumentException if a parameter is out of range.
+     */
+    public BloomReplayCache(int nonceSize, int ageSeconds, long capacity, double falsePositiveRate) {
+        if (nonceSize <= 0 || ageSeconds <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Nonce size, age and capacity must be positive.");
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1.");
+        }
+        this.nonceSize = nonceSize;
+        this.periodMillis = ageSeconds * 1000L;
+        double optimal = -capacity * Math.log(falsePositiveRate / 2) / (LN2 * LN2);
+        if (optimal > (1L << 30)) {
+            throw new IllegalArgumentException("Replay cache of " + (long) optimal + " bits is too large.");
+        }
+        this.bits = Math.max(64, Integer.highestOneBit((int) Math.ceil(optimal) - 1) << 1);
+        this.hashes = Math.max(1, (int) Math.round((double) bits / capacity * LN2));
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        long now = System.currentTimeMillis();
+        this.current = new Filter(bits, now);
+        this.previous = new Filter(bits, now - periodMillis);
+    }
+
+    @Override
+    public boolean containsNonce(byte[] nonce) {
+        long fp = StripedReplayCache.fingerprint(seed, nonce, nonceSize);
+        rotateIfDue();
+        return current.contains(fp) || previous.contains(fp);
+    }
+
+    @Override
+    public void addNonce(byte[] nonce) {
+        checkAndAdd(nonce);
+    }
+
+    @Override
+    public boolean checkAndAdd(byte[] nonce) {
+        long fp = StripedReplayCache.fingerprint(seed, nonce, nonceSize);
+        rotateIfDue();
+        // Two copies of one nonce take the same lock, so only one can pass.
+        ReentrantLock lock = locks[(int) (fp >>> 58)];
+        lock.lock();
+        try {
+            Filter filter = current;
+            if (previous.contains(fp)) {
+                return false;
+            }
+            return filter.add(fp);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the nonces added in the current and previous period.
+     */
+    @Override
+    public long size() {
+        return current.added.get() + previous.added.get();
+    }
+
+    /**
+     * @return the estimated chance that a fresh nonce is refused now.
+     */
+    public double getFalsePositiveRate() {
+        rotateIfDue();
+        double a = current.falsePositiveRate();
+        double b = previous.falsePositiveRate();
+        return 1 - (1 - a) * (1 - b);
+    }
+
+    /**
+     * @return the memory held by the filters in bytes.
+     */
+    public long getMemoryBytes() {
+        return 2L * bits / 8;
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    private void rotateIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - current.startMillis < periodMillis) {
+            return;
+        }
+        rotateLock.lock();
+        try {
+            Filter cur = current;
+            if (now - cur.startMillis < periodMillis) {
+                return;
+            }
+            // After a long quiet spell even the current filter is too old.
+            previous = now - cur.startMillis < 2 * periodMillis ? cur : new Filter(bits, now - periodMillis);
+            current = new Filter(bits, now);
+        } finally {
+            rotateLock.unlock();
+        }
+    }
+
+    /**
+     * One Bloom filter, shared by all threads; bits are set by CAS.
+     */
+    private final class Filter {
+        private final AtomicLongArray words;
+        private final long startMillis;
+        private final AtomicLong setBits = new AtomicLong();
+        private final AtomicLong added = new AtomicLong();
+
+        Filter(int bits, long startMillis) {
+            this.words = new AtomicLongArray(bits / 64);
+            this.startMillis = startMillis;
+        }
+
+        boolean contains(long fp) {
+            long h2 = StripedReplayCache.mix(fp) | 1;
+            int mask = bits - 1;
+            for (int i = 0; i < hashes; i++) {
+                int bit = (int) (fp + i * h2) & mask;
+                if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Sets the fingerprint's bits.
+         * @return true if any bit was newly set, false if all were already
+         *         set and the nonce is taken to be present.
+         */
+        boolean add(long fp) {
+            long h2 = StripedReplayCache.mix(fp) | 1;
+            int mask = bits - 1;
+            boolean changed = false;
+            for (int i = 0; i < hashes; i++) {
+                int bit = (int) (fp + i * h2) & mask;
+                int word = bit >>> 6;
+                long flag = 1L << bit;
+                while (true) {
+                    long w = words.get(word);
+                    if ((w & flag) != 0) {
+                        break;
+                    }
+                    if (words.compareAndSet(word, w, w | flag)) {
+                        setBits.incrementAndGet();
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+            if (changed) {
+                added.incrementAndGet();
+            }
+            return changed;
+        }
+
+        double falsePositiveRate() {
+            return Math.pow((double) setBits.get() / bits, hashes);
+        }
+    }
+}
@@ -2,20 +2,42 @@ package common;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 import merrimackutil.json.JsonIO;
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.types.JSONObject;
 import merrimackutil.json.types.JSONType;
 
-public class Channel implements JSONSerializable {
+public class Channel implements JSONSerializable, MessageSink {
     private final Socket socket;
-    private final BufferedReader reader;
+    private final DataInputStream input;
+    private final BufferedOutputStream output;
     private final PrintWriter writer;
+    // Codec for outgoing frames; by default replies mirror the peer.
+    private int codec = FrameCodec.LEGACY;
+    private boolean codecFixed = false;
 
     public Channel(Socket socket) throws IOException {
         this.socket = socket;
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        // Each frame goes out in a single flush; don't let Nagle hold back the
+        // second of two back-to-back frames until the peer's delayed ACK.
+        socket.setTcpNoDelay(true);
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = new BufferedOutputStream(socket.getOutputStream());
+        this.writer = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), true);
+    }
+
+    /**
+     * Fixes the codec used for outgoing frames. Clients call this to pick the
+     * wire format; servers leave it unset and answer in the codec of the last
+     * frame they received.
+     *
+     * @param codec One of the {@link FrameCodec} codecs.
+     */
+    public void setCodec(int codec) {
+        this.codec = codec;
+        this.codecFixed = true;
     }
 
     /**
@@ -24,9 +46,10 @@ public class Channel implements JSONSerializable {
      * 
      * @param message The message to send, as a JSONObject.
      */
+    @Override
     public void sendMessage(JSONObject jsonMessage) {
-        writer.println(jsonMessage.getFormattedJSON());
-        System.out.println("Sent: " + jsonMessage.getFormattedJSON());
+        writeFrame(FrameCodec.encode(codec, jsonMessage));
+        Log.debug(() -> "Sent: " + jsonMessage.toJSON());
     }
 
     /**
@@ -35,48 +58,119 @@ public class Channel implements JSONSerializable {
      * 
      * @param message The message to send, as a JSONSerializable object.
      */
+    @Override
     public void sendMessage(JSONSerializable message) {
-        // Use JsonIO.writeSerializedObject to serialize and send the JSON object
-        JsonIO.writeSerializedObject(message, writer);
-        System.out.println("Sent: " + message.toString());
+        JSONType json = message.toJSONType();
+        if (json instanceof JSONObject) {
+            writeFrame(FrameCodec.encode(codec, (JSONObject) json));
+        } else {
+            JsonIO.writeSerializedObject(message, writer);
+        }
+        Log.debug(() -> "Sent: " + json.toJSON());
     }
 
     /**
      * Receives a message from the channel.
      * 
-     * This method reads a line from the input stream of the socket, 
-     * deserializes it into a JSONObject, and returns it. If the connection 
-     * is closed by the peer, an IOException is thrown.
+     * This method reads one frame from the input stream of the socket, 
+     * either a legacy JSON line or a length-prefixed frame, decodes it into
+     * a JSONObject, and returns it. If the connection is closed by the peer,
+     * an IOException is thrown.
      * 
      * @return The received message as a JSONObject.
      * @throws IOException If the connection is closed by the peer.
      */
 
     public JSONObject receiveMessage() throws IOException {
-        String line = reader.readLine();
-        if (line == null) {
+        int kind = input.read();
+        if (kind < 0) {
             throw new IOException("Connection closed by peer");
         }
-        System.out.println("Received: " + line);
-        return JsonIO.readObject(line); // Deserialize received string into JSONObject
+
+        byte[] payload;
+        if (FrameCodec.isLengthPrefixed(kind)) {
+            int length = input.readInt();
+            if (length < 0 || length > FrameCodec.MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            payload = new byte[length];
+            input.readFully(payload);
+        } else {
+            payload = readLine(kind);
+            kind = FrameCodec.LEGACY;
+        }
+
+        if (!codecFixed) {
+            codec = kind;
+        }
+        JSONObject json = FrameCodec.decode(kind, payload);
+        Log.debug(() -> "Received: " + json.toJSON());
+        return json;
+    }
+
+    /**
+     * Reads the rest of a legacy newline delimited frame.
+     */
+    private byte[] readLine(int first) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b = first;
+        while (b != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed by peer");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+            if (line.size() > FrameCodec.MAX_FRAME_SIZE) {
+                throw new IOException("Frame too large");
+            }
+            b = input.read();
+        }
+        return line.toByteArray();
+    }
+
+    private void writeFrame(byte[] frame) {
+        try {
+            writer.flush();
+            output.write(frame);
+            output.flush();
+        } catch (IOException e) {
+            Log.warn("Error sending message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Makes a blocked {@link #receiveMessage()} fail with a
+     * SocketTimeoutException once the peer has been silent this long.
+     *
+     * @param millis The idle timeout in milliseconds, 0 to wait forever.
+     */
+    @Override
+    public void setIdleTimeout(long millis) {
+        try {
+            socket.setSoTimeout((int) Math.min(millis, Integer.MAX_VALUE));
+        } catch (SocketException e) {
+            Log.warn("Could not set idle timeout: " + e.getMessage());
+        }
     }
 
     /**
      * Close the channel and associated socket.
      * 
-     * This method calls the close methods of the reader, writer, and socket in
+     * This method calls the close methods of the input stream, writer, and socket in
      * order to release any system resources associated with the channel.
      * 
      * If an IOException is thrown in the process of closing the channel, an
      * error message is printed to System.err.
      */
+    @Override
     public void close() {
         try {
-            reader.close();
+            input.close();
             writer.close();
             socket.close();
         } catch (IOException e) {
-            System.err.println("Error closing channel: " + e.getMessage());
+            Log.warn("Error closing channel: " + e.getMessage());
         }
     }
 
@@ -1,160 +1,353 @@
 package common;
 
 import merrimackutil.json.types.JSONObject;
-import merrimackutil.util.NonceCache;
 import protocol.RFC1994Challenge;
 import protocol.RFC1994Claim;
 import protocol.RFC1994Response;
 import protocol.RFC1994Result;
 
-import javax.crypto.KeyGenerator;
-import javax.crypto.SecretKey;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.SecureRandom;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Base64;
-import java.util.Map;
 
-public class ChapHandler {
+import javax.crypto.spec.SecretKeySpec;
+
+public class ChapHandler implements ProtocolHandler {
+
+    /**
+     * Where the handler is in the CHAP and ticket exchange.
+     */
+    private enum State { CLAIM, RESPONSE, TICKET_REQUEST, SESSION, DONE }
+
+    /** How long a KDC session may sit idle before it is closed. */
+    public static final long DEFAULT_SESSION_IDLE_MILLIS = 30_000;
+
+    /** How long a service ticket is valid when validity-period is not set. */
+    public static final long DEFAULT_TICKET_LIFETIME_MILLIS = 60_000;
+    /** How long a ticket-granting ticket is valid by default, a working day. */
+    public static final long DEFAULT_TGT_LIFETIME_MILLIS = 8 * 60 * 60 * 1000L;
+
+    private static volatile long sessionIdleMillis = DEFAULT_SESSION_IDLE_MILLIS;
+    private static volatile long ticketLifetimeMillis = DEFAULT_TICKET_LIFETIME_MILLIS;
+    private static volatile long tgtLifetimeMillis = DEFAULT_TGT_LIFETIME_MILLIS;
+    private static volatile long maxClockSkewMillis = TgsHandler.MAX_CLOCK_SKEW;
+
+    private static final LatencyHistogram claimReadLatency = Metrics.histogram("kdc_claim_read");
+    private static final LatencyHistogram challengeLatency = Metrics.histogram("kdc_challenge");
+    private static final LatencyHistogram verifyLatency = Metrics.histogram("kdc_response_verify");
+    private static final LatencyHistogram sessionKeyLatency = Metrics.histogram("kdc_session_key");
+    private static final LatencyHistogram sealLatency = Metrics.histogram("kdc_ticket_seal");
+    private static final LatencyHistogram writeLatency = Metrics.histogram("kdc_ticket_response_write");
+    private static final LatencyHistogram tgsLatency = Metrics.histogram("kdc_tgs");
+    private static final AtomicLong sessionRequests = new AtomicLong();
+
+    static {
+        Metrics.gauge("kdc_session_requests", sessionRequests::get);
+    }
 
     private final Channel channel;
-    private final NonceCache nonceCache;
-    private final Map<String, String> secrets;
+    private final MessageSink out;
+    private final ReplayCache nonceCache;
+    private final PrincipalDatabase principals;
+    private State state = State.CLAIM;
+    private String user;
+    private byte[] nonceBytes;
+    private boolean authenticated = false;
 
-    public ChapHandler(Channel channel, NonceCache nonceCache, Map<String, String> secrets) {
+    public ChapHandler(Channel channel, ReplayCache nonceCache, PrincipalDatabase principals) {
         this.channel = channel;
+        this.out = channel;
         this.nonceCache = nonceCache;
-        this.secrets = secrets;
+        this.principals = principals;
+    }
+
+    /**
+     * Creates a handler driven frame by frame by a non-blocking transport.
+     * @param out the connection to reply on.
+     * @param nonceCache the nonce cache to check for replay attacks.
+     * @param principals the shared secrets and keys of all principals.
+     */
+    public ChapHandler(MessageSink out, ReplayCache nonceCache, PrincipalDatabase principals) {
+        this.channel = null;
+        this.out = out;
+        this.nonceCache = nonceCache;
+        this.principals = principals;
+    }
+
+    /**
+     * Sets how long a KDC session may go without a request before the KDC
+     * closes it.
+     * @param millis the idle timeout in milliseconds.
+     */
+    public static void setSessionIdleTimeout(long millis) {
+        sessionIdleMillis = millis;
     }
 
+    /**
+     * Sets how long issued tickets are valid. Service tickets issued by the
+     * TGS never outlive the ticket-granting ticket they were requested with.
+     * @param ticketMillis the service ticket lifetime in milliseconds.
+     * @param tgtMillis the ticket-granting ticket lifetime in milliseconds.
+     */
+    public static void setTicketLifetimes(long ticketMillis, long tgtMillis) {
+        ticketLifetimeMillis = ticketMillis;
+        tgtLifetimeMillis = tgtMillis;
+    }
+
+    /**
+     * Sets how far a TGS authenticator timestamp may be from the KDC's clock.
+     * It must not exceed half the replay window, or a replayed authenticator
+     * could be accepted after the replay cache has forgotten it.
+     * @param millis the allowed clock skew in milliseconds.
+     */
+    public static void setMaxClockSkew(long millis) {
+        maxClockSkewMillis = millis;
+    }
+
+    /**
+     * Runs the whole exchange on the blocking channel this handler was
+     * created with.
+     */
     public void run() throws IOException {
         try {
-            //CHAP STEP 1: Receive claim
-            JSONObject claimJson = channel.receiveMessage();
-            RFC1994Claim claim = new RFC1994Claim("");
-            claim.deserialize(claimJson);
-            String user = claim.getId();
-
-            //CHAP STEP 2: Validate user 
-            if (!secrets.containsKey(user)) {
-                channel.sendMessage(new RFC1994Result(false));
-                channel.close();
+            long start = System.nanoTime();
+            JSONObject claim = channel.receiveMessage();
+            claimReadLatency.recordSince(start);
+            if (!onFrame(claim)) {
+                return;
+            }
+            while (onFrame(channel.receiveMessage())) {
+                // Keep feeding frames until the exchange is finished.
+            }
+        } catch (SocketTimeoutException e) {
+            Log.debug(() -> "Closing idle KDC session for " + user);
+            finish();
+        } catch (Exception e) {
+            if (state == State.SESSION && e instanceof IOException) {
+                // The client hung up between requests.
+                finish();
                 return;
             }
+            onError(e);
+        }
+    }
+
+    @Override
+    public boolean onFrame(JSONObject frame) throws Exception {
+        switch (state) {
+            case CLAIM:
+                if ("TGS Request".equals(frame.getString("type"))) {
+                    // A client holding a TGT skips CHAP entirely.
+                    if (frame.containsKey("request-id")) {
+                        startSession();
+                        handleSessionRequest(frame);
+                        break;
+                    }
+                    long start = System.nanoTime();
+                    TicketResponse resp = newTgsHandler().handle(frame);
+                    tgsLatency.recordSince(start);
+                    out.sendMessage(resp);
+                    finish();
+                } else {
+                    handleClaim(frame);
+                }
+                break;
+            case RESPONSE:
+                handleResponse(frame);
+                break;
+            case TICKET_REQUEST:
+                if (frame.containsKey("request-id")) {
+                    startSession();
+                    handleSessionRequest(frame);
+                } else {
+                    handleTicketRequest(frame);
+                }
+                break;
+            case SESSION:
+                handleSessionRequest(frame);
+                break;
+            default:
+                break;
+        }
+        return state != State.DONE;
+    }
 
-            //CHAP STEP 3: Generate 32-byte nonce
-            byte[] nonceBytes = new byte[32];
-            new SecureRandom().nextBytes(nonceBytes);
-            nonceCache.addNonce(nonceBytes);
-            String base64Nonce = Base64.getEncoder().encodeToString(nonceBytes);
+    @Override
+    public void onError(Exception e) {
+        state = State.DONE;
+        Log.error("Error in ChapHandler: " + e.getMessage(), e);
+        try {
+            out.sendMessage(new RFC1994Result(false));
+        } catch (Exception ignored) {}
+        out.close();
+    }
 
-            //CHAP STEP 4: Send challenge
-            channel.sendMessage(new RFC1994Challenge(base64Nonce));
+    private void handleClaim(JSONObject claimJson) throws Exception {
+        //CHAP STEP 1: Receive claim
+        RFC1994Claim claim = new RFC1994Claim("");
+        claim.deserialize(claimJson);
+        user = claim.getId();
 
-            //CHAP STEP 5: Receive response
-            JSONObject responseJson = channel.receiveMessage();
-            RFC1994Response response = new RFC1994Response("");
-            response.deserialize(responseJson);
+        //CHAP STEP 2: Validate user 
+        if (!principals.contains(user)) {
+            out.sendMessage(new RFC1994Result(false));
+            finish();
+            return;
+        }
 
-            //CHAP STEP 6: Recalculate expected hash
-            String sharedSecret = secrets.get(user);
-            byte[] expected = MessageDigest.getInstance("SHA-256")
-                    .digest((sharedSecret + new String(nonceBytes)).getBytes());
-            String expectedBase64 = Base64.getEncoder().encodeToString(expected);
+        //CHAP STEP 3: Generate 32-byte nonce
+        long start = System.nanoTime();
+        nonceBytes = Randomness.challenge();
+        nonceCache.addNonce(nonceBytes);
+        String base64Nonce = Base64.getEncoder().encodeToString(nonceBytes);
 
-            //CHAP STEP 7: Validate
-            boolean valid = expectedBase64.equals(response.getHash());
-            channel.sendMessage(new RFC1994Result(valid));
+        //CHAP STEP 4: Send challenge
+        out.sendMessage(new RFC1994Challenge(base64Nonce));
+        challengeLatency.recordSince(start);
+        state = State.RESPONSE;
+    }
 
-            if (!valid) {
-                channel.close();
-                return;
-            }
+    private void handleResponse(JSONObject responseJson) throws Exception {
+        //CHAP STEP 5: Receive response
+        RFC1994Response response = new RFC1994Response("");
+        response.deserialize(responseJson);
 
-            //TICKET STEP 1: Receive TicketRequest
-            System.out.println("Receiving TicketRequest...");
-            JSONObject ticketReqJson = channel.receiveMessage();
-
-            System.out.println("Deserializing TicketRequest...");
-            TicketRequest ticketReq = new TicketRequest("", "");
-            try {
-                ticketReq.deserialize(ticketReqJson);
-                System.out.println("Deserialized TicketRequest: user=" + ticketReq.getId() + ", service=" + ticketReq.getService());
-            } catch (Exception e) {
-                System.err.println("Failed to deserialize TicketRequest: " + e.getMessage());
-                e.printStackTrace();
-                channel.close();
-                return;
-            }
+        //CHAP STEP 6: Recalculate expected hash
+        long start = System.nanoTime();
+        String expectedBase64 = RFC1994Response.computeHash(principals.getSecret(user), nonceBytes);
 
-            System.out.println("Generating session key...");
-            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-            keyGen.init(256);
-            SecretKey sessionKey = keyGen.generateKey();
-            byte[] sessionKeyBytes = sessionKey.getEncoded();
-            String base64SessionKey = Base64.getEncoder().encodeToString(sessionKeyBytes);
-            System.out.println("🔑 [KDC] Session Key (base64): " + base64SessionKey);
+        //CHAP STEP 7: Validate
+        boolean valid = expectedBase64.equals(response.getHash());
+        verifyLatency.recordSince(start);
+        out.sendMessage(new RFC1994Result(valid));
 
+        if (!valid) {
+            finish();
+            return;
+        }
+        authenticated = true;
+        state = State.TICKET_REQUEST;
+    }
 
-            // 🔐 Encrypt session key with CLIENT's password
-            String clientPassword = secrets.get(ticketReq.getId());
-            if (clientPassword == null) {
-                throw new RuntimeException("No shared secret found for user: " + ticketReq.getId());
-            }
-            String encryptedForClient = CryptoUtils.encryptAESGCM(base64SessionKey, clientPassword);
+    private void handleTicketRequest(JSONObject ticketReqJson) throws Exception {
+        //TICKET STEP 1: Receive TicketRequest
+        TicketRequest ticketReq = new TicketRequest("", "");
+        try {
+            ticketReq.deserialize(ticketReqJson);
+            Log.debug(() -> "Deserialized TicketRequest: user=" + ticketReq.getId() + ", service=" + ticketReq.getService());
+        } catch (Exception e) {
+            Log.error("Failed to deserialize TicketRequest: " + e.getMessage(), e);
+            finish();
+            return;
+        }
 
-            // 🔐 Encrypt session key with SERVICE's password
-            String servicePassword = secrets.get(ticketReq.getService());
-            if (servicePassword == null) {
-                throw new RuntimeException("No shared secret found for service: " + ticketReq.getService());
-            }
-            String encryptedForService = CryptoUtils.encryptAESGCM(base64SessionKey, servicePassword);
+        TicketResponse responseMsg = issueTicket(ticketReq);
+        long start = System.nanoTime();
+        out.sendMessage(responseMsg);
+        writeLatency.recordSince(start);
+        finish();
+    }
 
-            // 📦 Extract IV + ciphertext for ticket
-            String[] parts = extractEncryptedParts(encryptedForService);
-            String base64IV = parts[0];
-            String encryptedKeyOnly = parts[1];
+    /**
+     * Keeps the connection open for further tagged requests, closing it if
+     * the client goes quiet for the session idle timeout.
+     */
+    private void startSession() {
+        state = State.SESSION;
+        out.setIdleTimeout(sessionIdleMillis);
+    }
 
-            // 🎟️ Build ticket with service-encrypted session key
-            Ticket ticket = new Ticket(
-                ticketReq.getId(),
-                ticketReq.getService(),
-                60000L,
-                base64IV,
-                encryptedKeyOnly
-            );
+    /**
+     * Serves one tagged request on a KDC session. Ticket requests are only
+     * accepted after CHAP and only for the user who authenticated; TGS
+     * requests carry their own proof. A refused request is answered with a
+     * {@link TicketError} and the session carries on.
+     */
+    private void handleSessionRequest(JSONObject frame) throws Exception {
+        Long requestId = frame.containsKey("request-id") ? frame.getLong("request-id") : null;
+        if (requestId == null) {
+            out.sendMessage(new TicketError(null, "Requests on a KDC session need a request-id."));
+            return;
+        }
+        sessionRequests.incrementAndGet();
+        TicketResponse resp;
+        try {
+            if ("TGS Request".equals(frame.getString("type"))) {
+                long start = System.nanoTime();
+                resp = newTgsHandler().handle(frame);
+                tgsLatency.recordSince(start);
+            } else if ("Ticket Request".equals(frame.getString("type"))) {
+                TicketRequest ticketReq = new TicketRequest("", "");
+                ticketReq.deserialize(frame);
+                if (!authenticated || !ticketReq.getId().equals(user)) {
+                    throw new SecurityException("Ticket requests are only served for the authenticated user.");
+                }
+                resp = issueTicket(ticketReq);
+            } else {
+                throw new IllegalArgumentException("Unexpected message on a KDC session: " + frame.getString("type"));
+            }
+        } catch (Exception e) {
+            Log.warn("Refused KDC session request " + requestId + ": " + e.getMessage());
+            out.sendMessage(new TicketError(requestId, e.getMessage()));
+            return;
+        }
+        resp.setRequestId(requestId);
+        long start = System.nanoTime();
+        out.sendMessage(resp);
+        writeLatency.recordSince(start);
+    }
 
-            // 📬 TicketResponse contains client-encrypted key and full ticket
-            TicketResponse responseMsg = new TicketResponse(encryptedForClient, ticket);
+    /**
+     * Issues a ticket for a CHAP authenticated ticket request.
+     */
+    private TicketResponse issueTicket(TicketRequest ticketReq) throws Exception {
+        long start = System.nanoTime();
+        String base64SessionKey = TicketIssuer.newSessionKey();
+        sessionKeyLatency.recordSince(start);
+        Log.debug(() -> "🔑 [KDC] Session Key (base64): " + base64SessionKey);
 
-            System.out.println("Sending TicketResponse...");
-            System.out.println(responseMsg.toJSONType().getFormattedJSON());
 
-            channel.sendMessage(responseMsg);
-            channel.close();
+        // 🔐 Encrypt session key with CLIENT's password
+        start = System.nanoTime();
+        byte[] clientKey = principals.getDerivedKey(ticketReq.getId());
+        if (clientKey == null) {
+            throw new RuntimeException("No shared secret found for user: " + ticketReq.getId());
+        }
+        String encryptedForClient = CryptoUtils.encryptAESGCM(base64SessionKey, new SecretKeySpec(clientKey, "AES"));
 
-        } catch (Exception e) {
-            System.err.println("Error in ChapHandler: " + e.getMessage());
-            e.printStackTrace();  
-            try {
-                channel.sendMessage(new RFC1994Result(false));
-            } catch (Exception ignored) {}
-            channel.close();
+        // 🔐 Encrypt session key with SERVICE's password
+        byte[] serviceKey = principals.getDerivedKey(ticketReq.getService());
+        if (serviceKey == null) {
+            throw new RuntimeException("No shared secret found for service: " + ticketReq.getService());
         }
+
+        // 🎟️ Build ticket with service-encrypted session key
+        Ticket ticket = TicketIssuer.sealTicket(
+            ticketReq.getId(),
+            ticketReq.getService(),
+            base64SessionKey,
+            new SecretKeySpec(serviceKey, "AES"),
+            TgsHandler.TGS_SERVICE.equals(ticketReq.getService()) ? tgtLifetimeMillis : ticketLifetimeMillis
+        );
+
+        // 📬 TicketResponse contains client-encrypted key and full ticket
+        TicketResponse responseMsg = new TicketResponse(encryptedForClient, ticket);
+        sealLatency.recordSince(start);
+
+        Log.debug(() -> "Sending TicketResponse for " + ticketReq.getId() + " to " + ticketReq.getService());
+        return responseMsg;
+    }
+
+    private TgsHandler newTgsHandler() {
+        return new TgsHandler(nonceCache, principals, ticketLifetimeMillis, maxClockSkewMillis);
     }
 
     /**
-     * Helper method to split encrypted message into IV and ciphertext (both Base64).
+     * Ends the exchange and closes the connection.
      */
-    private String[] extractEncryptedParts(String encryptedPayload) {
-        byte[] full = Base64.getDecoder().decode(encryptedPayload);
-        byte[] iv = new byte[12];
-        byte[] encrypted = new byte[full.length - 12];
-        System.arraycopy(full, 0, iv, 0, 12);
-        System.arraycopy(full, 12, encrypted, 0, encrypted.length);
-        return new String[]{
-                Base64.getEncoder().encodeToString(iv),
-                Base64.getEncoder().encodeToString(encrypted)
-        };
+    private void finish() {
+        state = State.DONE;
+        out.close();
     }
 }
\ No newline at end of file
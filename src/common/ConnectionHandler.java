@@ -3,20 +3,19 @@ package common;
 import java.io.IOException;
 
 import kdcd.KDCServer;
-import merrimackutil.util.NonceCache;
 import merrimackutil.json.types.JSONObject;
 
 public class ConnectionHandler implements Runnable
 {
     private Channel channel;
-    private NonceCache nonceCache;  // NonceCache to check for replay attacks
+    private ReplayCache nonceCache;  // Replay cache to check for replay attacks
 
     /**
      * Creates a new connection handler with nonce cache.
      * @param channel the channel associated with the connection.
      * @param nonceCache the nonce cache to check for replay attacks.
      */
-    public ConnectionHandler(Channel channel, NonceCache nonceCache)
+    public ConnectionHandler(Channel channel, ReplayCache nonceCache)
     {
         this.channel = channel;
         this.nonceCache = nonceCache;  // Initialize with the nonce cache
@@ -30,7 +29,7 @@ public class ConnectionHandler implements Runnable
         try
         {
 
-             ChapHandler chap = new ChapHandler(channel, nonceCache, KDCServer.getSecrets());
+             ChapHandler chap = new ChapHandler(channel, nonceCache, KDCServer.getPrincipals());
             chap.run(); // Run CHAP protocol
 
             // ✅ If CHAP succeeded, proceed to handle TicketRequest...
@@ -81,7 +80,8 @@ public class ConnectionHandler implements Runnable
         }
         catch (IOException ex)
         {
-            ex.printStackTrace();
+            // Most often the peer closed the connection after the ticket exchange.
+            Log.debug(() -> "Connection ended: " + ex.getMessage());
             channel.close();
         }    
     }
@@ -0,0 +1,155 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring with virtual nodes.
+ *
+ * Each node is placed on the ring at {@code virtualNodes} points and a key
+ * belongs to the first point at or after its own hash. Adding or removing a
+ * node only moves the keys of that node. Placement depends on the node ids
+ * alone, not on the order they were added, so every client and the secrets
+ * splitter route a principal to the same shard.
+ *
+ * Lookups are lock-free: the ring is rebuilt as immutable sorted arrays on
+ * every change, which suits a ring that changes rarely and is read on every
+ * request.
+ *
+ * @param <T> the node type.
+ */
+public class ConsistentHashRing<T> {
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final int virtualNodes;
+    private final TreeMap<String, T> nodes = new TreeMap<>();
+    private volatile Snapshot snapshot = new Snapshot(new long[0], new String[0], new Object[0]);
+
+    /**
+     * The ring points, sorted, with the id and node owning each one.
+     */
+    private record Snapshot(long[] points, String[] ids, Object[] owners) {
+    }
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param virtualNodes how many points each node gets on the ring.
+     */
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Invalid virtual node count.");
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Adds or replaces a node.
+     * @param id the node id the ring positions are derived from.
+     * @param node the node returned for keys it owns.
+     */
+    public synchronized void add(String id, T node) {
+        nodes.put(id, node);
+        rebuild();
+    }
+
+    /**
+     * Removes a node; its keys move to the following nodes on the ring.
+     * @param id the node id.
+     */
+    public synchronized void remove(String id) {
+        if (nodes.remove(id) != null) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Returns the node that owns a key.
+     * @param key the key, e.g. a principal name.
+     * @return the owning node, or null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(String key) {
+        Snapshot s = snapshot;
+        int i = indexOf(s, key);
+        return i < 0 ? null : (T) s.owners[i];
+    }
+
+    /**
+     * Returns the id of the node that owns a key.
+     * @param key the key, e.g. a principal name.
+     * @return the owning node id, or null if the ring is empty.
+     */
+    public String getNodeId(String key) {
+        Snapshot s = snapshot;
+        int i = indexOf(s, key);
+        return i < 0 ? null : s.ids[i];
+    }
+
+    private static int indexOf(Snapshot s, String key) {
+        if (s.points.length == 0) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(s.points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i == s.points.length ? 0 : i;
+    }
+
+    /**
+     * @return the node ids, sorted.
+     */
+    public synchronized List<String> getNodeIds() {
+        return new ArrayList<>(nodes.keySet());
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    private void rebuild() {
+        // Sorted by id, so a point claimed by two nodes always goes to the
+        // same one whatever order they were added in.
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String id : nodes.keySet()) {
+            for (int v = 0; v < virtualNodes; v++) {
+                ring.putIfAbsent(hash(id + "#" + v), id);
+            }
+        }
+        long[] p = new long[ring.size()];
+        String[] ids = new String[ring.size()];
+        Object[] owners = new Object[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> e : ring.entrySet()) {
+            p[i] = e.getKey();
+            ids[i] = e.getValue();
+            owners[i++] = nodes.get(e.getValue());
+        }
+        snapshot = new Snapshot(p, ids, owners);
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes followed by the MurmurHash3 finalizer, so
+     * that similar ids such as "kdc-1#0" and "kdc-1#1" spread over the ring.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,171 @@
+package common;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-thread JCE objects for the message path.
+ *
+ * Cipher, MessageDigest, Mac and Signature lookups go through the provider
+ * list and build a new engine every time. Each thread keeps one instance of
+ * each instead and re-initialises it per use. With a thread per connection
+ * that is one set per session; on the pooled and NIO workers it is one set
+ * per worker.
+ *
+ * A returned object belongs to the calling thread and is only valid until
+ * the next call for the same primitive on that thread, so callers must
+ * finish with it (doFinal, digest, sign) before asking again. Re-initialising
+ * GCM for encryption with the key and IV of the previous encryption fails,
+ * as it does for a fresh Cipher, so an IV reuse bug is still caught.
+ */
+public final class CryptoPrimitives {
+    public static final String AES_GCM = "AES/GCM/NoPadding";
+    public static final int GCM_TAG_BITS = 128;
+
+    private static final AtomicLong created = new AtomicLong();
+    private static final ThreadLocal<Primitives> local = ThreadLocal.withInitial(Primitives::new);
+
+    static {
+        Metrics.gauge("crypto_primitives_created", created::get);
+    }
+
+    private CryptoPrimitives() {
+    }
+
+    /**
+     * Returns this thread's AES/GCM cipher initialised for one operation.
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
+     * @param key the AES key.
+     * @param iv the 12 byte IV.
+     * @return the initialised cipher.
+     */
+    public static Cipher aesGcm(int mode, Key key, byte[] iv) throws GeneralSecurityException {
+        Primitives p = local.get();
+        if (p.gcm == null) {
+            p.gcm = newGcm();
+        }
+        p.gcm.init(mode, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+        return p.gcm;
+    }
+
+    /**
+     * Encrypts with this thread's AES/GCM cipher.
+     * @return the ciphertext followed by the tag.
+     */
+    public static byte[] encryptGcm(Key key, byte[] iv, byte[] plain) throws GeneralSecurityException {
+        return aesGcm(Cipher.ENCRYPT_MODE, key, iv).doFinal(plain);
+    }
+
+    /**
+     * Encrypts with this thread's AES/GCM cipher, authenticating associated
+     * data that is not encrypted.
+     * @return the ciphertext followed by the tag.
+     */
+    public static byte[] encryptGcm(Key key, byte[] iv, byte[] aad, byte[] plain) throws GeneralSecurityException {
+        Cipher cipher = aesGcm(Cipher.ENCRYPT_MODE, key, iv);
+        cipher.updateAAD(aad);
+        return cipher.doFinal(plain);
+    }
+
+    /**
+     * Decrypts with this thread's AES/GCM cipher, failing unless the
+     * associated data is the one given at encryption.
+     * @return the plaintext.
+     */
+    public static byte[] decryptGcm(Key key, byte[] iv, byte[] aad, byte[] cipherText) throws GeneralSecurityException {
+        Cipher cipher = aesGcm(Cipher.DECRYPT_MODE, key, iv);
+        cipher.updateAAD(aad);
+        return cipher.doFinal(cipherText);
+    }
+
+    /**
+     * Decrypts with this thread's AES/GCM cipher.
+     * @return the plaintext.
+     */
+    public static byte[] decryptGcm(Key key, byte[] iv, byte[] cipherText) throws GeneralSecurityException {
+        return aesGcm(Cipher.DECRYPT_MODE, key, iv).doFinal(cipherText);
+    }
+
+    /**
+     * Decrypts a slice of a buffer with this thread's AES/GCM cipher.
+     * @return the plaintext.
+     */
+    public static byte[] decryptGcm(Key key, byte[] iv, byte[] input, int offset, int length)
+            throws GeneralSecurityException {
+        return aesGcm(Cipher.DECRYPT_MODE, key, iv).doFinal(input, offset, length);
+    }
+
+    /**
+     * Returns this thread's SHA-256 digest, reset and ready for use.
+     */
+    public static MessageDigest sha256() throws NoSuchAlgorithmException {
+        Primitives p = local.get();
+        if (p.sha256 == null) {
+            p.sha256 = MessageDigest.getInstance("SHA-256");
+            created.incrementAndGet();
+        } else {
+            p.sha256.reset();
+        }
+        return p.sha256;
+    }
+
+    /**
+     * Returns this thread's HmacSHA256 initialised with a key.
+     * @param key the raw MAC key.
+     */
+    public static Mac hmacSha256(byte[] key) throws GeneralSecurityException {
+        Primitives p = local.get();
+        if (p.hmacSha256 == null) {
+            p.hmacSha256 = Mac.getInstance("HmacSHA256");
+            created.incrementAndGet();
+        }
+        p.hmacSha256.init(new SecretKeySpec(key, "HmacSHA256"));
+        return p.hmacSha256;
+    }
+
+    /**
+     * Returns this thread's SHA256withRSA signature object. Callers must
+     * call initSign or initVerify, which also resets it.
+     */
+    public static Signature sha256WithRsa() throws NoSuchAlgorithmException {
+        Primitives p = local.get();
+        if (p.rsaSignature == null) {
+            p.rsaSignature = Signature.getInstance("SHA256withRSA");
+            created.incrementAndGet();
+        }
+        return p.rsaSignature;
+    }
+
+    /**
+     * @return how many JCE objects have been constructed so far.
+     */
+    public static long getCreated() {
+        return created.get();
+    }
+
+    private static Cipher newGcm() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = Cipher.getInstance(AES_GCM);
+        created.incrementAndGet();
+        return cipher;
+    }
+
+    /**
+     * The JCE objects owned by one thread.
+     */
+    private static final class Primitives {
+        private Cipher gcm;
+        private MessageDigest sha256;
+        private Mac hmacSha256;
+        private Signature rsaSignature;
+    }
+}
@@ -1,18 +1,23 @@
 package common;
 
-import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
 import org.bouncycastle.crypto.generators.SCrypt;
 
 public class CryptoUtils {
 
     private static final String AES_ALGORITHM = "AES";
-    private static final String AES_GCM_MODE = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final DerivedKeyCache keyCache = new DerivedKeyCache(DerivedKeyCache.DEFAULT_CAPACITY);
+    private static final LatencyHistogram scryptLatency = Metrics.histogram("crypto_scrypt");
+
+    static {
+        Metrics.gauge("crypto_derived_key_cache_hits", keyCache::getHits);
+        Metrics.gauge("crypto_derived_key_cache_misses", keyCache::getMisses);
+    }
 
     /**
      * Encrypts a message using AES/GCM/NoPadding.
@@ -20,13 +25,9 @@ public class CryptoUtils {
     public static String encryptAESGCM(String message, String password) throws Exception {
         // Derive key from password using SCRYPT
         byte[] key = deriveKey(password);
-        Cipher cipher = Cipher.getInstance(AES_GCM_MODE);
-        byte[] iv = new byte[12];
-        new SecureRandom().nextBytes(iv);
-        GCMParameterSpec spec = new GCMParameterSpec(128, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, AES_ALGORITHM), spec);
-
-        byte[] encryptedMessage = cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
+        byte[] iv = Randomness.iv();
+        byte[] encryptedMessage = CryptoPrimitives.encryptGcm(new SecretKeySpec(key, AES_ALGORITHM), iv,
+                message.getBytes(StandardCharsets.UTF_8));
         byte[] combined = new byte[iv.length + encryptedMessage.length];
         System.arraycopy(iv, 0, combined, 0, iv.length);
         System.arraycopy(encryptedMessage, 0, combined, iv.length, encryptedMessage.length);
@@ -39,54 +40,74 @@ public class CryptoUtils {
      */
     public static String decryptAESGCM(String encryptedMessage, String password) throws Exception {
         byte[] decodedMessage = Base64.getDecoder().decode(encryptedMessage);
-        byte[] iv = new byte[12];
-        System.arraycopy(decodedMessage, 0, iv, 0, iv.length);
-        byte[] cipherText = new byte[decodedMessage.length - iv.length];
-        System.arraycopy(decodedMessage, iv.length, cipherText, 0, cipherText.length);
+        byte[] iv = Arrays.copyOf(decodedMessage, IV_LENGTH);
 
         // Derive key from password using SCRYPT
         byte[] key = deriveKey(password);
-        Cipher cipher = Cipher.getInstance(AES_GCM_MODE);
-        GCMParameterSpec spec = new GCMParameterSpec(128, iv);
-        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, AES_ALGORITHM), spec);
-
-        byte[] decryptedMessage = cipher.doFinal(cipherText);
+        byte[] decryptedMessage = CryptoPrimitives.decryptGcm(new SecretKeySpec(key, AES_ALGORITHM), iv,
+                decodedMessage, IV_LENGTH, decodedMessage.length - IV_LENGTH);
         return new String(decryptedMessage, StandardCharsets.UTF_8);
     }
 
-    public static String decryptAESGCM(String encryptedBase64, SecretKey key) throws Exception {
-        byte[] decodedMessage = Base64.getDecoder().decode(encryptedBase64);
-        byte[] iv = new byte[12];
-        System.arraycopy(decodedMessage, 0, iv, 0, iv.length);
-        byte[] cipherText = new byte[decodedMessage.length - iv.length];
-        System.arraycopy(decodedMessage, iv.length, cipherText, 0, cipherText.length);
+    /**
+     * Encrypts a message using AES/GCM/NoPadding under a raw key, e.g. a
+     * session key. No key derivation is involved.
+     */
+    public static String encryptAESGCM(String message, SecretKey key) throws Exception {
+        byte[] iv = Randomness.iv();
+        byte[] encryptedMessage = CryptoPrimitives.encryptGcm(key, iv, message.getBytes(StandardCharsets.UTF_8));
+        byte[] combined = new byte[iv.length + encryptedMessage.length];
+        System.arraycopy(iv, 0, combined, 0, iv.length);
+        System.arraycopy(encryptedMessage, 0, combined, iv.length, encryptedMessage.length);
 
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        GCMParameterSpec spec = new GCMParameterSpec(128, iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, spec);
+        return Base64.getEncoder().encodeToString(combined);
+    }
 
-        byte[] decryptedMessage = cipher.doFinal(cipherText);
+    public static String decryptAESGCM(String encryptedBase64, SecretKey key) throws Exception {
+        byte[] decodedMessage = Base64.getDecoder().decode(encryptedBase64);
+        byte[] iv = Arrays.copyOf(decodedMessage, IV_LENGTH);
+        byte[] decryptedMessage = CryptoPrimitives.decryptGcm(key, iv,
+                decodedMessage, IV_LENGTH, decodedMessage.length - IV_LENGTH);
         return new String(decryptedMessage, StandardCharsets.UTF_8);
     }
 
     public static byte[] decryptAESGCMToBytes(String encryptedBase64, SecretKey key) throws Exception {
         byte[] decodedMessage = Base64.getDecoder().decode(encryptedBase64);
-        byte[] iv = new byte[12];
-        System.arraycopy(decodedMessage, 0, iv, 0, iv.length);
-        byte[] cipherText = new byte[decodedMessage.length - iv.length];
-        System.arraycopy(decodedMessage, iv.length, cipherText, 0, cipherText.length);
-    
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        GCMParameterSpec spec = new GCMParameterSpec(128, iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, spec);
-    
-        return cipher.doFinal(cipherText); // ✅ this is your original nonce
+        byte[] iv = Arrays.copyOf(decodedMessage, IV_LENGTH);
+        return CryptoPrimitives.decryptGcm(key, iv,
+                decodedMessage, IV_LENGTH, decodedMessage.length - IV_LENGTH); // ✅ this is your original nonce
+    }
+    /**
+     * Evicts the cached key derived from a password. Must be called when the
+     * secret of a principal is reloaded or rotated.
+     */
+    public static void invalidateDerivedKey(String password) {
+        keyCache.invalidate(password);
     }
+
+    /**
+     * Returns the cache holding keys derived from passwords.
+     */
+    public static DerivedKeyCache getDerivedKeyCache() {
+        return keyCache;
+    }
+
     /**
-     * Derives an AES key from a password using SCRYPT.
+     * Derives an AES key from a password using SCRYPT, reusing a previously
+     * derived key for the same password when one is cached.
+     * @return the 32 byte key, a copy owned by the caller.
      */
-    private static byte[] deriveKey(String password) throws Exception {
+    public static byte[] deriveKey(String password) throws Exception {
+        byte[] key = keyCache.get(password);
+        if (key != null) {
+            return key;
+        }
+
+        long start = System.nanoTime();
         byte[] salt = password.getBytes(StandardCharsets.UTF_8); // Use password as salt
-        return SCrypt.generate(password.getBytes(StandardCharsets.UTF_8), salt, 16384, 8, 1, 32);
+        key = SCrypt.generate(password.getBytes(StandardCharsets.UTF_8), salt, 16384, 8, 1, 32);
+        scryptLatency.recordSince(start);
+        keyCache.put(password, key);
+        return key;
     }
 }
@@ -0,0 +1,152 @@
+package common;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, thread-safe cache of SCrypt-derived AES keys.
+ *
+ * Deriving a key with SCrypt (N=16384, r=8) is by far the most expensive
+ * step in issuing or accepting a ticket. The derivation only depends on the
+ * password, so the result for a given principal can be reused across
+ * requests. Entries are evicted in least-recently-used order once the cache
+ * reaches its capacity, and can be evicted explicitly when a secret is
+ * reloaded.
+ *
+ * The map is guarded by a ReentrantLock rather than a monitor so that
+ * contended lookups park a virtual thread instead of pinning its carrier.
+ */
+public class DerivedKeyCache {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final LinkedHashMap<String, byte[]> keys;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a new derived key cache.
+     * @param capacity the maximum number of keys held by the cache.
+     * @throws IllegalArgumentException if the capacity is not positive.
+     */
+    public DerivedKeyCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid cache capacity.");
+        }
+        this.capacity = capacity;
+        // Access ordered so iteration starts at the least recently used key.
+        this.keys = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Looks up the derived key for a password.
+     * @param password the password the key was derived from.
+     * @return a copy of the cached key, or null if the key is not cached.
+     */
+    public byte[] get(String password) {
+        byte[] key;
+        lock.lock();
+        try {
+            key = keys.get(password);
+            // Copy while locked, evicted keys are zeroed in place.
+            key = key == null ? null : key.clone();
+        } finally {
+            lock.unlock();
+        }
+        if (key == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return key;
+    }
+
+    /**
+     * Stores the derived key for a password, evicting the least recently
+     * used key if the cache is full.
+     * @param password the password the key was derived from.
+     * @param key the derived key.
+     */
+    public void put(String password, byte[] key) {
+        lock.lock();
+        try {
+            byte[] old = keys.put(password, key.clone());
+            if (old != null) {
+                Arrays.fill(old, (byte) 0);
+            }
+            Iterator<Map.Entry<String, byte[]>> it = keys.entrySet().iterator();
+            while (keys.size() > capacity && it.hasNext()) {
+                Arrays.fill(it.next().getValue(), (byte) 0);
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the key derived from a password, e.g. because the secret it
+     * belongs to was reloaded or rotated.
+     * @param password the password whose key should be evicted.
+     */
+    public void invalidate(String password) {
+        lock.lock();
+        try {
+            byte[] key = keys.remove(password);
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evicts every key in the cache.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (byte[] key : keys.values()) {
+                Arrays.fill(key, (byte) 0);
+            }
+            evictions.addAndGet(keys.size());
+            keys.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return keys.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
@@ -2,197 +2,344 @@ package common;
 
 import merrimackutil.json.JsonIO;
 import merrimackutil.json.types.JSONObject;
-import merrimackutil.util.NonceCache;
 import common.service.ClientHello;
 import common.service.ClientResponse;
 import common.service.HandshakeResponse;
 import echoservice.Config;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
 import java.util.Base64;
 import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
 
-public class EchoServiceHandler implements Runnable {
+public class EchoServiceHandler implements Runnable, ProtocolHandler {
+
+    /**
+     * Where the handler is in the service handshake.
+     */
+    private enum State { HELLO, CLIENT_RESPONSE, MESSAGES, DONE }
+
+    private static final LatencyHistogram ticketDecryptLatency = Metrics.histogram("echo_ticket_decrypt");
+    private static final LatencyHistogram helloLatency = Metrics.histogram("echo_handshake_hello");
+    private static final LatencyHistogram proofLatency = Metrics.histogram("echo_handshake_verify");
+    private static final LatencyHistogram decryptLatency = Metrics.histogram("echo_message_decrypt");
+    private static final LatencyHistogram encryptLatency = Metrics.histogram("echo_message_encrypt");
+    private static final TicketCache ticketCache = new TicketCache(TicketCache.DEFAULT_CAPACITY);
+
+    static {
+        Metrics.gauge("echo_ticket_cache_hits", ticketCache::getHits);
+        Metrics.gauge("echo_ticket_cache_misses", ticketCache::getMisses);
+        Metrics.gauge("echo_ticket_cache_size", ticketCache::size);
+    }
+
     private Channel channel;
-    private NonceCache nonceCache;
+    private MessageSink out;
+    private ReplayCache nonceCache;
     private Config config;
-
-    public EchoServiceHandler(Channel channel, NonceCache nonceCache, Config config) {
+    private State state = State.HELLO;
+    private SecretKeySpec ks;
+    private String base64Ns;
+    private byte[] nonceClient;
+    private SecretKeySpec recordKey;
+    private final ReplayWindow replayWindow = new ReplayWindow();
+
+    public EchoServiceHandler(Channel channel, ReplayCache nonceCache, Config config) {
         this.channel = channel;
+        this.out = channel;
         this.nonceCache = nonceCache;
         this.config = config;
 
     }
 
+    /**
+     * Creates a handler driven frame by frame by a non-blocking transport.
+     * @param out the connection to reply on.
+     * @param nonceCache the nonce cache to check for replay attacks.
+     * @param config the echo service configuration.
+     */
+    public EchoServiceHandler(MessageSink out, ReplayCache nonceCache, Config config) {
+        this.channel = null;
+        this.out = out;
+        this.nonceCache = nonceCache;
+        this.config = config;
+    }
+
     @Override
     public void run() {
         try {
-            System.out.println("🔓 Receiving ClientHello...");
-            JSONObject helloJson = channel.receiveMessage();
-            ClientHello hello = new ClientHello(null, "");
-            hello.deserialize(helloJson);
-
-            // ✅ Use the actual JSONObject from hello
-            JSONObject ticketJson = hello.getTicket(); // no more JsonIO.readObject
-
-            System.out.println("🎟️ Parsing Ticket...");
-            Ticket ticket = new Ticket(
-                ticketJson.getString("username"),
-                ticketJson.getString("service"),
-                ticketJson.getLong("validityTime"),
-                ticketJson.getString("iv"),
-                ticketJson.getString("encryptedSessionKey")
-            );
-            ticket.setCreationTime(ticketJson.getLong("creationTime"));
-
-            // 🔐 Derive session key from encrypted data in ticket
-            String base64Key = ticket.getEncryptedSessionKey();
-            String iv = ticket.getIv();
-            String password = config.serviceSecret;            
-            String combined = combineIVandCipher(iv, base64Key);
-
-            System.out.println("🔐 Decrypting session key with password: " + password);
-            System.out.println("🔐 Combined IV+Cipher: " + combined);
-            String sessionKeyDecoded = CryptoUtils.decryptAESGCM(combined, password);
-            byte[] sessionKeyBytes = Base64.getDecoder().decode(sessionKeyDecoded);
-            System.out.println("🔑 [SERVICE] Decrypted session key (base64): " + sessionKeyDecoded);
-            System.out.println("🔑 [SERVICE] Session key bytes: " + Base64.getEncoder().encodeToString(sessionKeyBytes));
-            SecretKeySpec ks = new SecretKeySpec(sessionKeyBytes, "AES");
-
-            // 🔐 Encrypt client's nonce (Nc)
-            byte[] nonceClient = Base64.getDecoder().decode(hello.getNonce());
-            System.out.println("📥 [SERVICE] Received Nc from client: " + hello.getNonce());
-            byte[] nonceServer = new byte[16];
-            new SecureRandom().nextBytes(nonceServer);
-            String base64Ns = Base64.getEncoder().encodeToString(nonceServer);
-
-            byte[] ivBytes = new byte[12];
-            new SecureRandom().nextBytes(ivBytes);
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            GCMParameterSpec spec = new GCMParameterSpec(128, ivBytes);
-            cipher.init(Cipher.ENCRYPT_MODE, ks, spec);
-            byte[] encryptedNonce = cipher.doFinal(nonceClient);
-            System.out.println("📤 [SERVICE] Encrypted Nc (enc(Nc)): " + Base64.getEncoder().encodeToString(encryptedNonce));
-            System.out.println("📤 [SERVICE] IV used: " + Base64.getEncoder().encodeToString(ivBytes));
-
-            String ivOut = Base64.getEncoder().encodeToString(ivBytes);
-            String encNc = Base64.getEncoder().encodeToString(encryptedNonce);
-
-            // 📤 Send HandshakeResponse
-            HandshakeResponse response = new HandshakeResponse(base64Ns, ticket.getService(), ivOut, encNc);
-            channel.sendMessage(response);
-
-            // 🧾 Step 3: Receive ClientResponse
-            System.out.println("📥 Waiting for ClientResponse...");
-            JSONObject clientRespJson = channel.receiveMessage();
-            ClientResponse clientResp = new ClientResponse("", "", "", "");
-            clientResp.deserialize(clientRespJson);
-
-            // 🔓 Decrypt enc(Ns)
-            System.out.println("🔐 Decrypting client's proof (enc(Ns))...");
-            byte[] ivBytesResp = Base64.getDecoder().decode(clientResp.getIv());
-            byte[] encNs = Base64.getDecoder().decode(clientResp.getEncryptedNonce());
-
-            Cipher decryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
-            decryptCipher.init(Cipher.DECRYPT_MODE, ks, new GCMParameterSpec(128, ivBytesResp));
-            byte[] decryptedNs = decryptCipher.doFinal(encNs);
-            String base64DecryptedNs = Base64.getEncoder().encodeToString(decryptedNs);
-
-            // ✅ Verify it matches original Ns
-            if (!base64DecryptedNs.equals(base64Ns)) {
-                throw new SecurityException("❌ Client failed to prove knowledge of session key.");
+            Log.debug(() -> "🔓 Receiving ClientHello...");
+            while (onFrame(channel.receiveMessage())) {
+                // Keep feeding frames until the session ends.
             }
+        } catch (Exception e) {
+            onError(e);
+        }
+    }
 
-            System.out.println("✅ Client handshake verified!");
-            System.out.println("🤝 Session established with user: " + clientResp.getClientId());
-
-            while (true) {
-                try {
-                    // Step 1: Receive encrypted message from client
-                    JSONObject incomingMsg = channel.receiveMessage();
-                    String ivBase64 = incomingMsg.getString("iv");
-                    String cipherBase64 = incomingMsg.getString("message");
-
-                    byte[] msgIv = Base64.getDecoder().decode(ivBase64);
-                    byte[] ciphertext = Base64.getDecoder().decode(cipherBase64);
-
-                    // Step 2: Decrypt with session key
-                    Cipher decryptMsgCipher = Cipher.getInstance("AES/GCM/NoPadding");
-                    GCMParameterSpec decryptSpec = new GCMParameterSpec(128, msgIv);
-                    decryptCipher.init(Cipher.DECRYPT_MODE, ks, decryptSpec);
-                    byte[] plainBytes = decryptMsgCipher.doFinal(ciphertext);
-                    String decryptedStr = new String(plainBytes, StandardCharsets.UTF_8);
-
-                    // Step 3: Parse decrypted JSON message
-                    JSONObject payload = JsonIO.readObject(decryptedStr);
-                    String receivedNonce = payload.getString("nonce");
-                    String sender = payload.getString("user");
-                    String targetService = payload.getString("service");
-                    String message = payload.getString("message");
-
-
-                    if (!targetService.equals(config.serviceName)) {
-                        System.err.println("❌ [SERVICE] Message intended for service '" + targetService + "', but this is '" + config.serviceName + "'");
-                        channel.close();
-                        break;
-                    }
-                    
-                    // Step 4: Validate nonce
-                    byte[] nonceBytes = Base64.getDecoder().decode(receivedNonce);
-
-                    if (nonceCache.containsNonce(nonceBytes)) {
-                        System.err.println("⚠️ [SERVICE] Replay detected: nonce reused!");
-                        channel.close();
-                        break;
-                    }
-
-                    // ✅ Add nonce to cache
-                    nonceCache.addNonce(nonceBytes);
-
-                    System.out.println("📥 [SERVICE] Received from " + sender + ": " + message);
-
-                    // Step 5: Process message
-                    String responseText = message.toUpperCase();
-
-                    // Step 6: Encrypt response
-                    byte[] responseIv = new byte[12];
-                    new SecureRandom().nextBytes(responseIv);
-                    Cipher encryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
-                    encryptCipher.init(Cipher.ENCRYPT_MODE, ks, new GCMParameterSpec(128, responseIv));
-                    byte[] encryptedResponse = encryptCipher.doFinal(responseText.getBytes(StandardCharsets.UTF_8));
-
-                    // Step 7: Send encrypted response
-                    JSONObject responseJson = new JSONObject();
-                    responseJson.put("iv", Base64.getEncoder().encodeToString(responseIv));
-                    responseJson.put("message", Base64.getEncoder().encodeToString(encryptedResponse));
-                    channel.sendMessage(responseJson);
-
-                    System.out.println("📤 [SERVICE] Responded with: " + responseText);
-
-                } catch (Exception e) {
-                    System.err.println("❌ [SERVICE] Error in communication loop: " + e.getMessage());
-                    e.printStackTrace();
-                    channel.close();
-                    break;
-                }
-            }
+    @Override
+    public boolean onFrame(JSONObject frame) throws Exception {
+        switch (state) {
+            case HELLO:
+                handleHello(frame);
+                break;
+            case CLIENT_RESPONSE:
+                handleClientResponse(frame);
+                break;
+            case MESSAGES:
+                handleMessage(frame);
+                break;
+            default:
+                break;
+        }
+        return state != State.DONE;
+    }
 
-        } catch (Exception e) {
-            System.err.println("❌ Error in EchoServiceHandler: " + e.getMessage());
-            e.printStackTrace();
-            channel.close();
+    @Override
+    public void onError(Exception e) {
+        if (state == State.MESSAGES) {
+            Log.error("❌ [SERVICE] Error in communication loop: " + e.getMessage(), e);
+        } else {
+            Log.error("❌ Error in EchoServiceHandler: " + e.getMessage(), e);
+        }
+        state = State.DONE;
+        out.close();
+    }
+
+    private void handleHello(JSONObject helloJson) throws Exception {
+        long helloStart = System.nanoTime();
+        ClientHello hello = new ClientHello(null, "");
+        hello.deserialize(helloJson);
+
+        // ✅ Use the actual JSONObject from hello
+        JSONObject ticketJson = hello.getTicket(); // no more JsonIO.readObject
+
+        Ticket ticket = new Ticket(
+            ticketJson.getString("username"),
+            ticketJson.getString("service"),
+            ticketJson.getLong("validityTime"),
+            ticketJson.getString("iv"),
+            ticketJson.getString("encryptedSessionKey")
+        );
+        ticket.setCreationTime(ticketJson.getLong("creationTime"));
+
+        if (!config.serviceName.equals(ticket.getService())) {
+            throw new SecurityException("Ticket is for " + ticket.getService() + ", not " + config.serviceName);
+        }
+
+        // ⏳ The times are only trusted once the ticket opens, but a forged
+        // time cannot open or match a cached ticket, so checking first is safe
+        if (ticket.getExpiryTime() <= System.currentTimeMillis()) {
+            throw new SecurityException("Ticket expired.");
+        }
+
+        // 🔐 Reuse the session key if this ticket was seen before, e.g. on a reconnect
+        ks = ticketCache.get(ticket);
+        if (ks == null) {
+            ks = unsealSessionKey(ticket);
+            ticketCache.put(ticket, ks);
+        }
+
+        // 🔐 Encrypt client's nonce (Nc)
+        nonceClient = Base64.getDecoder().decode(hello.getNonce());
+        Log.debug(() -> "📥 [SERVICE] Received Nc from client: " + hello.getNonce());
+        byte[] nonceServer = Randomness.nonce();
+        base64Ns = Base64.getEncoder().encodeToString(nonceServer);
+
+        byte[] ivBytes = Randomness.iv();
+        byte[] encryptedNonce = CryptoPrimitives.encryptGcm(ks, ivBytes, nonceClient);
+
+        String ivOut = Base64.getEncoder().encodeToString(ivBytes);
+        String encNc = Base64.getEncoder().encodeToString(encryptedNonce);
+        Log.debug(() -> "📤 [SERVICE] Encrypted Nc (enc(Nc)): " + encNc + ", IV used: " + ivOut);
+
+        // 📤 Send HandshakeResponse
+        HandshakeResponse response = new HandshakeResponse(base64Ns, ticket.getService(), ivOut, encNc);
+        out.sendMessage(response);
+        helloLatency.recordSince(helloStart);
+
+        // 🧾 Step 3: Wait for ClientResponse
+        state = State.CLIENT_RESPONSE;
+    }
+
+    private void handleClientResponse(JSONObject clientRespJson) throws Exception {
+        ClientResponse clientResp = new ClientResponse("", "", "", "");
+        clientResp.deserialize(clientRespJson);
+        long start = System.nanoTime();
+
+        // 🔓 Decrypt enc(Ns)
+        byte[] ivBytesResp = Base64.getDecoder().decode(clientResp.getIv());
+        byte[] encNs = Base64.getDecoder().decode(clientResp.getEncryptedNonce());
+
+        byte[] decryptedNs = CryptoPrimitives.decryptGcm(ks, ivBytesResp, encNs);
+        String base64DecryptedNs = Base64.getEncoder().encodeToString(decryptedNs);
+
+        // ✅ Verify it matches original Ns
+        if (!base64DecryptedNs.equals(base64Ns)) {
+            throw new SecurityException("❌ Client failed to prove knowledge of session key.");
+        }
+        recordKey = RecordProtection.deriveKey(ks, nonceClient, decryptedNs);
+        proofLatency.recordSince(start);
+
+        Log.debug(() -> "🤝 Session established with user: " + clientResp.getClientId());
+        state = State.MESSAGES;
+    }
+
+    private void handleMessage(JSONObject incomingMsg) throws Exception {
+        if (incomingMsg.containsKey("seq")) {
+            handleRecord(incomingMsg);
+            return;
+        }
+
+        // Step 1: Receive encrypted message from client
+        String ivBase64 = incomingMsg.getString("iv");
+        String cipherBase64 = incomingMsg.getString("message");
+
+        byte[] msgIv = Base64.getDecoder().decode(ivBase64);
+        byte[] ciphertext = Base64.getDecoder().decode(cipherBase64);
+
+        // Step 2: Decrypt with session key
+        long start = System.nanoTime();
+        byte[] plainBytes = CryptoPrimitives.decryptGcm(ks, msgIv, ciphertext);
+        String decryptedStr = new String(plainBytes, StandardCharsets.UTF_8);
+        decryptLatency.recordSince(start);
+
+        // Step 3: Parse decrypted JSON message
+        JSONObject payload = JsonIO.readObject(decryptedStr);
+        String receivedNonce = payload.getString("nonce");
+        String sender = payload.getString("user");
+        String targetService = payload.getString("service");
+        String message = payload.getString("message");
+
+        if (!targetService.equals(config.serviceName)) {
+            Log.warn("❌ [SERVICE] Message intended for service '" + targetService + "', but this is '" + config.serviceName + "'");
+            finish();
+            return;
+        }
+        
+        // Step 4: Validate nonce
+        byte[] nonceBytes = Base64.getDecoder().decode(receivedNonce);
+
+        // ✅ Check and add the nonce in one step
+        if (!nonceCache.checkAndAdd(nonceBytes)) {
+            Log.warn("⚠️ [SERVICE] Replay detected: nonce reused!");
+            finish();
+            return;
+        }
+
+        Log.debug(() -> "📥 [SERVICE] Received from " + sender + ": " + message);
+
+        // Step 5: Process message
+        String responseText = message.toUpperCase();
+
+        // Step 6: Encrypt response
+        start = System.nanoTime();
+        byte[] responseIv = Randomness.iv();
+        byte[] encryptedResponse = CryptoPrimitives.encryptGcm(ks, responseIv,
+                responseText.getBytes(StandardCharsets.UTF_8));
+        encryptLatency.recordSince(start);
+
+        // Step 7: Send encrypted response
+        JSONObject responseJson = new JSONObject();
+        responseJson.put("iv", Base64.getEncoder().encodeToString(responseIv));
+        responseJson.put("message", Base64.getEncoder().encodeToString(encryptedResponse));
+        out.sendMessage(responseJson);
+
+        Log.debug(() -> "📤 [SERVICE] Responded with: " + responseText);
+    }
+
+    /**
+     * Handles a sequence-numbered record. Replays are caught by the
+     * session's {@link ReplayWindow} rather than the shared nonce cache, and
+     * the IVs in both directions are derived from the sequence number under
+     * the connection's record key (see {@link RecordProtection}).
+     */
+    private void handleRecord(JSONObject record) throws Exception {
+        long seq = record.getLong("seq");
+        if (!replayWindow.isFresh(seq)) {
+            Log.warn("⚠️ [SERVICE] Replay detected: record " + seq + " already seen or too old!");
+            finish();
+            return;
+        }
+
+        long start = System.nanoTime();
+        byte[] ciphertext = Base64.getDecoder().decode(record.getString("message"));
+        byte[] plainBytes = CryptoPrimitives.decryptGcm(recordKey,
+                RecordProtection.iv(RecordProtection.CLIENT_TO_SERVICE, seq), ciphertext);
+        decryptLatency.recordSince(start);
+        // Only an authenticated record may move the window.
+        replayWindow.markSeen(seq);
+
+        JSONObject payload = JsonIO.readObject(new String(plainBytes, StandardCharsets.UTF_8));
+        String sender = payload.getString("user");
+        String targetService = payload.getString("service");
+        String message = payload.getString("message");
+
+        if (!targetService.equals(config.serviceName)) {
+            Log.warn("❌ [SERVICE] Message intended for service '" + targetService + "', but this is '" + config.serviceName + "'");
+            finish();
+            return;
+        }
+
+        Log.debug(() -> "📥 [SERVICE] Received record " + seq + " from " + sender + ": " + message);
+        String responseText = message.toUpperCase();
+
+        start = System.nanoTime();
+        byte[] encryptedResponse = CryptoPrimitives.encryptGcm(recordKey,
+                RecordProtection.iv(RecordProtection.SERVICE_TO_CLIENT, seq),
+                responseText.getBytes(StandardCharsets.UTF_8));
+        encryptLatency.recordSince(start);
+
+        JSONObject responseJson = new JSONObject();
+        responseJson.put("message", Base64.getEncoder().encodeToString(encryptedResponse));
+        responseJson.put("seq", seq);
+        out.sendMessage(responseJson);
+
+        Log.debug(() -> "📤 [SERVICE] Responded to record " + seq + " with: " + responseText);
+    }
+
+    /**
+     * Decrypts the session key from a ticket with the service secret. The
+     * ticket's user, service and times are authenticated along with it.
+     */
+    private SecretKeySpec unsealSessionKey(Ticket ticket) throws Exception {
+        long start = System.nanoTime();
+        String sessionKeyDecoded;
+        try {
+            sessionKeyDecoded = config.keytab != null
+                    ? decryptWithKeytab(ticket)
+                    : TicketIssuer.openTicket(ticket,
+                            new SecretKeySpec(CryptoUtils.deriveKey(config.serviceSecret), "AES"));
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException("Ticket is not valid for " + config.serviceName);
+        }
+        ticketDecryptLatency.recordSince(start);
+        byte[] sessionKeyBytes = Base64.getDecoder().decode(sessionKeyDecoded);
+        Log.debug(() -> "🔑 [SERVICE] Decrypted session key (base64): " + sessionKeyDecoded);
+        return new SecretKeySpec(sessionKeyBytes, "AES");
+    }
+
+    /**
+     * Opens a ticket with the service's keytab. Tickets do not say which key
+     * version sealed them, so each version is tried newest first and the GCM
+     * tag tells whether it was the right one.
+     */
+    private String decryptWithKeytab(Ticket ticket) throws Exception {
+        GeneralSecurityException last = null;
+        for (Keytab.Entry entry : config.getKeytab().getKeys(config.serviceName)) {
+            try {
+                return TicketIssuer.openTicket(ticket, new SecretKeySpec(entry.key(), "AES"));
+            } catch (GeneralSecurityException e) {
+                last = e;
+            }
         }
+        throw last != null ? last : new GeneralSecurityException("No keys for " + config.serviceName);
     }
 
-    private String combineIVandCipher(String iv, String cipherText) {
-        byte[] ivBytes = Base64.getDecoder().decode(iv);
-        byte[] cipherBytes = Base64.getDecoder().decode(cipherText);
-        byte[] combined = new byte[ivBytes.length + cipherBytes.length];
-        System.arraycopy(ivBytes, 0, combined, 0, ivBytes.length);
-        System.arraycopy(cipherBytes, 0, combined, ivBytes.length, cipherBytes.length);
-        return Base64.getEncoder().encodeToString(combined);
+    /**
+     * Ends the session and closes the connection.
+     */
+    private void finish() {
+        state = State.DONE;
+        out.close();
     }
-}
\ No newline at end of file
+}
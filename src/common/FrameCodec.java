@@ -0,0 +1,100 @@
+package common;
+
+import java.io.InvalidObjectException;
+import java.nio.charset.StandardCharsets;
+
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Wire framing shared by {@link Channel} and {@link NioConnection}.
+ *
+ * A frame starts with a codec byte. Legacy peers send newline delimited JSON,
+ * so their frames start with '{' and run to the end of the line. Newer peers
+ * send a length-prefixed frame instead:
+ *
+ * <pre>
+ *   [codec: 1 byte][payload length: 4 bytes, big endian][payload]
+ * </pre>
+ *
+ * where the payload is either UTF-8 JSON ({@link #JSON}) or the compact
+ * {@link BinaryCodec} encoding ({@link #BINARY}). The codec is chosen per
+ * frame, and servers answer in whatever codec the client last used, so no
+ * separate negotiation round trip is needed.
+ */
+public final class FrameCodec {
+    public static final int LEGACY = '{';
+    public static final int JSON = 0x01;
+    public static final int BINARY = 0x02;
+
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+
+    private static final LatencyHistogram encodeLatency = Metrics.histogram("frame_encode");
+    private static final LatencyHistogram decodeLatency = Metrics.histogram("frame_decode");
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Checks whether a leading byte starts a length-prefixed frame.
+     * @param codec the first byte of the frame.
+     * @return true for JSON and BINARY frames.
+     */
+    public static boolean isLengthPrefixed(int codec) {
+        return codec == JSON || codec == BINARY;
+    }
+
+    /**
+     * Encodes a message into a complete frame, including the header or the
+     * trailing newline.
+     * @param codec the codec to use.
+     * @param message the message to encode.
+     * @return the frame bytes.
+     */
+    public static byte[] encode(int codec, JSONObject message) {
+        long start = System.nanoTime();
+        byte[] frame = encodeFrame(codec, message);
+        encodeLatency.recordSince(start);
+        return frame;
+    }
+
+    private static byte[] encodeFrame(int codec, JSONObject message) {
+        if (codec == LEGACY) {
+            return (message.toJSON() + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] payload = codec == BINARY
+                ? BinaryCodec.encode(message)
+                : message.toJSON().getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[HEADER_SIZE + payload.length];
+        frame[0] = (byte) codec;
+        frame[1] = (byte) (payload.length >>> 24);
+        frame[2] = (byte) (payload.length >>> 16);
+        frame[3] = (byte) (payload.length >>> 8);
+        frame[4] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, HEADER_SIZE, payload.length);
+        return frame;
+    }
+
+    /**
+     * Decodes a frame payload.
+     * @param codec the codec byte of the frame.
+     * @param payload the payload, or the line for legacy frames.
+     * @return the decoded message.
+     * @throws InvalidObjectException if the payload is malformed.
+     */
+    public static JSONObject decode(int codec, byte[] payload) throws InvalidObjectException {
+        long start = System.nanoTime();
+        JSONObject json;
+        if (codec == BINARY) {
+            json = BinaryCodec.decode(payload);
+        } else {
+            json = JsonIO.readObject(new String(payload, StandardCharsets.UTF_8));
+        }
+        if (json == null) {
+            throw new InvalidObjectException("Malformed frame");
+        }
+        decodeLatency.recordSince(start);
+        return json;
+    }
+}
@@ -0,0 +1,36 @@
+package common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The connection handling modes shared by the KDC and the services, as set
+ * by the "io-mode" key of each daemon's configuration.
+ */
+public final class IoModes {
+    /** A fixed pool of platform threads, one per active connection. */
+    public static final String POOL = "pool";
+    /** One virtual thread per connection. */
+    public static final String VIRTUAL = "virtual";
+    /** The selector based {@link NioServer} transport. */
+    public static final String NIO = "nio";
+
+    private static final int POOL_SIZE = 10;
+
+    private IoModes() {
+    }
+
+    /**
+     * Creates the executor blocking connection handlers run on.
+     *
+     * @param ioMode The configured io-mode.
+     * @return A virtual thread per task executor in virtual mode, otherwise
+     *         the fixed pool.
+     */
+    public static ExecutorService newConnectionExecutor(String ioMode) {
+        if (VIRTUAL.equals(ioMode)) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(POOL_SIZE);
+    }
+}
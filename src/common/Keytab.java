@@ -0,0 +1,182 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A service's keys, already derived from its secret, so the service never
+ * needs the secret itself or runs scrypt.
+ *
+ * Each principal may have several versions of its key, numbered by a key
+ * version number (kvno) that grows by one per rotation. Keeping the
+ * previous versions lets a service still accept tickets sealed before a
+ * rotation until they expire; a ticket is opened with the newest key first.
+ *
+ * <pre>
+ * u32 magic "KTAB", u16 version, u32 entry count
+ * entries:  UTF principal, u32 kvno, u64 created millis, u16 key length, key
+ * u32 CRC32 of everything before it
+ * </pre>
+ *
+ * Keytabs are written by the KDC's KeytabTool and should be readable only
+ * by the service that owns them.
+ */
+public class Keytab {
+    static final int MAGIC = 0x4B544142; // "KTAB"
+    static final int VERSION = 1;
+
+    /**
+     * One version of a principal's key.
+     */
+    public record Entry(String principal, int kvno, long createdMillis, byte[] key) {
+    }
+
+    private final Map<String, List<Entry>> entries = new TreeMap<>();
+
+    /**
+     * Adds a key version.
+     * @param entry the key version; replaces one with the same kvno.
+     */
+    public void add(Entry entry) {
+        List<Entry> versions = entries.computeIfAbsent(entry.principal(), p -> new ArrayList<>());
+        versions.removeIf(e -> e.kvno() == entry.kvno());
+        versions.add(entry);
+        versions.sort(Comparator.comparingInt(Entry::kvno).reversed());
+    }
+
+    /**
+     * @param principal the principal name.
+     * @return the principal's key versions, newest first; empty if none.
+     */
+    public List<Entry> getKeys(String principal) {
+        return List.copyOf(entries.getOrDefault(principal, List.of()));
+    }
+
+    /**
+     * @param principal the principal name.
+     * @return the principal's newest key version, or null if none.
+     */
+    public Entry getLatest(String principal) {
+        List<Entry> versions = entries.get(principal);
+        return versions == null || versions.isEmpty() ? null : versions.get(0);
+    }
+
+    /**
+     * Drops all but the newest versions of a principal's key.
+     * @param principal the principal name.
+     * @param keep how many versions to keep.
+     * @return the number of versions dropped.
+     */
+    public int prune(String principal, int keep) {
+        List<Entry> versions = entries.get(principal);
+        int dropped = 0;
+        while (versions != null && versions.size() > keep) {
+            versions.remove(versions.size() - 1);
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * @return every key version, grouped by principal, newest first.
+     */
+    public List<Entry> entries() {
+        List<Entry> all = new ArrayList<>();
+        entries.values().forEach(all::addAll);
+        return all;
+    }
+
+    /**
+     * Reads a keytab file.
+     * @param file the keytab.
+     * @return the keytab.
+     * @throws IOException if the file cannot be read or is corrupt.
+     */
+    public static Keytab read(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if (bytes.length < 14) {
+            throw new IOException("Keytab " + file + " is truncated.");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC) {
+            throw new IOException(file + " is not a keytab.");
+        }
+        int version = in.readUnsignedShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported keytab version " + version + " in " + file);
+        }
+        in.skipNBytes(bytes.length - 10);
+        if (in.readInt() != (int) crc.getValue()) {
+            throw new IOException("Keytab " + file + " is corrupt.");
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(bytes, 6, bytes.length - 10));
+        Keytab keytab = new Keytab();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String principal = in.readUTF();
+            int kvno = in.readInt();
+            long created = in.readLong();
+            byte[] key = new byte[in.readUnsignedShort()];
+            in.readFully(key);
+            keytab.add(new Entry(principal, kvno, created, key));
+        }
+        return keytab;
+    }
+
+    /**
+     * Writes the keytab, readable only by its owner. The file is written
+     * next to its destination and moved into place, so a service never
+     * reads a partial keytab.
+     * @param out the keytab file to create or replace.
+     * @throws IOException if writing fails.
+     */
+    public void write(File out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        List<Entry> all = entries();
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeInt(all.size());
+        for (Entry e : all) {
+            data.writeUTF(e.principal());
+            data.writeInt(e.kvno());
+            data.writeLong(e.createdMillis());
+            data.writeShort(e.key().length);
+            data.write(e.key());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        data.writeInt((int) crc.getValue());
+
+        File dir = out.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(out.getName(), ".tmp", dir);
+        try {
+            try {
+                Files.setPosixFilePermissions(tmp.toPath(), PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system.
+            }
+            Files.write(tmp.toPath(), bytes.toByteArray());
+            Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+}
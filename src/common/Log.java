@@ -0,0 +1,232 @@
+package common;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * A small asynchronous, leveled logger for the daemons.
+ *
+ * Callers never touch System.out or System.err. Enabled records are placed
+ * in a bounded lock-free ring buffer and a single background thread formats
+ * and writes them, so worker threads do not serialize on the console lock.
+ * Disabled records cost a level check: debug messages are passed as a
+ * {@link Supplier} and are only built when debug logging is on. If the ring
+ * buffer is full the record is dropped and counted instead of blocking.
+ */
+public final class Log {
+
+    /**
+     * Log levels, from most to least verbose.
+     */
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static volatile Level threshold = Level.INFO;
+
+    // Bounded multi-producer, single-consumer queue. A slot is free for the
+    // producer claiming position p when its sequence equals p, and readable
+    // by the writer when its sequence equals p + 1.
+    private static final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile long head = 0;
+    private static volatile boolean writerIdle = false;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Sets the minimum level that is logged.
+     * @param level the new threshold.
+     */
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    /**
+     * Turns debug logging on or off, leaving INFO as the threshold when off.
+     * @param debug true to log debug records.
+     */
+    public static void setDebug(boolean debug) {
+        threshold = debug ? Level.DEBUG : Level.INFO;
+    }
+
+    public static Level getLevel() {
+        return threshold;
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0 && level != Level.OFF;
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    /**
+     * Returns the number of records dropped because the buffer was full.
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            publish(Level.DEBUG, message.get(), null);
+        }
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, message, null);
+        }
+    }
+
+    public static void info(Supplier<String> message) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, message.get(), null);
+        }
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            publish(Level.WARN, message, null);
+        }
+    }
+
+    public static void error(String message) {
+        if (isEnabled(Level.ERROR)) {
+            publish(Level.ERROR, message, null);
+        }
+    }
+
+    public static void error(String message, Throwable t) {
+        if (isEnabled(Level.ERROR)) {
+            publish(Level.ERROR, message, t);
+        }
+    }
+
+    /**
+     * Waits briefly for the writer to empty the buffer. Used on shutdown so
+     * the last records are not lost.
+     */
+    public static void flush() {
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (tail.get() != head && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            Thread.onSpinWait();
+        }
+    }
+
+    private static void publish(Level level, String message, Throwable t) {
+        Entry entry = new Entry(level, System.currentTimeMillis(), Thread.currentThread().getName(), message, t);
+        long pos;
+        while (true) {
+            pos = tail.get();
+            long seq = sequences.get((int) (pos & MASK));
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (seq < pos) {
+                // The writer has not freed this slot yet, the buffer is full.
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        int idx = (int) (pos & MASK);
+        slots.set(idx, entry);
+        sequences.set(idx, pos + 1);
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            int written = 0;
+            while (true) {
+                int idx = (int) (head & MASK);
+                if (sequences.get(idx) != head + 1) {
+                    break;
+                }
+                Entry entry = slots.get(idx);
+                slots.set(idx, null);
+                sequences.set(idx, head + CAPACITY);
+                head++;
+                write(entry);
+                written++;
+            }
+            if (written > 0) {
+                System.out.flush();
+                System.err.flush();
+                continue;
+            }
+            writerIdle = true;
+            if (sequences.get((int) (head & MASK)) != head + 1) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            writerIdle = false;
+        }
+    }
+
+    private static void write(Entry entry) {
+        StringBuilder line = new StringBuilder(64 + entry.message.length());
+        line.append(LocalTime.ofInstant(Instant.ofEpochMilli(entry.time), ZoneId.systemDefault()).format(TIME_FORMAT))
+            .append(' ').append(entry.level)
+            .append(" [").append(entry.thread).append("] ")
+            .append(entry.message);
+        if (entry.error != null) {
+            StringWriter trace = new StringWriter();
+            entry.error.printStackTrace(new PrintWriter(trace));
+            line.append(System.lineSeparator()).append(trace);
+        }
+        PrintStream stream = entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+        stream.println(line);
+    }
+
+    /**
+     * A record waiting to be written.
+     */
+    private static final class Entry {
+        private final Level level;
+        private final long time;
+        private final String thread;
+        private final String message;
+        private final Throwable error;
+
+        Entry(Level level, long time, String thread, String message, Throwable error) {
+            this.level = level;
+            this.time = time;
+            this.thread = thread;
+            this.message = message == null ? "null" : message;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package common;
+
+import java.util.Map;
+
+/**
+ * A {@link PrincipalDatabase} over an in-memory map of secrets, as loaded
+ * from secrets.json. Derived keys are computed on demand and kept in the
+ * {@link CryptoUtils} derived key cache.
+ */
+public class MapPrincipalDatabase implements PrincipalDatabase {
+    private final Map<String, String> secrets;
+
+    /**
+     * @param secrets the secrets by principal name. The map is used as is,
+     *        so it must be safe for concurrent reads.
+     */
+    public MapPrincipalDatabase(Map<String, String> secrets) {
+        this.secrets = secrets;
+    }
+
+    @Override
+    public String getSecret(String principal) {
+        return secrets.get(principal);
+    }
+
+    @Override
+    public byte[] getDerivedKey(String principal) throws Exception {
+        String secret = secrets.get(principal);
+        return secret == null ? null : CryptoUtils.deriveKey(secret);
+    }
+
+    @Override
+    public int size() {
+        return secrets.size();
+    }
+
+    public Map<String, String> getSecrets() {
+        return secrets;
+    }
+}
@@ -0,0 +1,41 @@
+package common;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * The outbound half of a connection. Protocol handlers only talk to their
+ * peer through this interface so the same handler can be driven by a
+ * blocking {@link Channel} or by the selector based {@link NioServer}.
+ */
+public interface MessageSink {
+
+    /**
+     * Send a JSON object to the peer.
+     *
+     * @param jsonMessage The message to send.
+     */
+    void sendMessage(JSONObject jsonMessage);
+
+    /**
+     * Send a serializable message to the peer.
+     *
+     * @param message The message to send.
+     */
+    void sendMessage(JSONSerializable message);
+
+    /**
+     * Close the connection once every queued message has been sent.
+     */
+    void close();
+
+    /**
+     * Close the connection if the peer sends nothing for this long, for
+     * connections kept open between requests. Transports that cannot time
+     * out reads ignore it.
+     *
+     * @param millis The idle timeout in milliseconds, 0 to wait forever.
+     */
+    default void setIdleTimeout(long millis) {
+    }
+}
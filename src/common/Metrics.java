@@ -0,0 +1,94 @@
+package common;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Process wide registry of latency histograms and gauges.
+ *
+ * Handlers look their histograms up once and keep the reference, so the
+ * registry itself is never on the request path. The {@link AdminServer}
+ * renders the registry as JSON or as Prometheus text.
+ */
+public final class Metrics {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed.
+     * @param name a Prometheus compatible metric name, e.g. "kdc_chap_verify".
+     * @return the histogram.
+     */
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, LatencyHistogram::new);
+    }
+
+    /**
+     * Registers a gauge, replacing any previous gauge with the same name.
+     * @param name a Prometheus compatible metric name.
+     * @param value supplies the current value when metrics are read.
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Renders all metrics as a JSON object. Latencies are in microseconds.
+     * @return the metrics.
+     */
+    public static JSONObject toJSON() {
+        JSONObject hists = new JSONObject();
+        for (LatencyHistogram h : new TreeMap<>(histograms).values()) {
+            JSONObject entry = new JSONObject();
+            entry.put("count", h.getCount());
+            entry.put("mean-us", h.getMean() / 1000.0);
+            entry.put("p50-us", h.getValueAtQuantile(0.5) / 1000.0);
+            entry.put("p90-us", h.getValueAtQuantile(0.9) / 1000.0);
+            entry.put("p99-us", h.getValueAtQuantile(0.99) / 1000.0);
+            entry.put("p999-us", h.getValueAtQuantile(0.999) / 1000.0);
+            entry.put("max-us", h.getMax() / 1000.0);
+            hists.put(h.getName(), entry);
+        }
+        JSONObject gaugeValues = new JSONObject();
+        for (Map.Entry<String, LongSupplier> g : new TreeMap<>(gauges).entrySet()) {
+            gaugeValues.put(g.getKey(), g.getValue().getAsLong());
+        }
+        JSONObject root = new JSONObject();
+        root.put("histograms", hists);
+        root.put("gauges", gaugeValues);
+        return root;
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     * Histograms are exported as summaries in seconds.
+     * @return the metrics text.
+     */
+    public static String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        for (LatencyHistogram h : new TreeMap<>(histograms).values()) {
+            String name = h.getName() + "_seconds";
+            sb.append("# TYPE ").append(name).append(" summary\n");
+            for (double q : QUANTILES) {
+                sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+                  .append(h.getValueAtQuantile(q) / 1e9).append('\n');
+            }
+            sb.append(name).append("_sum ").append(h.getSum() / 1e9).append('\n');
+            sb.append(name).append("_count ").append(h.getCount()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> g : new TreeMap<>(gauges).entrySet()) {
+            sb.append("# TYPE ").append(g.getKey()).append(" gauge\n");
+            sb.append(g.getKey()).append(' ').append(g.getValue().getAsLong()).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,393 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * A non-blocking connection owned by a {@link NioServer} event loop.
+ *
+ * The event loop splits inbound bytes into frames, either legacy newline
+ * delimited JSON or length-prefixed {@link FrameCodec} frames. Frames are
+ * handed to the protocol handler on the worker executor, one at a time
+ * and in order. Outbound messages are queued and written by the event loop
+ * when the socket is writable, in the codec of the last frame received.
+ *
+ * A client that pipelines faster than the workers handle its frames would
+ * otherwise grow the inbound queue without bound. Once
+ * {@link #MAX_QUEUED_FRAMES} are waiting the event loop stops reading the
+ * socket, leaving the rest in the kernel buffer and eventually pushing back
+ * on the client through TCP flow control, and reading resumes once the
+ * worker has drained the queue to half that.
+ *
+ * The same applies to replies: a client that pipelines requests but never
+ * reads the replies would grow the outbound queue instead. Once
+ * {@link #OUTBOUND_HIGH_WATER} bytes are waiting to be written the event
+ * loop stops reading, and it resumes once the socket has taken the queue
+ * down to {@link #OUTBOUND_LOW_WATER}.
+ */
+public class NioConnection implements MessageSink {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int NO_FRAME = -1;
+    static final int MAX_QUEUED_FRAMES = 64;
+    static final long OUTBOUND_HIGH_WATER = 256 * 1024;
+    static final long OUTBOUND_LOW_WATER = 64 * 1024;
+
+    private final SocketChannel socketChannel;
+    private final NioServer.EventLoop loop;
+    private final ExecutorService workers;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteArrayOutputStream partialFrame = new ByteArrayOutputStream();
+    private final Queue<Frame> inbound = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong outboundBytes = new AtomicLong();
+    private final AtomicBoolean readPaused = new AtomicBoolean(false);
+    private ProtocolHandler handler;
+    private SelectionKey key;
+    // Parser state, only touched by the event loop.
+    private int frameCodec = NO_FRAME;
+    private int headerBytes = 0;
+    private int frameLength = 0;
+    private volatile int replyCodec = FrameCodec.LEGACY;
+    private volatile boolean finished = false;
+    private volatile boolean closing = false;
+    private volatile boolean closed = false;
+    private volatile long idleTimeoutNanos = 0;
+    private volatile long lastRead = System.nanoTime();
+
+    NioConnection(SocketChannel socketChannel, NioServer.EventLoop loop, ExecutorService workers) {
+        this.socketChannel = socketChannel;
+        this.loop = loop;
+        this.workers = workers;
+    }
+
+    void setHandler(ProtocolHandler handler) {
+        this.handler = handler;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
+    /**
+     * Queue a JSON object to be sent to the peer.
+     *
+     * @param jsonMessage The message to send.
+     */
+    @Override
+    public void sendMessage(JSONObject jsonMessage) {
+        enqueue(jsonMessage);
+        Log.debug(() -> "Sent: " + jsonMessage.toJSON());
+    }
+
+    /**
+     * Queue a serializable message to be sent to the peer.
+     *
+     * @param message The message to send.
+     */
+    @Override
+    public void sendMessage(JSONSerializable message) {
+        JSONType json = message.toJSONType();
+        if (!(json instanceof JSONObject)) {
+            throw new IllegalArgumentException("Only JSON objects can be framed.");
+        }
+        enqueue((JSONObject) json);
+        Log.debug(() -> "Sent: " + json.toJSON());
+    }
+
+    /**
+     * Close the connection once the outbound queue has been flushed.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        closing = true;
+        loop.requestWrite(this);
+    }
+
+    /**
+     * Has the event loop close the connection once no bytes have arrived
+     * for this long.
+     *
+     * @param millis The idle timeout in milliseconds, 0 to wait forever.
+     */
+    @Override
+    public void setIdleTimeout(long millis) {
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        lastRead = System.nanoTime();
+        if (millis > 0) {
+            loop.watchIdle(this);
+        }
+    }
+
+    /**
+     * @return true if the idle timeout is set and has passed.
+     */
+    boolean isIdle(long now) {
+        long timeout = idleTimeoutNanos;
+        return timeout > 0 && now - lastRead > timeout;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    private void enqueue(JSONObject message) {
+        if (closed) {
+            return;
+        }
+        byte[] frame = FrameCodec.encode(replyCodec, message);
+        outboundBytes.addAndGet(frame.length);
+        outbound.add(ByteBuffer.wrap(frame));
+        loop.requestWrite(this);
+    }
+
+    /**
+     * Called by the event loop when the socket has data to read.
+     */
+    void onReadable() {
+        int read;
+        try {
+            read = socketChannel.read(readBuffer);
+        } catch (IOException e) {
+            closeNow();
+            return;
+        }
+        if (read < 0) {
+            closeNow();
+            return;
+        }
+        if (idleTimeoutNanos > 0) {
+            lastRead = System.nanoTime();
+        }
+
+        readBuffer.flip();
+        boolean gotFrame = false;
+        while (readBuffer.hasRemaining()) {
+            if (frameCodec == NO_FRAME) {
+                int b = readBuffer.get() & 0xFF;
+                if (FrameCodec.isLengthPrefixed(b)) {
+                    frameCodec = b;
+                    headerBytes = 0;
+                    frameLength = 0;
+                    continue;
+                }
+                frameCodec = FrameCodec.LEGACY;
+                readBuffer.position(readBuffer.position() - 1);
+            }
+
+            if (frameCodec == FrameCodec.LEGACY) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    gotFrame |= completeFrame();
+                } else if (b != '\r') {
+                    partialFrame.write(b);
+                }
+            } else if (headerBytes < 4) {
+                frameLength = (frameLength << 8) | (readBuffer.get() & 0xFF);
+                if (++headerBytes == 4) {
+                    if (frameLength < 0 || frameLength > FrameCodec.MAX_FRAME_SIZE) {
+                        break;
+                    }
+                    if (frameLength == 0) {
+                        gotFrame |= completeFrame();
+                    }
+                }
+            } else {
+                int n = Math.min(readBuffer.remaining(), frameLength - partialFrame.size());
+                partialFrame.write(readBuffer.array(), readBuffer.position(), n);
+                readBuffer.position(readBuffer.position() + n);
+                if (partialFrame.size() == frameLength) {
+                    gotFrame |= completeFrame();
+                }
+            }
+        }
+        readBuffer.clear();
+
+        if (partialFrame.size() > FrameCodec.MAX_FRAME_SIZE || frameLength > FrameCodec.MAX_FRAME_SIZE
+                || frameLength < 0) {
+            Log.warn("Frame too large, closing connection.");
+            closeNow();
+            return;
+        }
+        if (gotFrame) {
+            schedule();
+        }
+        if (mustPause()) {
+            pauseReading();
+        }
+    }
+
+    /**
+     * @return true if either queue has reached its bound.
+     */
+    private boolean mustPause() {
+        return queued.get() >= MAX_QUEUED_FRAMES || outboundBytes.get() >= OUTBOUND_HIGH_WATER;
+    }
+
+    /**
+     * @return true if both queues have drained far enough to read again.
+     */
+    private boolean canResume() {
+        return queued.get() <= MAX_QUEUED_FRAMES / 2 && outboundBytes.get() <= OUTBOUND_LOW_WATER;
+    }
+
+    /**
+     * Stops reading until the worker and the socket catch up. Runs on the
+     * event loop.
+     */
+    private void pauseReading() {
+        if (key == null || !key.isValid() || readPaused.get()) {
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        readPaused.set(true);
+        // The worker may have drained the queue before seeing the flag
+        if (canResume() && readPaused.compareAndSet(true, false)) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Reads again after {@link #pauseReading()}. Runs on the event loop.
+     */
+    void resumeReading() {
+        if (key == null || !key.isValid() || closed) {
+            return;
+        }
+        lastRead = System.nanoTime();
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    private boolean completeFrame() {
+        queued.incrementAndGet();
+        inbound.add(new Frame(frameCodec, partialFrame.toByteArray()));
+        partialFrame.reset();
+        frameCodec = NO_FRAME;
+        return true;
+    }
+
+    /**
+     * Called by the event loop when the socket is writable or a worker has
+     * queued new output.
+     */
+    void onWritable() {
+        if (key == null || closed) {
+            return;
+        }
+        try {
+            ByteBuffer buf;
+            while ((buf = outbound.peek()) != null) {
+                socketChannel.write(buf);
+                if (buf.hasRemaining()) {
+                    // Kernel buffer is full, wait for write readiness.
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    if (outboundBytes.get() >= OUTBOUND_HIGH_WATER) {
+                        pauseReading();
+                    }
+                    return;
+                }
+                outbound.poll();
+                outboundBytes.addAndGet(-buf.capacity());
+                if (canResume() && readPaused.compareAndSet(true, false)) {
+                    resumeReading();
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closing) {
+                closeNow();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Close the socket immediately, dropping any queued output.
+     */
+    void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        finished = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            Log.warn("Error closing connection: " + e.getMessage());
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            workers.execute(this::drain);
+        }
+    }
+
+    /**
+     * Runs queued frames through the protocol handler. Only one worker drains
+     * a connection at a time, which keeps frames in order.
+     */
+    private void drain() {
+        do {
+            Frame frame;
+            while ((frame = inbound.poll()) != null) {
+                queued.decrementAndGet();
+                if (canResume() && readPaused.compareAndSet(true, false)) {
+                    loop.requestRead(this);
+                }
+                if (finished) {
+                    continue;
+                }
+                replyCodec = frame.codec;
+                try {
+                    JSONObject json = FrameCodec.decode(frame.codec, frame.payload);
+                    Log.debug(() -> "Received: " + json.toJSON());
+                    if (!handler.onFrame(json)) {
+                        finished = true;
+                    }
+                } catch (Exception e) {
+                    finished = true;
+                    handler.onError(e);
+                }
+            }
+            scheduled.set(false);
+        } while (!inbound.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * A complete inbound frame and the codec it arrived in.
+     */
+    private static final class Frame {
+        private final int codec;
+        private final byte[] payload;
+
+        Frame(int codec, byte[] payload) {
+            this.codec = codec;
+            this.payload = payload;
+        }
+    }
+}
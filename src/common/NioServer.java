@@ -0,0 +1,287 @@
+package common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking, selector based server shared by the KDC and the services.
+ *
+ * The calling thread accepts connections and hands them out round robin to a
+ * small number of event loops. Each event loop owns a selector and handles
+ * read and write readiness for its connections. Complete frames are passed
+ * to the connection's {@link ProtocolHandler} on a worker executor, so slow
+ * or idle clients only cost a registered socket instead of a blocked thread.
+ */
+public class NioServer {
+    public static final int DEFAULT_LOOP_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    static final long IDLE_SWEEP_MILLIS = 1000;
+    static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+    /**
+     * Creates the protocol handler for a newly accepted connection.
+     */
+    public interface HandlerFactory {
+        ProtocolHandler create(MessageSink sink);
+    }
+
+    private final int port;
+    private final HandlerFactory factory;
+    private final ExecutorService workers;
+    private final EventLoop[] loops;
+
+    /**
+     * Creates a new server.
+     * @param port the port to listen on.
+     * @param loopCount the number of event loop threads.
+     * @param factory creates a protocol handler per connection.
+     * @param workers the executor protocol handlers run on.
+     */
+    public NioServer(int port, int loopCount, HandlerFactory factory, ExecutorService workers) {
+        if (loopCount <= 0) {
+            throw new IllegalArgumentException("Invalid event loop count.");
+        }
+        this.port = port;
+        this.factory = factory;
+        this.workers = workers;
+        this.loops = new EventLoop[loopCount];
+    }
+
+    /**
+     * Starts the event loops and accepts connections on the calling thread.
+     * A failure to accept or set up one client is logged and skipped; this
+     * method only returns if the listening socket itself is closed.
+     * @throws IOException if the server socket could not be opened.
+     */
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            int next = 0;
+            while (true) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    if (!server.isOpen()) {
+                        throw e;
+                    }
+                    // e.g. out of file descriptors; back off instead of spinning
+                    Log.warn("⚠️ Accept failed: " + e.getMessage());
+                    pauseAccepting();
+                    continue;
+                }
+                try {
+                    client.configureBlocking(false);
+                    client.socket().setTcpNoDelay(true);
+                } catch (IOException e) {
+                    // The client reset the connection while it was accepted
+                    Log.warn("⚠️ Dropping connection during accept: " + e.getMessage());
+                    closeQuietly(client);
+                    continue;
+                }
+                NioConnection conn = new NioConnection(client, loops[next], workers);
+                try {
+                    conn.setHandler(factory.create(conn));
+                } catch (RuntimeException e) {
+                    Log.error("Could not create a handler, dropping connection: " + e, e);
+                    closeQuietly(client);
+                    continue;
+                }
+                loops[next].register(conn);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    private static void pauseAccepting() {
+        try {
+            Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // Already gone.
+        }
+    }
+
+    /**
+     * A selector thread handling readiness events for a set of connections.
+     */
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<NioConnection> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> writeRequests = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> readRequests = new ConcurrentLinkedQueue<>();
+        // Connections with an idle timeout, swept about once a second.
+        private final Set<NioConnection> idleWatched = ConcurrentHashMap.newKeySet();
+        private long lastSweep = System.nanoTime();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Hands a new connection to this loop.
+         */
+        void register(NioConnection conn) {
+            registrations.add(conn);
+            selector.wakeup();
+        }
+
+        /**
+         * Has the loop close a connection once its idle timeout passes.
+         */
+        void watchIdle(NioConnection conn) {
+            idleWatched.add(conn);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks the loop to flush the outbound queue of a connection.
+         */
+        void requestWrite(NioConnection conn) {
+            writeRequests.add(conn);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks the loop to resume reading a connection it paused.
+         */
+        void requestRead(NioConnection conn) {
+            readRequests.add(conn);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    if (idleWatched.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.select(IDLE_SWEEP_MILLIS);
+                    }
+                    processRegistrations();
+                    processWriteRequests();
+                    processReadRequests();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        try {
+                            if (!key.isValid()) {
+                                conn.closeNow();
+                                continue;
+                            }
+                            if (key.isReadable()) {
+                                conn.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.onWritable();
+                            }
+                        } catch (RuntimeException e) {
+                            closeOnError(conn, e);
+                        }
+                    }
+                    sweepIdle();
+                } catch (ClosedSelectorException e) {
+                    Log.error("Event loop selector closed, stopping.");
+                    return;
+                } catch (IOException e) {
+                    Log.error("Error in event loop: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // Keep serving the other connections on this loop
+                    Log.error("Error in event loop: " + e, e);
+                }
+            }
+        }
+
+        /**
+         * Drops a connection whose event handling failed, so one broken
+         * connection cannot take the loop and its other connections down.
+         */
+        private static void closeOnError(NioConnection conn, RuntimeException e) {
+            Log.error("Closing connection after an error: " + e, e);
+            conn.closeNow();
+        }
+
+        private void sweepIdle() {
+            long now = System.nanoTime();
+            if (idleWatched.isEmpty() || now - lastSweep < TimeUnit.MILLISECONDS.toNanos(IDLE_SWEEP_MILLIS)) {
+                return;
+            }
+            lastSweep = now;
+            Iterator<NioConnection> it = idleWatched.iterator();
+            while (it.hasNext()) {
+                NioConnection conn = it.next();
+                if (conn.isClosed()) {
+                    it.remove();
+                } else if (conn.isIdle(now)) {
+                    Log.debug(() -> "Closing idle connection " + conn.getSocketChannel().socket().getRemoteSocketAddress());
+                    it.remove();
+                    conn.closeNow();
+                }
+            }
+        }
+
+        private void processRegistrations() {
+            NioConnection conn;
+            while ((conn = registrations.poll()) != null) {
+                try {
+                    conn.setKey(conn.getSocketChannel().register(selector, SelectionKey.OP_READ, conn));
+                } catch (IOException e) {
+                    conn.closeNow();
+                } catch (RuntimeException e) {
+                    closeOnError(conn, e);
+                }
+            }
+        }
+
+        private void processWriteRequests() {
+            NioConnection conn;
+            while ((conn = writeRequests.poll()) != null) {
+                try {
+                    conn.onWritable();
+                } catch (RuntimeException e) {
+                    closeOnError(conn, e);
+                }
+            }
+        }
+
+        private void processReadRequests() {
+            NioConnection conn;
+            while ((conn = readRequests.poll()) != null) {
+                try {
+                    conn.resumeReading();
+                } catch (RuntimeException e) {
+                    closeOnError(conn, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package common;
+
+/**
+ * Read access to the KDC's principals: the CHAP secret of each principal
+ * and the AES key derived from it, which seals the session keys sent to
+ * that principal.
+ *
+ * Implementations must be safe for concurrent lookups.
+ */
+public interface PrincipalDatabase {
+
+    /**
+     * Returns the shared secret of a principal.
+     * @param principal the user or service name.
+     * @return the secret, or null if the principal is unknown.
+     */
+    String getSecret(String principal);
+
+    /**
+     * Returns the key derived from a principal's secret, as produced by
+     * {@link CryptoUtils#deriveKey(String)}.
+     * @param principal the user or service name.
+     * @return a 32 byte key owned by the caller, or null if the principal is
+     *         unknown.
+     * @throws Exception if the key could not be derived.
+     */
+    byte[] getDerivedKey(String principal) throws Exception;
+
+    /**
+     * @param principal the user or service name.
+     * @return true if the principal is known.
+     */
+    default boolean contains(String principal) {
+        return getSecret(principal) != null;
+    }
+
+    /**
+     * @return the number of principals.
+     */
+    int size();
+}
@@ -0,0 +1,31 @@
+package common;
+
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * A protocol state machine driven by complete inbound frames.
+ *
+ * A handler is created per connection and is never called concurrently;
+ * frames are delivered one at a time in the order they were received.
+ */
+public interface ProtocolHandler {
+
+    /**
+     * Process one complete frame received from the peer.
+     *
+     * @param frame The decoded frame.
+     * @return true if the handler expects more frames, false once the session
+     *         is finished.
+     * @throws Exception If the frame could not be processed. The transport
+     *         then calls {@link #onError(Exception)}.
+     */
+    boolean onFrame(JSONObject frame) throws Exception;
+
+    /**
+     * Called when processing a frame failed. Implementations report the
+     * failure to the peer if the protocol allows it and close the connection.
+     *
+     * @param e The failure.
+     */
+    void onError(Exception e);
+}
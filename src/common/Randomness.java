@@ -0,0 +1,289 @@
+package common;
+
+import java.lang.ref.WeakReference;
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The shared source of nonces, IVs and other random bytes.
+ *
+ * Each platform thread gets its own DRBG, so generating bytes never contends
+ * on a shared lock. Virtual threads share a small striped set of DRBGs
+ * instead of seeding one each; the stripes are guarded by a ReentrantLock so
+ * a contended stripe parks the virtual thread rather than pinning its
+ * carrier.
+ *
+ * A DRBG is due for a reseed after {@link #RESEED_BYTES} bytes or
+ * {@link #RESEED_INTERVAL_NANOS}, whichever comes first. The request path
+ * only notices that and wakes the background thread, which seeds a fresh
+ * DRBG from the OS and swaps it in, so a caller never waits on OS entropy.
+ * A DRBG may run slightly past its budget until the swap happens.
+ *
+ * The common sizes (12 byte IVs, 16 byte nonces, 32 byte challenges) are
+ * also served from lock-free pre-filled pools. A background thread keeps the
+ * pools topped up; if a pool runs dry the caller falls back to its own DRBG
+ * rather than waiting.
+ */
+public final class Randomness {
+    public static final int IV_SIZE = 12;
+    public static final int NONCE_SIZE = 16;
+    public static final int CHALLENGE_SIZE = 32;
+
+    static final long RESEED_BYTES = 1L << 20;
+    static final long RESEED_INTERVAL_NANOS = 10L * 60 * 1_000_000_000L;
+
+    private static final int POOL_CAPACITY = 1024;
+    private static final int STRIPES = 16;
+    private static final long REFILL_PARK_NANOS = 50_000_000L;
+
+    private static final Queue<WeakReference<Drbg>> locals = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<Drbg> local = ThreadLocal.withInitial(() -> {
+        Drbg drbg = new Drbg();
+        locals.add(new WeakReference<>(drbg));
+        return drbg;
+    });
+    private static final Drbg[] shared = new Drbg[STRIPES];
+    private static final Pool ivs = new Pool(IV_SIZE);
+    private static final Pool nonces = new Pool(NONCE_SIZE);
+    private static final Pool challenges = new Pool(CHALLENGE_SIZE);
+    private static final AtomicLong poolHits = new AtomicLong();
+    private static final AtomicLong poolMisses = new AtomicLong();
+    private static final AtomicBoolean refillRequested = new AtomicBoolean();
+    private static final Thread refiller;
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            shared[i] = new Drbg();
+        }
+        Metrics.gauge("randomness_pool_hits", poolHits::get);
+        Metrics.gauge("randomness_pool_misses", poolMisses::get);
+        refiller = new Thread(Randomness::refillLoop, "randomness-refill");
+        refiller.setDaemon(true);
+        refiller.start();
+    }
+
+    private Randomness() {
+    }
+
+    /**
+     * @return a fresh 12 byte AES-GCM IV.
+     */
+    public static byte[] iv() {
+        return ivs.take();
+    }
+
+    /**
+     * @return a fresh 16 byte nonce.
+     */
+    public static byte[] nonce() {
+        return nonces.take();
+    }
+
+    /**
+     * @return a fresh 32 byte CHAP challenge.
+     */
+    public static byte[] challenge() {
+        return challenges.take();
+    }
+
+    /**
+     * Returns fresh random bytes, from a pool when the length has one.
+     * @param length the number of bytes.
+     * @return the bytes.
+     */
+    public static byte[] bytes(int length) {
+        switch (length) {
+            case IV_SIZE: return ivs.take();
+            case NONCE_SIZE: return nonces.take();
+            case CHALLENGE_SIZE: return challenges.take();
+            default:
+                byte[] out = new byte[length];
+                nextBytes(out);
+                return out;
+        }
+    }
+
+    /**
+     * Fills a buffer from the calling thread's DRBG.
+     * @param out the buffer to fill.
+     */
+    public static void nextBytes(byte[] out) {
+        current().nextBytes(out);
+    }
+
+    /**
+     * Returns a SecureRandom for APIs that take one, such as KeyGenerator.
+     * It is the calling thread's DRBG and must not be handed to other threads.
+     */
+    public static SecureRandom secureRandom() {
+        return current().random;
+    }
+
+    public static long getPoolHits() {
+        return poolHits.get();
+    }
+
+    public static long getPoolMisses() {
+        return poolMisses.get();
+    }
+
+    private static Drbg current() {
+        Thread t = Thread.currentThread();
+        if (t.isVirtual()) {
+            return shared[(int) (t.threadId() & (STRIPES - 1))];
+        }
+        return local.get();
+    }
+
+    private static void requestRefill() {
+        if (refillRequested.compareAndSet(false, true)) {
+            LockSupport.unpark(refiller);
+        }
+    }
+
+    private static void refillLoop() {
+        while (true) {
+            refillRequested.set(false);
+            reseedDue();
+            ivs.fill();
+            nonces.fill();
+            challenges.fill();
+            if (!refillRequested.get()) {
+                LockSupport.parkNanos(REFILL_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Reseeds every DRBG that is due, on the refill thread.
+     */
+    private static void reseedDue() {
+        for (Drbg drbg : shared) {
+            drbg.reseedIfDue();
+        }
+        Iterator<WeakReference<Drbg>> it = locals.iterator();
+        while (it.hasNext()) {
+            Drbg drbg = it.next().get();
+            if (drbg == null) {
+                it.remove();
+            } else {
+                drbg.reseedIfDue();
+            }
+        }
+    }
+
+    /**
+     * A DRBG with its own reseed schedule.
+     */
+    private static final class Drbg {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile SecureRandom random = newDrbg();
+        private long generated = 0;
+        private volatile long reseedAt = System.nanoTime() + RESEED_INTERVAL_NANOS;
+        private volatile boolean due = false;
+
+        /**
+         * Creates a DRBG and seeds it right away; the JDK otherwise seeds
+         * lazily on the first nextBytes, which would be on a caller.
+         */
+        private static SecureRandom newDrbg() {
+            SecureRandom r;
+            try {
+                r = SecureRandom.getInstance("DRBG",
+                        DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, null));
+            } catch (NoSuchAlgorithmException e) {
+                r = new SecureRandom();
+            }
+            r.nextBytes(new byte[1]);
+            return r;
+        }
+
+        void nextBytes(byte[] out) {
+            lock.lock();
+            try {
+                random.nextBytes(out);
+                generated += out.length;
+                if (!due && (generated >= RESEED_BYTES || System.nanoTime() - reseedAt >= 0)) {
+                    due = true;
+                    requestRefill();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Swaps in a freshly seeded DRBG if this one is due. Seeding, which
+         * may wait on OS entropy, happens before taking the lock.
+         */
+        void reseedIfDue() {
+            if (!due && System.nanoTime() - reseedAt < 0) {
+                return;
+            }
+            SecureRandom fresh = newDrbg();
+            lock.lock();
+            try {
+                random = fresh;
+                generated = 0;
+                reseedAt = System.nanoTime() + RESEED_INTERVAL_NANOS;
+                due = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A fixed ring of pre-generated values. Consumers claim a slot with an
+     * atomic counter and swap it to null; only the refill thread puts values
+     * back, so a value is never handed out twice.
+     */
+    private static final class Pool {
+        private final int size;
+        private final AtomicReferenceArray<byte[]> slots = new AtomicReferenceArray<>(POOL_CAPACITY);
+        private final AtomicLong cursor = new AtomicLong();
+        private final AtomicInteger available = new AtomicInteger();
+
+        Pool(int size) {
+            this.size = size;
+        }
+
+        byte[] take() {
+            int i = (int) (cursor.getAndIncrement() & (POOL_CAPACITY - 1));
+            byte[] value = slots.getAndSet(i, null);
+            if (value == null) {
+                poolMisses.incrementAndGet();
+                requestRefill();
+                value = new byte[size];
+                nextBytes(value);
+                return value;
+            }
+            poolHits.incrementAndGet();
+            if (available.decrementAndGet() < POOL_CAPACITY / 2) {
+                requestRefill();
+            }
+            return value;
+        }
+
+        void fill() {
+            for (int i = 0; i < POOL_CAPACITY && available.get() < POOL_CAPACITY; i++) {
+                if (slots.get(i) == null) {
+                    byte[] value = new byte[size];
+                    nextBytes(value);
+                    slots.set(i, value);
+                    available.incrementAndGet();
+                }
+            }
+        }
+    }
+}
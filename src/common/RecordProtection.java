@@ -0,0 +1,61 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keys and IVs for sequence-numbered service records.
+ *
+ * A session key may be used for more than one connection, so records are
+ * not encrypted under it directly. Both sides derive a record key for the
+ * connection from the session key and the two handshake nonces:
+ *
+ * <pre>
+ *   recordKey = HMAC-SHA256(sessionKey, "service record key" || Nc || Ns || 0x01)
+ * </pre>
+ *
+ * which is HKDF-Expand with the session key as the PRK. The GCM IV of each
+ * record is then its direction followed by its sequence number, so IVs
+ * never repeat under a key and need no random bytes. Because the sequence
+ * number is part of the IV, a record presented under another number fails
+ * authentication.
+ */
+public final class RecordProtection {
+    public static final int CLIENT_TO_SERVICE = 1;
+    public static final int SERVICE_TO_CLIENT = 2;
+
+    private static final byte[] INFO = "service record key".getBytes(StandardCharsets.US_ASCII);
+
+    private RecordProtection() {
+    }
+
+    /**
+     * Derives a connection's record key.
+     * @param sessionKey the session key from the ticket.
+     * @param clientNonce the client's handshake nonce Nc.
+     * @param serviceNonce the service's handshake nonce Ns.
+     * @return the AES-256 record key.
+     */
+    public static SecretKeySpec deriveKey(SecretKeySpec sessionKey, byte[] clientNonce, byte[] serviceNonce)
+            throws GeneralSecurityException {
+        Mac mac = CryptoPrimitives.hmacSha256(sessionKey.getEncoded());
+        mac.update(INFO);
+        mac.update(clientNonce);
+        mac.update(serviceNonce);
+        mac.update((byte) 1);
+        return new SecretKeySpec(mac.doFinal(), "AES");
+    }
+
+    /**
+     * @param direction {@link #CLIENT_TO_SERVICE} or {@link #SERVICE_TO_CLIENT}.
+     * @param seq the record sequence number.
+     * @return the 12 byte GCM IV for the record.
+     */
+    public static byte[] iv(int direction, long seq) {
+        return ByteBuffer.allocate(Randomness.IV_SIZE).putInt(direction).putLong(seq).array();
+    }
+}
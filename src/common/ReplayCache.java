@@ -0,0 +1,35 @@
+package common;
+
+/**
+ * Remembers nonces for a while so a replayed message can be refused.
+ *
+ * The method names follow merrimackutil's NonceCache, which this replaces.
+ * Callers that check and then record a nonce should use
+ * {@link #checkAndAdd(byte[])}, which does both atomically so two copies of
+ * a message racing on different threads cannot both pass.
+ */
+public interface ReplayCache {
+    /**
+     * @param nonce the nonce.
+     * @return true if the nonce was added recently enough to still count.
+     */
+    boolean containsNonce(byte[] nonce);
+
+    /**
+     * Records a nonce as seen now.
+     * @param nonce the nonce.
+     */
+    void addNonce(byte[] nonce);
+
+    /**
+     * Records a nonce unless it has already been seen.
+     * @param nonce the nonce.
+     * @return true if the nonce is new, false if it is a replay.
+     */
+    boolean checkAndAdd(byte[] nonce);
+
+    /**
+     * @return about how many nonces are held.
+     */
+    long size();
+}
@@ -0,0 +1,57 @@
+package common;
+
+/**
+ * The replay cache modes shared by the KDC and the services, as set by the
+ * "replay-cache" key of each daemon's configuration.
+ */
+public final class ReplayCaches {
+    /** A {@link StripedReplayCache}: exact, memory grows with traffic. */
+    public static final String EXACT = "exact";
+    /** A {@link BloomReplayCache}: fixed memory, rare false positives. */
+    public static final String BLOOM = "bloom";
+
+    /**
+     * How long a nonce is remembered by default, in seconds. It matches
+     * the lifetime of the service tickets the TGS issues, after which a
+     * replayed handshake is refused anyway.
+     */
+    public static final int DEFAULT_WINDOW_SECONDS = 60;
+    public static final long DEFAULT_CAPACITY = 1_000_000;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 1e-6;
+
+    private ReplayCaches() {
+    }
+
+    /**
+     * Creates the configured replay cache and exports its metrics:
+     * replay_cache_entries, and for the Bloom mode replay_cache_fp_ppm (the
+     * live false-positive estimate in parts per million) and
+     * replay_cache_bytes.
+     *
+     * @param mode The configured replay-cache mode.
+     * @param nonceSize The length of every nonce in bytes.
+     * @param ageSeconds How long a nonce is remembered.
+     * @param capacity The nonces expected per age period, for the Bloom mode.
+     * @param falsePositiveRate The target false-positive rate, for the Bloom mode.
+     * @return The cache.
+     * @throws IllegalArgumentException If the mode is unknown.
+     */
+    public static ReplayCache create(String mode, int nonceSize, int ageSeconds, long capacity,
+            double falsePositiveRate) {
+        ReplayCache cache;
+        if (BLOOM.equals(mode)) {
+            BloomReplayCache bloom = new BloomReplayCache(nonceSize, ageSeconds, capacity, falsePositiveRate);
+            Metrics.gauge("replay_cache_fp_ppm", () -> Math.round(bloom.getFalsePositiveRate() * 1e6));
+            Metrics.gauge("replay_cache_bytes", bloom::getMemoryBytes);
+            Log.info("Bloom replay cache: " + bloom.getMemoryBytes() / 1024 + " KiB, "
+                    + bloom.getHashes() + " hashes, " + capacity + " nonces per " + ageSeconds + " s");
+            cache = bloom;
+        } else if (EXACT.equals(mode)) {
+            cache = new StripedReplayCache(nonceSize, ageSeconds);
+        } else {
+            throw new IllegalArgumentException("Unknown replay-cache mode: " + mode);
+        }
+        Metrics.gauge("replay_cache_entries", cache::size);
+        return cache;
+    }
+}
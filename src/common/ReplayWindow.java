@@ -0,0 +1,58 @@
+package common;
+
+/**
+ * Anti-replay for one session's sequence-numbered records, as in IPsec ESP
+ * (RFC 4303) and DTLS (RFC 6347): the highest sequence number accepted so
+ * far plus a bitmap of which of the {@value #SIZE} numbers below it have
+ * been seen. A number above the window is new and slides it forward; one
+ * inside it is new only if its bit is clear; one below it is too old to
+ * tell and is refused.
+ *
+ * Callers check a number with {@link #isFresh(long)} before the record is
+ * authenticated and only {@link #markSeen(long)} it afterwards, so a forged
+ * record cannot move the window. The window is per session and not
+ * thread-safe, which matches how each session's records are processed.
+ */
+public class ReplayWindow {
+    public static final int SIZE = 64;
+
+    private long highest = 0;
+    private long bitmap = 0;
+
+    /**
+     * @param seq a record sequence number, starting at 1.
+     * @return true if the number has not been seen and is not too old.
+     */
+    public boolean isFresh(long seq) {
+        if (seq <= 0) {
+            return false;
+        }
+        if (seq > highest) {
+            return true;
+        }
+        long offset = highest - seq;
+        return offset < SIZE && (bitmap & (1L << offset)) == 0;
+    }
+
+    /**
+     * Records a number as seen. Call only after {@link #isFresh(long)}
+     * returned true and the record was authenticated.
+     * @param seq the record sequence number.
+     */
+    public void markSeen(long seq) {
+        if (seq > highest) {
+            long shift = seq - highest;
+            bitmap = shift < SIZE ? (bitmap << shift) | 1L : 1L;
+            highest = seq;
+        } else {
+            bitmap |= 1L << (highest - seq);
+        }
+    }
+
+    /**
+     * @return the highest sequence number seen, 0 if none.
+     */
+    public long getHighest() {
+        return highest;
+    }
+}
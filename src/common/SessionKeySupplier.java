@@ -0,0 +1,14 @@
+package common;
+
+/**
+ * A source of fresh session keys for the tickets issued by the KDC.
+ */
+public interface SessionKeySupplier {
+
+    /**
+     * Returns a session key that has never been handed out before.
+     * @return an AES-256 key, base64 encoded.
+     * @throws Exception If no key could be produced.
+     */
+    String nextSessionKey() throws Exception;
+}
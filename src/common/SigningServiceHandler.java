@@ -2,13 +2,10 @@ package common;
 
 import merrimackutil.json.JsonIO;
 import merrimackutil.json.types.JSONObject;
-import merrimackutil.util.NonceCache;
 import common.service.ClientHello;
 import common.service.ClientResponse;
 import common.service.HandshakeResponse;
 import echoservice.Config;
-import javax.crypto.Cipher;
-import javax.crypto.spec.GCMParameterSpec;
 
 import java.security.*;
 import java.util.Base64;
@@ -17,13 +14,35 @@ import java.security.spec.PKCS8EncodedKeySpec;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 
-public class SigningServiceHandler implements Runnable {
+public class SigningServiceHandler implements Runnable, ProtocolHandler {
+
+    /**
+     * Where the handler is in the service handshake.
+     */
+    private enum State { HELLO, CLIENT_RESPONSE, MESSAGES, DONE }
+
+    private static final LatencyHistogram signLatency = Metrics.histogram("signing_sign");
+
     private Channel channel;
+    private MessageSink out;
     private signature.Config config;
     private RSAPrivateKey privateKey;
+    private State state = State.HELLO;
 
-    public SigningServiceHandler(Channel channel, NonceCache nonceCache, signature.Config config2, PrivateKey signingKey) {
+    public SigningServiceHandler(Channel channel, ReplayCache nonceCache, signature.Config config2, PrivateKey signingKey) {
+        this((MessageSink) channel, nonceCache, config2, signingKey);
         this.channel = channel;
+    }
+
+    /**
+     * Creates a handler driven frame by frame by a non-blocking transport.
+     * @param out the connection to reply on.
+     * @param nonceCache the nonce cache to check for replay attacks.
+     * @param config2 the signature service configuration.
+     * @param signingKey the service's signing key.
+     */
+    public SigningServiceHandler(MessageSink out, ReplayCache nonceCache, signature.Config config2, PrivateKey signingKey) {
+        this.out = out;
         this.config = config2;
 
         try {
@@ -34,86 +53,101 @@ public class SigningServiceHandler implements Runnable {
             KeyFactory keyFactory = KeyFactory.getInstance("RSA");
             this.privateKey = (RSAPrivateKey) keyFactory.generatePrivate(keySpec);
         } catch (Exception e) {
-            System.err.println("❌ Error loading private key: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("❌ Error loading private key: " + e.getMessage(), e);
         }
     }
 
     @Override
     public void run() {
         try {
-            System.out.println("🔓 Receiving ClientHello...");
-            JSONObject helloJson = channel.receiveMessage();
-            ClientHello hello = new ClientHello(null, "");
-            hello.deserialize(helloJson);
-
-            // 🔐 Session setup (similar to EchoServiceHandler, without nonce handling)
-
-            // 🧾 Step 3: Receive ClientResponse
-            System.out.println("📥 Waiting for ClientResponse...");
-            JSONObject clientRespJson = channel.receiveMessage();
-            ClientResponse clientResp = new ClientResponse("", "", "", "");
-            clientResp.deserialize(clientRespJson);
-
-            // ✅ Session handshake verified (simplified here)
-
-            while (true) {
-                try {
-                    // Step 1: Receive encrypted message from client
-                    JSONObject incomingMsg = channel.receiveMessage();
-                    String ivBase64 = incomingMsg.getString("iv");
-                    String cipherBase64 = incomingMsg.getString("message");
-
-                    byte[] msgIv = Base64.getDecoder().decode(ivBase64);
-                    byte[] ciphertext = Base64.getDecoder().decode(cipherBase64);
-
-                    // Step 2: Decrypt the encrypted message
-                    // In this signing service, we just need the plain text message
-                    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-                    GCMParameterSpec spec = new GCMParameterSpec(128, msgIv);
-                    cipher.init(Cipher.DECRYPT_MODE, null, spec);  // No session key, since it's a signing service
-                    byte[] plainBytes = cipher.doFinal(ciphertext);
-                    String decryptedStr = new String(plainBytes, StandardCharsets.UTF_8);
-
-                    // Step 3: Parse decrypted JSON message
-                    JSONObject payload = JsonIO.readObject(decryptedStr);
-                    String message = payload.getString("message");
-
-                    System.out.println("📥 [SERVICE] Received message: " + message);
-
-                    // Step 4: Sign the SHA-256 hash of the received message
-                    byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
-                    MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                    byte[] hash = digest.digest(messageBytes);
-
-                    // Sign the hash using the RSA private key
-                    Signature signature = Signature.getInstance("SHA256withRSA");
-                    signature.initSign(privateKey);
-                    signature.update(hash);
-                    byte[] signedHash = signature.sign();
-
-                    // Step 5: Send the signature back to the client
-                    String base64Signature = Base64.getEncoder().encodeToString(signedHash);
-
-                    // Construct response JSON with the signature
-                    JSONObject responseJson = new JSONObject();
-                    responseJson.put("signature", base64Signature);
-                    channel.sendMessage(responseJson);
-
-                    System.out.println("📤 [SERVICE] Responded with signature: " + base64Signature);
-
-                } catch (Exception e) {
-                    System.err.println("❌ [SERVICE] Error in communication loop: " + e.getMessage());
-                    e.printStackTrace();
-                    channel.close();
-                    break;
-                }
+            Log.debug(() -> "🔓 Receiving ClientHello...");
+            while (onFrame(channel.receiveMessage())) {
+                // Keep feeding frames until the session ends.
             }
-
         } catch (Exception e) {
-            System.err.println("❌ Error in SigningServiceHandler: " + e.getMessage());
-            e.printStackTrace();
-            channel.close();
+            onError(e);
         }
     }
+
+    @Override
+    public boolean onFrame(JSONObject frame) throws Exception {
+        switch (state) {
+            case HELLO:
+                ClientHello hello = new ClientHello(null, "");
+                hello.deserialize(frame);
+
+                // 🔐 Session setup (similar to EchoServiceHandler, without nonce handling)
+
+                // 🧾 Step 3: Wait for ClientResponse
+                state = State.CLIENT_RESPONSE;
+                break;
+            case CLIENT_RESPONSE:
+                ClientResponse clientResp = new ClientResponse("", "", "", "");
+                clientResp.deserialize(frame);
+
+                // ✅ Session handshake verified (simplified here)
+                state = State.MESSAGES;
+                break;
+            case MESSAGES:
+                handleMessage(frame);
+                break;
+            default:
+                break;
+        }
+        return state != State.DONE;
+    }
+
+    @Override
+    public void onError(Exception e) {
+        if (state == State.MESSAGES) {
+            Log.error("❌ [SERVICE] Error in communication loop: " + e.getMessage(), e);
+        } else {
+            Log.error("❌ Error in SigningServiceHandler: " + e.getMessage(), e);
+        }
+        state = State.DONE;
+        out.close();
+    }
+
+    private void handleMessage(JSONObject incomingMsg) throws Exception {
+        // Step 1: Receive encrypted message from client
+        String ivBase64 = incomingMsg.getString("iv");
+        String cipherBase64 = incomingMsg.getString("message");
+
+        byte[] msgIv = Base64.getDecoder().decode(ivBase64);
+        byte[] ciphertext = Base64.getDecoder().decode(cipherBase64);
+
+        // Step 2: Decrypt the encrypted message
+        // In this signing service, we just need the plain text message
+        // No session key, since it's a signing service
+        byte[] plainBytes = CryptoPrimitives.decryptGcm(null, msgIv, ciphertext);
+        String decryptedStr = new String(plainBytes, StandardCharsets.UTF_8);
+
+        // Step 3: Parse decrypted JSON message
+        JSONObject payload = JsonIO.readObject(decryptedStr);
+        String message = payload.getString("message");
+
+        Log.debug(() -> "📥 [SERVICE] Received message: " + message);
+
+        // Step 4: Sign the SHA-256 hash of the received message
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = CryptoPrimitives.sha256().digest(messageBytes);
+
+        // Sign the hash using the RSA private key
+        long start = System.nanoTime();
+        Signature signature = CryptoPrimitives.sha256WithRsa();
+        signature.initSign(privateKey);
+        signature.update(hash);
+        byte[] signedHash = signature.sign();
+        signLatency.recordSince(start);
+
+        // Step 5: Send the signature back to the client
+        String base64Signature = Base64.getEncoder().encodeToString(signedHash);
+
+        // Construct response JSON with the signature
+        JSONObject responseJson = new JSONObject();
+        responseJson.put("signature", base64Signature);
+        out.sendMessage(responseJson);
+
+        Log.debug(() -> "📤 [SERVICE] Responded with signature: " + base64Signature);
+    }
 }
@@ -0,0 +1,245 @@
+package common;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link ReplayCache} built for many threads checking nonces at once.
+ *
+ * Nonces are reduced to 64-bit fingerprints under a per-process random key
+ * and kept in primitive open-addressing tables, so an entry costs eight
+ * bytes rather than a Base64 string key and a boxed timestamp. A
+ * fingerprint picks one of {@link #STRIPES} independently locked stripes,
+ * so threads only contend when they land on the same stripe. Like
+ * {@link DerivedKeyCache} the stripes use a ReentrantLock, so a contended
+ * stripe parks a virtual thread instead of pinning its carrier.
+ *
+ * Each stripe divides time into {@link #BUCKETS} buckets of a fixed width
+ * and adds into the current one. A nonce is seen while its bucket is still
+ * live; when time moves on, the oldest bucket is dropped whole instead of
+ * expiring entries one by one. Nonces are therefore held for at least the
+ * age limit and at most one bucket width longer, never shorter.
+ *
+ * Two different nonces share a fingerprint with probability about n/2^64
+ * for n held entries; the only effect would be refusing a fresh message.
+ */
+public class StripedReplayCache implements ReplayCache {
+    static final int STRIPES = 64;
+    static final int BUCKETS = 8;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int nonceSize;
+    private final long bucketMillis;
+    private final long seed = Randomness.secureRandom().nextLong();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * @param nonceSize the length of every nonce in bytes.
+     * @param ageSeconds how long a nonce is remembered.
+     * @throws IllegalArgumentException if either is not positive.
+     */
+    public StripedReplayCache(int nonceSize, int ageSeconds) {
+        if (nonceSize <= 0 || ageSeconds <= 0) {
+            throw new IllegalArgumentException("Nonce size and age must be positive.");
+        }
+        this.nonceSize = nonceSize;
+        // BUCKETS - 1 full buckets cover the age, the current one is filling.
+        this.bucketMillis = Math.max(1, (ageSeconds * 1000L + BUCKETS - 2) / (BUCKETS - 1));
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public boolean containsNonce(byte[] nonce) {
+        long fp = fingerprint(seed, nonce, nonceSize);
+        Stripe stripe = stripes[(int) (fp >>> 58)];
+        long epoch = System.currentTimeMillis() / bucketMillis;
+        stripe.lock.lock();
+        try {
+            return stripe.contains(fp, epoch);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    @Override
+    public void addNonce(byte[] nonce) {
+        checkAndAdd(nonce);
+    }
+
+    @Override
+    public boolean checkAndAdd(byte[] nonce) {
+        long fp = fingerprint(seed, nonce, nonceSize);
+        Stripe stripe = stripes[(int) (fp >>> 58)];
+        long epoch = System.currentTimeMillis() / bucketMillis;
+        stripe.lock.lock();
+        try {
+            if (stripe.contains(fp, epoch)) {
+                return false;
+            }
+            stripe.add(fp, epoch);
+            return true;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        long total = 0;
+        long epoch = System.currentTimeMillis() / bucketMillis;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                total += stripe.size(epoch);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Folds a nonce into a keyed 64-bit fingerprint, never 0 since 0 marks
+     * an empty slot.
+     * @param seed the per-cache key.
+     * @param nonce the nonce.
+     * @param nonceSize the length every nonce must have.
+     * @throws IllegalArgumentException if the nonce has the wrong length.
+     */
+    static long fingerprint(long seed, byte[] nonce, int nonceSize) {
+        if (nonce == null || nonce.length != nonceSize) {
+            throw new IllegalArgumentException("Nonce must be " + nonceSize + " bytes.");
+        }
+        long h = seed;
+        int i = 0;
+        for (; i + 8 <= nonce.length; i += 8) {
+            h = mix(h ^ getLong(nonce, i));
+        }
+        long tail = 0;
+        for (; i < nonce.length; i++) {
+            tail = (tail << 8) | (nonce[i] & 0xFF);
+        }
+        h = mix(h ^ tail ^ nonce.length);
+        return h == 0 ? 1 : h;
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[off + i] & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * The murmur3 64-bit finalizer.
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * One lock's share of the cache: a ring of time buckets.
+     */
+    private static final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long[] epochs = new long[BUCKETS];
+        private final LongSet[] buckets = new LongSet[BUCKETS];
+
+        Stripe() {
+            Arrays.fill(epochs, Long.MIN_VALUE);
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongSet();
+            }
+        }
+
+        boolean contains(long fp, long epoch) {
+            for (int i = 0; i < BUCKETS; i++) {
+                if (epochs[i] > epoch - BUCKETS && buckets[i].contains(fp)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(long fp, long epoch) {
+            int slot = (int) Math.floorMod(epoch, (long) BUCKETS);
+            if (epochs[slot] != epoch) {
+                // The slot's previous bucket has aged out: drop it whole.
+                buckets[slot] = new LongSet();
+                epochs[slot] = epoch;
+            }
+            buckets[slot].add(fp);
+        }
+
+        long size(long epoch) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (epochs[i] > epoch - BUCKETS) {
+                    total += buckets[i].size;
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * An open-addressing set of non-zero longs with linear probing.
+     */
+    private static final class LongSet {
+        private long[] table = new long[INITIAL_CAPACITY];
+        private int size;
+
+        boolean contains(long key) {
+            int mask = table.length - 1;
+            for (int i = (int) key & mask; ; i = (i + 1) & mask) {
+                long k = table[i];
+                if (k == key) {
+                    return true;
+                }
+                if (k == 0) {
+                    return false;
+                }
+            }
+        }
+
+        void add(long key) {
+            if ((size + 1) * 3 > table.length * 2) {
+                grow();
+            }
+            if (insert(table, key)) {
+                size++;
+            }
+        }
+
+        private void grow() {
+            long[] bigger = new long[table.length * 2];
+            for (long k : table) {
+                if (k != 0) {
+                    insert(bigger, k);
+                }
+            }
+            table = bigger;
+        }
+
+        private static boolean insert(long[] t, long key) {
+            int mask = t.length - 1;
+            for (int i = (int) key & mask; ; i = (i + 1) & mask) {
+                if (t[i] == key) {
+                    return false;
+                }
+                if (t[i] == 0) {
+                    t[i] = key;
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package common;
+
+import java.io.InvalidObjectException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Serves the TGS exchange: a client presents a ticket-granting ticket (TGT)
+ * plus an authenticator and receives a service ticket. The client's
+ * password-derived key is never touched; the new session key is returned
+ * encrypted under the TGT session key.
+ */
+public class TgsHandler {
+    /** The service name ticket-granting tickets are issued for. */
+    public static final String TGS_SERVICE = "krbtgt";
+    /** The most an authenticator timestamp may be from the KDC's clock. */
+    public static final long MAX_CLOCK_SKEW = 5 * 60 * 1000L;
+
+    private final ReplayCache nonceCache;
+    private final PrincipalDatabase principals;
+    private final long ticketLifetime;
+    private final long maxClockSkew;
+
+    /**
+     * Creates a new TGS handler.
+     * @param nonceCache the KDC nonce cache, used to reject replayed
+     *        authenticators. It must hold 32-byte nonces.
+     * @param principals the shared secrets and keys of all principals.
+     * @param ticketLifetime how long issued service tickets are valid, in
+     *        milliseconds.
+     * @param maxClockSkew how far an authenticator timestamp may be from the
+     *        KDC's clock, in milliseconds. The nonce cache must remember
+     *        authenticators for at least twice this long.
+     */
+    public TgsHandler(ReplayCache nonceCache, PrincipalDatabase principals, long ticketLifetime,
+            long maxClockSkew) {
+        this.nonceCache = nonceCache;
+        this.principals = principals;
+        this.ticketLifetime = ticketLifetime;
+        this.maxClockSkew = maxClockSkew;
+    }
+
+    /**
+     * Validates a TGS request and issues the requested service ticket.
+     * @param frame the TGS request.
+     * @return the ticket response; its session key is encrypted under the
+     *         TGT session key.
+     * @throws Exception if the TGT or authenticator is invalid.
+     */
+    public TicketResponse handle(JSONObject frame) throws Exception {
+        TgsRequest req = new TgsRequest("", null, "");
+        req.deserialize(frame);
+        Ticket tgt = req.getTgt();
+
+        if (!TGS_SERVICE.equals(tgt.getService())) {
+            throw new InvalidObjectException("Ticket is not a ticket-granting ticket.");
+        }
+
+        // 🔐 Recover the TGT session key with the KDC's own key; this also
+        // authenticates the TGT's user and times
+        byte[] tgsKey = principals.getDerivedKey(TGS_SERVICE);
+        if (tgsKey == null) {
+            throw new RuntimeException("No shared secret found for service: " + TGS_SERVICE);
+        }
+        String base64TgtKey;
+        try {
+            base64TgtKey = TicketIssuer.openTicket(tgt, new SecretKeySpec(tgsKey, "AES"));
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException("Ticket-granting ticket is not valid.");
+        }
+        SecretKeySpec tgtKey = new SecretKeySpec(Base64.getDecoder().decode(base64TgtKey), "AES");
+
+        // 🎟️ The TGT must still be valid
+        long now = System.currentTimeMillis();
+        long tgtExpiry = tgt.getExpiryTime();
+        if (now > tgtExpiry) {
+            throw new SecurityException("Ticket-granting ticket expired.");
+        }
+
+        // 🧾 Check the authenticator
+        JSONObject auth = JsonIO.readObject(CryptoUtils.decryptAESGCM(req.getAuthenticator(), tgtKey));
+        if (auth == null || !tgt.getUsername().equals(auth.getString("user"))) {
+            throw new SecurityException("Authenticator does not match ticket-granting ticket.");
+        }
+        if (Math.abs(now - auth.getLong("timestamp")) > maxClockSkew) {
+            throw new SecurityException("Authenticator timestamp outside allowed clock skew.");
+        }
+        byte[] authDigest = CryptoPrimitives.sha256()
+                .digest(req.getAuthenticator().getBytes(StandardCharsets.UTF_8));
+        if (!nonceCache.checkAndAdd(authDigest)) {
+            throw new SecurityException("Authenticator replay detected.");
+        }
+
+        // 🔐 Issue the service ticket, never outliving the TGT
+        byte[] serviceKey = principals.getDerivedKey(req.getService());
+        if (serviceKey == null) {
+            throw new RuntimeException("No shared secret found for service: " + req.getService());
+        }
+        String base64SessionKey = TicketIssuer.newSessionKey();
+        long validity = Math.min(ticketLifetime, tgtExpiry - now);
+        Ticket ticket = TicketIssuer.sealTicket(tgt.getUsername(), req.getService(),
+                base64SessionKey, new SecretKeySpec(serviceKey, "AES"), validity);
+        String encryptedForClient = CryptoUtils.encryptAESGCM(base64SessionKey, tgtKey);
+
+        return new TicketResponse(encryptedForClient, ticket);
+    }
+
+    /**
+     * Builds the authenticator a client sends with a TGS request.
+     * @param user the client's name.
+     * @param tgtKey the TGT session key.
+     * @return the encrypted authenticator, base64 encoded.
+     */
+    public static String buildAuthenticator(String user, SecretKeySpec tgtKey) throws Exception {
+        JSONObject auth = new JSONObject();
+        auth.put("user", user);
+        auth.put("timestamp", System.currentTimeMillis());
+        return CryptoUtils.encryptAESGCM(auth.toJSON(), tgtKey);
+    }
+}
@@ -0,0 +1,86 @@
+package common;
+
+import java.io.InvalidObjectException;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * A request for a service ticket made with a ticket-granting ticket instead
+ * of a CHAP exchange. The authenticator is the client's name and a timestamp
+ * encrypted under the TGT session key, proving the client holds that key.
+ */
+public class TgsRequest implements JSONSerializable {
+    private String type;
+    private String service;
+    private Ticket tgt;
+    private String authenticator; // Base64 IV + ciphertext under the TGT session key
+    private Long requestId;
+
+    public TgsRequest(String service, Ticket tgt, String authenticator) {
+        this.type = "TGS Request";
+        this.service = service;
+        this.tgt = tgt;
+        this.authenticator = authenticator;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public Ticket getTgt() {
+        return tgt;
+    }
+
+    public String getAuthenticator() {
+        return authenticator;
+    }
+
+    /**
+     * @return the request id on a KDC session, or null.
+     */
+    public Long getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Tags the request for a KDC session; the response carries the same id.
+     */
+    public void setRequestId(Long requestId) {
+        this.requestId = requestId;
+    }
+
+    @Override
+    public JSONType toJSONType() {
+        JSONObject json = new JSONObject();
+        json.put("type", this.type);
+        json.put("service", this.service);
+        json.put("tgt", this.tgt.toJSONType());
+        json.put("authenticator", this.authenticator);
+        if (this.requestId != null) {
+            json.put("request-id", this.requestId);
+        }
+        return json;
+    }
+
+    @Override
+    public void deserialize(JSONType arg0) throws InvalidObjectException {
+        if (!(arg0 instanceof JSONObject)) {
+            throw new InvalidObjectException("Expected a JSONObject.");
+        }
+
+        JSONObject json = (JSONObject) arg0;
+        this.type = json.getString("type");
+        this.service = json.getString("service");
+        this.authenticator = json.getString("authenticator");
+        this.requestId = json.containsKey("request-id") ? json.getLong("request-id") : null;
+
+        JSONObject tgtJson = json.getObject("tgt");
+        if (tgtJson == null) {
+            throw new InvalidObjectException("Missing TGT.");
+        }
+        this.tgt = new Ticket("", "", 0L, "", "");
+        this.tgt.deserialize(tgtJson);
+    }
+}
@@ -1,6 +1,10 @@
 package common;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InvalidObjectException;
+import java.io.UncheckedIOException;
 
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.types.JSONObject;
@@ -72,6 +76,33 @@ public class Ticket implements JSONSerializable{
         this.encryptedSessionKey = encryptedSessionKey;
     }
 
+    /**
+     * The fields the sealed session key is bound to. They travel in the
+     * clear, so they are passed to GCM as associated data: a ticket whose
+     * user, service or times were changed no longer opens.
+     * @return the username, service, creation time and validity time.
+     */
+    public byte[] getAssociatedData() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(String.valueOf(username));
+            out.writeUTF(String.valueOf(service));
+            out.writeLong(creationTime);
+            out.writeLong(validityTime);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return when the ticket stops being valid, in epoch milliseconds.
+     */
+    public long getExpiryTime() {
+        return creationTime + validityTime;
+    }
+
     @Override
     public JSONType toJSONType() {
         JSONObject json = new JSONObject();
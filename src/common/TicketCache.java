@@ -0,0 +1,150 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A bounded, thread-safe cache of session keys a service has already
+ * unsealed from tickets, keyed by a SHA-256 digest of the whole ticket.
+ *
+ * A client that reconnects with the same ticket, e.g. after a network blip,
+ * then costs one digest and a lookup instead of deriving the service key and
+ * decrypting the ticket again. A ticket that differs in any field, including
+ * its times, has a different digest and is decrypted as before. Entries
+ * expire at the ticket's own creation time plus validity time and are
+ * evicted in least-recently-used order once the cache is full; keys are
+ * zeroed when evicted. Only tickets that were unsealed, and whose times
+ * are therefore authenticated, may be stored, and callers must reject
+ * expired tickets before looking them up.
+ *
+ * Like {@link DerivedKeyCache} the map is guarded by a ReentrantLock so that
+ * contended lookups park a virtual thread instead of pinning its carrier.
+ */
+public class TicketCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * A cached session key and when its ticket expires.
+     */
+    private record Entry(byte[] key, long expiresAt) {
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new ticket cache.
+     * @param capacity the maximum number of tickets held by the cache.
+     * @throws IllegalArgumentException if the capacity is not positive.
+     */
+    public TicketCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid cache capacity.");
+        }
+        this.capacity = capacity;
+        // Access ordered so iteration starts at the least recently used ticket.
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Looks up the session key unsealed from a ticket.
+     * @param ticket the ticket presented by the client.
+     * @return the session key, or null if the ticket is not cached or has
+     *         expired.
+     */
+    public SecretKeySpec get(Ticket ticket) throws Exception {
+        String digest = digest(ticket);
+        long now = System.currentTimeMillis();
+        SecretKeySpec key = null;
+        lock.lock();
+        try {
+            Entry entry = entries.get(digest);
+            if (entry != null && entry.expiresAt() <= now) {
+                entries.remove(digest);
+                Arrays.fill(entry.key(), (byte) 0);
+            } else if (entry != null) {
+                key = new SecretKeySpec(entry.key(), "AES");
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (key == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return key;
+    }
+
+    /**
+     * Stores the session key unsealed from a ticket until the ticket
+     * expires. Tickets that have already expired are not stored.
+     * @param ticket the ticket the key came from.
+     * @param key the session key.
+     */
+    public void put(Ticket ticket, SecretKeySpec key) throws Exception {
+        long expiresAt = ticket.getExpiryTime();
+        if (expiresAt <= System.currentTimeMillis()) {
+            return;
+        }
+        String digest = digest(ticket);
+        lock.lock();
+        try {
+            Entry old = entries.put(digest, new Entry(key.getEncoded(), expiresAt));
+            if (old != null) {
+                Arrays.fill(old.key(), (byte) 0);
+            }
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (entries.size() > capacity && it.hasNext()) {
+                Arrays.fill(it.next().getValue().key(), (byte) 0);
+                it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Digests every field of a ticket, each followed by a separator so
+     * fields cannot run into each other.
+     */
+    private static String digest(Ticket ticket) throws Exception {
+        MessageDigest sha = CryptoPrimitives.sha256();
+        for (String field : new String[] { ticket.getUsername(), ticket.getService(),
+                Long.toString(ticket.getCreationTime()), Long.toString(ticket.getValidityTime()),
+                ticket.getIv(), ticket.getEncryptedSessionKey() }) {
+            sha.update(String.valueOf(field).getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+        }
+        return Base64.getEncoder().encodeToString(sha.digest());
+    }
+}
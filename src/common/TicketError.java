@@ -0,0 +1,50 @@
+package common;
+
+import java.io.InvalidObjectException;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * The KDC's answer to a ticket request it refused on a KDC session. The
+ * session stays open; only the tagged request failed.
+ */
+public class TicketError implements JSONSerializable {
+    private String type = "Ticket Error";
+    private Long requestId;
+    private String error;
+
+    public TicketError(Long requestId, String error) {
+        this.requestId = requestId;
+        this.error = error;
+    }
+
+    public Long getRequestId() {
+        return requestId;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public JSONType toJSONType() {
+        JSONObject json = new JSONObject();
+        json.put("type", type);
+        json.put("request-id", requestId);
+        json.put("error", error);
+        return json;
+    }
+
+    @Override
+    public void deserialize(JSONType arg0) throws InvalidObjectException {
+        if (!(arg0 instanceof JSONObject)) {
+            throw new InvalidObjectException("Expected a JSON object");
+        }
+        JSONObject json = (JSONObject) arg0;
+        this.type = json.getString("type");
+        this.requestId = json.containsKey("request-id") ? json.getLong("request-id") : null;
+        this.error = json.getString("error");
+    }
+}
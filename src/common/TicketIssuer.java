@@ -0,0 +1,127 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Builds the session keys and service tickets handed out by the KDC. Shared
+ * by the CHAP (AS) exchange and the TGS exchange.
+ */
+public class TicketIssuer {
+
+    private static volatile SessionKeySupplier sessionKeys = TicketIssuer::generateSessionKey;
+
+    /**
+     * Replaces where session keys come from. The KDC installs a pooled or
+     * HKDF based supplier at startup; everything else generates keys inline.
+     * @param supplier the new session key source.
+     */
+    public static void setSessionKeySupplier(SessionKeySupplier supplier) {
+        sessionKeys = supplier;
+    }
+
+    /**
+     * Returns a fresh AES-256 session key from the installed supplier.
+     * @return the session key, base64 encoded.
+     */
+    public static String newSessionKey() throws Exception {
+        return sessionKeys.nextSessionKey();
+    }
+
+    /**
+     * Generates a fresh AES-256 session key with a KeyGenerator.
+     * @return the session key, base64 encoded.
+     */
+    public static String generateSessionKey() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256, Randomness.secureRandom());
+        SecretKey sessionKey = keyGen.generateKey();
+        return Base64.getEncoder().encodeToString(sessionKey.getEncoded());
+    }
+
+    /**
+     * Builds a ticket carrying the session key encrypted under the service's
+     * long term secret.
+     * @param user the client the ticket is issued to.
+     * @param service the service the ticket is for.
+     * @param base64SessionKey the session key, base64 encoded.
+     * @param servicePassword the service's shared secret.
+     * @param validityTime how long the ticket is valid for in milliseconds.
+     * @return the sealed ticket.
+     */
+    public static Ticket sealTicket(String user, String service, String base64SessionKey,
+            String servicePassword, long validityTime) throws Exception {
+        SecretKey serviceKey = new SecretKeySpec(CryptoUtils.deriveKey(servicePassword), "AES");
+        return sealTicket(user, service, base64SessionKey, serviceKey, validityTime);
+    }
+
+    /**
+     * Builds a ticket carrying the session key encrypted under the service's
+     * already derived key. The ticket's user, service and times are bound
+     * to the ciphertext as associated data.
+     * @param user the client the ticket is issued to.
+     * @param service the service the ticket is for.
+     * @param base64SessionKey the session key, base64 encoded.
+     * @param serviceKey the key derived from the service's shared secret.
+     * @param validityTime how long the ticket is valid for in milliseconds.
+     * @return the sealed ticket.
+     */
+    public static Ticket sealTicket(String user, String service, String base64SessionKey,
+            SecretKey serviceKey, long validityTime) throws Exception {
+        Ticket ticket = new Ticket(user, service, validityTime, null, null);
+        byte[] iv = Randomness.iv();
+        byte[] sealed = CryptoPrimitives.encryptGcm(serviceKey, iv, ticket.getAssociatedData(),
+                base64SessionKey.getBytes(StandardCharsets.UTF_8));
+        ticket.setIv(Base64.getEncoder().encodeToString(iv));
+        ticket.setEncryptedSessionKey(Base64.getEncoder().encodeToString(sealed));
+        return ticket;
+    }
+
+    /**
+     * Opens a ticket sealed by {@link #sealTicket}. Once this returns, the
+     * ticket's user, service and times are the ones the KDC issued.
+     * @param ticket the ticket presented by a client.
+     * @param serviceKey the key derived from the service's shared secret.
+     * @return the session key, base64 encoded.
+     * @throws GeneralSecurityException if the key is wrong or the ticket
+     *         was altered.
+     */
+    public static String openTicket(Ticket ticket, SecretKey serviceKey) throws GeneralSecurityException {
+        byte[] sessionKey = CryptoPrimitives.decryptGcm(serviceKey,
+                Base64.getDecoder().decode(ticket.getIv()), ticket.getAssociatedData(),
+                Base64.getDecoder().decode(ticket.getEncryptedSessionKey()));
+        return new String(sessionKey, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Helper method to split encrypted message into IV and ciphertext (both Base64).
+     */
+    public static String[] extractEncryptedParts(String encryptedPayload) {
+        byte[] full = Base64.getDecoder().decode(encryptedPayload);
+        byte[] iv = new byte[12];
+        byte[] encrypted = new byte[full.length - 12];
+        System.arraycopy(full, 0, iv, 0, 12);
+        System.arraycopy(full, 12, encrypted, 0, encrypted.length);
+        return new String[]{
+                Base64.getEncoder().encodeToString(iv),
+                Base64.getEncoder().encodeToString(encrypted)
+        };
+    }
+
+    /**
+     * Helper method to join a Base64 IV and ciphertext into one Base64 payload.
+     */
+    public static String combineIVandCipher(String iv, String cipherText) {
+        byte[] ivBytes = Base64.getDecoder().decode(iv);
+        byte[] cipherBytes = Base64.getDecoder().decode(cipherText);
+        byte[] combined = new byte[ivBytes.length + cipherBytes.length];
+        System.arraycopy(ivBytes, 0, combined, 0, ivBytes.length);
+        System.arraycopy(cipherBytes, 0, combined, ivBytes.length, cipherBytes.length);
+        return Base64.getEncoder().encodeToString(combined);
+    }
+}
@@ -11,6 +11,7 @@ public class TicketRequest implements JSONSerializable, JSONType {
     private String type;
     private String service;
     private String id;
+    private Long requestId;
 
     public TicketRequest(String service, String id) {
         this.type = "Ticket Request";
@@ -18,12 +19,24 @@ public class TicketRequest implements JSONSerializable, JSONType {
         this.id = id;
     }
 
+    /**
+     * Creates a request on a KDC session; the response carries the same
+     * request id and the connection stays open for further requests.
+     */
+    public TicketRequest(String service, String id, long requestId) {
+        this(service, id);
+        this.requestId = requestId;
+    }
+
     @Override
     public JSONType toJSONType() {
         JSONObject json = new JSONObject();
         json.put("type", this.type);
         json.put("service", this.service);
         json.put("id", this.id);
+        if (this.requestId != null) {
+            json.put("request-id", this.requestId);
+        }
         return json;
     }
 
@@ -58,6 +71,13 @@ public class TicketRequest implements JSONSerializable, JSONType {
         return service;
     }
 
+    /**
+     * @return the request id, or null for a single request on a connection.
+     */
+    public Long getRequestId() {
+        return requestId;
+    }
+
     // Main method for testing
     public static void main(String[] args) {
         TicketRequest ticketRequest = new TicketRequest("ExampleService", "user123");
@@ -76,6 +96,7 @@ public class TicketRequest implements JSONSerializable, JSONType {
         this.type = jsonObject.getString("type");
         this.service = jsonObject.getString("service");
         this.id = jsonObject.getString("id");
+        this.requestId = jsonObject.containsKey("request-id") ? jsonObject.getLong("request-id") : null;
 
     }
 }
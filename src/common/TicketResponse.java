@@ -10,6 +10,7 @@ public class TicketResponse implements JSONSerializable{
     private String type;        // "Ticket Response"
     private String sessionKey;  // Encrypted session key
     private Ticket ticket;      // Ticket information
+    private Long requestId;     // Set on KDC session responses
 
     public TicketResponse(String sessionKey, Ticket ticket) {
         this.type = "Ticket Response";
@@ -42,6 +43,14 @@ public class TicketResponse implements JSONSerializable{
         this.ticket = ticket;
     }
 
+    public Long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(Long requestId) {
+        this.requestId = requestId;
+    }
+
     @Override
     public void deserialize(JSONType arg0) throws InvalidObjectException {
         if (!(arg0 instanceof JSONObject)) {
@@ -52,6 +61,7 @@ public class TicketResponse implements JSONSerializable{
 
         this.type = json.getString("type");
         this.sessionKey = json.getString("sessionKey");
+        this.requestId = json.containsKey("request-id") ? json.getLong("request-id") : null;
 
         JSONObject ticketJson = json.getObject("ticket");
 
@@ -72,6 +82,9 @@ public class TicketResponse implements JSONSerializable{
         JSONObject json = new JSONObject();
         json.put("type", this.type);
         json.put("sessionKey", this.sessionKey);
+        if (this.requestId != null) {
+            json.put("request-id", this.requestId);
+        }
 
         // Build ticket as a JSONObject
         JSONObject ticketJson = new JSONObject();
@@ -1,7 +1,11 @@
 package echoservice;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InvalidObjectException;
 
+import common.Keytab;
+import common.ReplayCaches;
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.types.JSONObject;
 import merrimackutil.json.types.JSONType;
@@ -11,6 +15,14 @@ public class Config implements JSONSerializable {
     public boolean debug;
     public String serviceName;
     public String serviceSecret;
+    public String ioMode = "pool";
+    public int adminPort = 0;
+    public String replayCache = ReplayCaches.EXACT;
+    public int replayWindow = ReplayCaches.DEFAULT_WINDOW_SECONDS;
+    public long replayCacheCapacity = ReplayCaches.DEFAULT_CAPACITY;
+    public double replayCacheFpRate = ReplayCaches.DEFAULT_FALSE_POSITIVE_RATE;
+    public String keytab;
+    private Keytab loadedKeytab;
 
 /**
  * Deserializes the configuration from the provided JSONType.
@@ -22,7 +34,24 @@ public class Config implements JSONSerializable {
  * <li>port: An integer representing the port number.
  * <li>debug: A boolean indicating if debug mode is enabled.
  * <li>service-name: A string representing the name of the service.
- * <li>service-secret: A string containing the service's secret.
+ * <li>service-secret: A string containing the service's secret. Optional
+ * when keytab is set.
+ * <li>keytab: Optional. Path to a keytab holding the service's derived
+ * keys, used instead of service-secret so tickets open without scrypt.
+ * <li>io-mode: Optional. "pool" to serve each connection on a fixed
+ * thread pool (the default), "virtual" to run each connection on its own
+ * virtual thread, or "nio" to use the selector based transport.
+ * <li>admin-port: Optional. A loopback port serving latency metrics over
+ * HTTP; disabled when absent.
+ * <li>replay-cache: Optional. "exact" to remember every nonce (the
+ * default), or "bloom" for rotating Bloom filters of fixed size that
+ * may rarely refuse a fresh nonce.
+ * <li>replay-window: Optional. How long in seconds a nonce is remembered,
+ * 60 by default; it should cover the longest ticket lifetime.
+ * <li>replay-cache-capacity: Optional. For "bloom", the nonces expected
+ * per replay window; the filters are sized from it.
+ * <li>replay-cache-fp-rate: Optional. For "bloom", the target rate of
+ * fresh nonces refused.
  * </ul>
  * 
  * @param json The JSONType containing the serialized configuration.
@@ -39,9 +68,33 @@ public class Config implements JSONSerializable {
         this.port = jsonObject.getInt("port");
         this.debug = jsonObject.getBoolean("debug");
         this.serviceName = jsonObject.getString("service-name");
-        this.serviceSecret = jsonObject.getString("service-secret");
-
-      
+        if (jsonObject.containsKey("service-secret")) {
+            this.serviceSecret = jsonObject.getString("service-secret");
+        }
+        if (jsonObject.containsKey("keytab")) {
+            this.keytab = jsonObject.getString("keytab");
+        }
+        if (this.serviceSecret == null && this.keytab == null) {
+            throw new InvalidObjectException("Config needs service-secret or keytab");
+        }
+        if (jsonObject.containsKey("io-mode")) {
+            this.ioMode = jsonObject.getString("io-mode");
+        }
+        if (jsonObject.containsKey("admin-port")) {
+            this.adminPort = jsonObject.getInt("admin-port");
+        }
+        if (jsonObject.containsKey("replay-cache")) {
+            this.replayCache = jsonObject.getString("replay-cache");
+        }
+        if (jsonObject.containsKey("replay-window")) {
+            this.replayWindow = jsonObject.getInt("replay-window");
+        }
+        if (jsonObject.containsKey("replay-cache-capacity")) {
+            this.replayCacheCapacity = jsonObject.getLong("replay-cache-capacity");
+        }
+        if (jsonObject.containsKey("replay-cache-fp-rate")) {
+            this.replayCacheFpRate = jsonObject.getDouble("replay-cache-fp-rate");
+        }
     }
     /**
      * Serializes the configuration to a JSONType.
@@ -52,7 +105,14 @@ public class Config implements JSONSerializable {
      * <li>port: An integer representing the port number.
      * <li>debug: A boolean indicating if debug mode is enabled.
      * <li>service-name: A string representing the name of the service.
-     * <li>service-secret: A string containing the service's secret.
+     * <li>service-secret: The service's secret, only present when set.
+     * <li>keytab: The keytab path, only present when set.
+     * <li>io-mode: The connection handling mode, "pool", "virtual" or "nio".
+     * <li>admin-port: The metrics port, only present when enabled.
+     * <li>replay-cache: The replay cache mode, "exact" or "bloom".
+     * <li>replay-window: How long a nonce is remembered, in seconds.
+     * <li>replay-cache-capacity: The Bloom filter capacity per window.
+     * <li>replay-cache-fp-rate: The Bloom filter false-positive target.
      * </ul>
      * 
      * @return The JSONType containing the serialized configuration.
@@ -63,7 +123,39 @@ public class Config implements JSONSerializable {
         jsonObject.put("port", this.port);
         jsonObject.put("debug", this.debug);
         jsonObject.put("service-name", this.serviceName);
-        jsonObject.put("service-secret", this.serviceSecret);
+        if (this.serviceSecret != null) {
+            jsonObject.put("service-secret", this.serviceSecret);
+        }
+        if (this.keytab != null) {
+            jsonObject.put("keytab", this.keytab);
+        }
+        jsonObject.put("io-mode", this.ioMode);
+        if (this.adminPort > 0) {
+            jsonObject.put("admin-port", this.adminPort);
+        }
+        jsonObject.put("replay-cache", this.replayCache);
+        jsonObject.put("replay-window", this.replayWindow);
+        jsonObject.put("replay-cache-capacity", this.replayCacheCapacity);
+        jsonObject.put("replay-cache-fp-rate", this.replayCacheFpRate);
         return jsonObject;
     }
+
+    /**
+     * Loads the configured keytab on first use.
+     * @return The keytab, or null when the service uses service-secret.
+     * @throws InvalidObjectException If the keytab cannot be read.
+     */
+    public synchronized Keytab getKeytab() throws InvalidObjectException {
+        if (keytab == null) {
+            return null;
+        }
+        if (loadedKeytab == null) {
+            try {
+                loadedKeytab = Keytab.read(new File(keytab));
+            } catch (IOException e) {
+                throw new InvalidObjectException("Failed to load keytab: " + e.getMessage());
+            }
+        }
+        return loadedKeytab;
+    }
 }
@@ -9,15 +9,20 @@ import java.util.concurrent.Executors;
 
 import merrimackutil.json.JsonIO;
 import merrimackutil.json.types.JSONObject;
+import common.AdminServer;
 import common.Channel;
 import common.ConnectionHandler;
 import common.EchoServiceHandler;
-import merrimackutil.util.NonceCache;
+import common.IoModes;
+import common.Log;
+import common.NioServer;
+import common.ReplayCache;
+import common.ReplayCaches;
 
 public class EchoService {
 
     private static final String DEFAULT_CONFIG_FILE = "src/echoservice/config.json";
-    private static NonceCache nonceCache; // NonceCache instance to prevent replay attacks
+    private static ReplayCache nonceCache; // Replay cache shared by all connections
     private static Channel channel; // Channel instance for sending messages
     private static Config config; // Config object to store configuration details
 
@@ -65,20 +70,33 @@ public class EchoService {
     
         try {
             loadConfig(configFile);
+            if (config.keytab != null) {
+                int keys = config.getKeytab().getKeys(config.serviceName).size();
+                if (keys == 0) {
+                    throw new IOException("Keytab " + config.keytab + " has no keys for " + config.serviceName);
+                }
+                Log.info("🔑 Loaded " + keys + " key versions for " + config.serviceName + " from " + config.keytab);
+            }
         } catch (IOException e) {
             System.err.println("Error loading configuration: " + e.getMessage());
             return;
         }
     
-        nonceCache = new NonceCache(16, 60000);
+        nonceCache = ReplayCaches.create(config.replayCache, 16, config.replayWindow, config.replayCacheCapacity,
+                config.replayCacheFpRate);
+        AdminServer.startIfConfigured(config.adminPort);
+        if (IoModes.NIO.equals(config.ioMode)) {
+            startNioServer();
+            return;
+        }
         // ✅ Start server immediately (NO background thread for now)
         try (ServerSocket server = new ServerSocket(config.port)) {
             System.out.println("EchoService started on port " + config.port);
-            ExecutorService pool = Executors.newFixedThreadPool(10);
+            ExecutorService pool = IoModes.newConnectionExecutor(config.ioMode);
     
             while (true) {
                 Socket sock = server.accept();
-                System.out.println("Connection received.");
+                Log.debug(() -> "Connection received.");
                 Channel connChannel = new Channel(sock);
                 pool.execute(new EchoServiceHandler(connChannel, nonceCache, config));
             }
@@ -88,6 +106,21 @@ public class EchoService {
         }
     }
 
+    /**
+     * Serves echo sessions on the selector based transport.
+     */
+    private static void startNioServer() {
+        ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        NioServer server = new NioServer(config.port, NioServer.DEFAULT_LOOP_COUNT,
+                sink -> new EchoServiceHandler(sink, nonceCache, config), workers);
+        System.out.println("EchoService started on port " + config.port + " (nio)");
+        try {
+            server.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Loads the configuration from the specified file.
      * 
@@ -112,7 +145,34 @@ public class EchoService {
             config.port = configJson.getInt("port");
             config.debug = configJson.getBoolean("debug");
             config.serviceName = configJson.getString("service-name");
-            config.serviceSecret = configJson.getString("service-secret");
+            if (configJson.containsKey("service-secret")) {
+                config.serviceSecret = configJson.getString("service-secret");
+            }
+            if (configJson.containsKey("keytab")) {
+                config.keytab = configJson.getString("keytab");
+            }
+            if (config.serviceSecret == null && config.keytab == null) {
+                throw new IOException("Config needs service-secret or keytab");
+            }
+            if (configJson.containsKey("io-mode")) {
+                config.ioMode = configJson.getString("io-mode");
+            }
+            if (configJson.containsKey("admin-port")) {
+                config.adminPort = configJson.getInt("admin-port");
+            }
+            if (configJson.containsKey("replay-cache")) {
+                config.replayCache = configJson.getString("replay-cache");
+            }
+            if (configJson.containsKey("replay-window")) {
+                config.replayWindow = configJson.getInt("replay-window");
+            }
+            if (configJson.containsKey("replay-cache-capacity")) {
+                config.replayCacheCapacity = configJson.getLong("replay-cache-capacity");
+            }
+            if (configJson.containsKey("replay-cache-fp-rate")) {
+                config.replayCacheFpRate = configJson.getDouble("replay-cache-fp-rate");
+            }
+            Log.setDebug(config.debug);
             sendMessageToChannel(channel, "Loaded configuration from: " + configFile);
         } catch (IOException e) {
             e.printStackTrace();
@@ -1,6 +1,8 @@
 package kdcd;
 
 import java.io.InvalidObjectException;
+import common.ChapHandler;
+import common.ReplayCaches;
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.types.JSONObject;
 import merrimackutil.json.types.JSONType;
@@ -8,7 +10,24 @@ import merrimackutil.json.types.JSONType;
 public class Config implements JSONSerializable {
     public String secretsFile;
     public int port;
-    public long validityPeriod;
+    public long validityPeriod = ChapHandler.DEFAULT_TICKET_LIFETIME_MILLIS;
+    public long tgtLifetime = ChapHandler.DEFAULT_TGT_LIFETIME_MILLIS;
+    public String ioMode = "pool";
+    public int adminPort = 0;
+    public boolean debug = false;
+    public String sessionKeys = "pool";
+    public int sessionKeyPoolSize = 1024;
+    public String masterKey;
+    public String principalStore;
+    public int replicationPort = 0;
+    public String principalLog;
+    public String replicaOf;
+    public String replicationKey;
+    public long sessionIdleTimeout = ChapHandler.DEFAULT_SESSION_IDLE_MILLIS;
+    public String replayCache = ReplayCaches.EXACT;
+    public int replayWindow = ReplayCaches.DEFAULT_WINDOW_SECONDS;
+    public long replayCacheCapacity = ReplayCaches.DEFAULT_CAPACITY;
+    public double replayCacheFpRate = ReplayCaches.DEFAULT_FALSE_POSITIVE_RATE;
 
     /**
      * Deserialize a Config from a JSONType.
@@ -21,7 +40,48 @@ public class Config implements JSONSerializable {
      * the secrets.
      * <li>port: An integer representing the port to listen on.
      * <li>validity-period: A long representing the maximum time in milliseconds
-     * that a ticket is valid for.
+     * that a service ticket is valid for.
+     * <li>tgt-lifetime: Optional. How long in milliseconds a ticket-granting
+     * ticket is valid, 8 hours by default.
+     * <li>io-mode: Optional. "pool" to serve each connection on a fixed
+     * thread pool (the default), "virtual" to run each connection on its own
+     * virtual thread, or "nio" to use the selector based transport.
+     * <li>debug: Optional. A boolean enabling debug logging of every message.
+     * <li>admin-port: Optional. A loopback port serving latency metrics over
+     * HTTP; disabled when absent.
+     * <li>session-keys: Optional. "pool" to hand out keys generated ahead of
+     * time by a background thread (the default), "hkdf" to derive them from
+     * the master key, or "inline" to generate each key on request.
+     * <li>session-key-pool-size: Optional. How many keys the pool keeps ready.
+     * <li>master-key: Optional. The base64 HKDF master key; a random one is
+     * used for the life of the process when absent.
+     * <li>principal-store: Optional. A binary principal store written by
+     * PrincipalStoreTool, mapped instead of reading secrets-file.
+     * <li>replication-port: Optional. A loopback port on which this KDC, as
+     * a primary, ships its principal changes to replicas; disabled when
+     * absent.
+     * <li>principal-log: Optional. The file the primary keeps its principal
+     * change log in, so replicas can resume after a restart; in memory only
+     * when absent.
+     * <li>replica-of: Optional. The "host:port" replication address of a
+     * primary. A replica takes its principals from there instead of
+     * secrets-file.
+     * <li>replication-key: Optional. The secret a primary and its replicas
+     * share to authenticate each other; required with replication-port or
+     * replica-of.
+     * <li>session-idle-timeout: Optional. How long in milliseconds a KDC
+     * session, a connection kept open for tagged ticket requests, may be
+     * idle before it is closed.
+     * <li>replay-cache: Optional. "exact" to remember every nonce (the
+     * default), or "bloom" for rotating Bloom filters of fixed size that
+     * may rarely refuse a fresh nonce.
+     * <li>replay-window: Optional. How long in seconds a nonce is remembered,
+     * 60 by default. TGS authenticators are accepted within half of it of
+     * the KDC's clock, at most 5 minutes.
+     * <li>replay-cache-capacity: Optional. For "bloom", the nonces expected
+     * per replay window; the filters are sized from it.
+     * <li>replay-cache-fp-rate: Optional. For "bloom", the target rate of
+     * fresh nonces refused.
      * </ul>
      * 
      * @param json The JSONType containing the serialized Config.
@@ -37,6 +97,57 @@ public class Config implements JSONSerializable {
         this.secretsFile = jsonObject.getString("secrets-file");
         this.port = jsonObject.getInt("port");
         this.validityPeriod = jsonObject.getLong("validity-period");
+        if (jsonObject.containsKey("tgt-lifetime")) {
+            this.tgtLifetime = jsonObject.getLong("tgt-lifetime");
+        }
+        if (jsonObject.containsKey("io-mode")) {
+            this.ioMode = jsonObject.getString("io-mode");
+        }
+        if (jsonObject.containsKey("admin-port")) {
+            this.adminPort = jsonObject.getInt("admin-port");
+        }
+        if (jsonObject.containsKey("debug")) {
+            this.debug = jsonObject.getBoolean("debug");
+        }
+        if (jsonObject.containsKey("session-keys")) {
+            this.sessionKeys = jsonObject.getString("session-keys");
+        }
+        if (jsonObject.containsKey("session-key-pool-size")) {
+            this.sessionKeyPoolSize = jsonObject.getInt("session-key-pool-size");
+        }
+        if (jsonObject.containsKey("master-key")) {
+            this.masterKey = jsonObject.getString("master-key");
+        }
+        if (jsonObject.containsKey("principal-store")) {
+            this.principalStore = jsonObject.getString("principal-store");
+        }
+        if (jsonObject.containsKey("replication-port")) {
+            this.replicationPort = jsonObject.getInt("replication-port");
+        }
+        if (jsonObject.containsKey("principal-log")) {
+            this.principalLog = jsonObject.getString("principal-log");
+        }
+        if (jsonObject.containsKey("replica-of")) {
+            this.replicaOf = jsonObject.getString("replica-of");
+        }
+        if (jsonObject.containsKey("replication-key")) {
+            this.replicationKey = jsonObject.getString("replication-key");
+        }
+        if (jsonObject.containsKey("session-idle-timeout")) {
+            this.sessionIdleTimeout = jsonObject.getLong("session-idle-timeout");
+        }
+        if (jsonObject.containsKey("replay-cache")) {
+            this.replayCache = jsonObject.getString("replay-cache");
+        }
+        if (jsonObject.containsKey("replay-window")) {
+            this.replayWindow = jsonObject.getInt("replay-window");
+        }
+        if (jsonObject.containsKey("replay-cache-capacity")) {
+            this.replayCacheCapacity = jsonObject.getLong("replay-cache-capacity");
+        }
+        if (jsonObject.containsKey("replay-cache-fp-rate")) {
+            this.replayCacheFpRate = jsonObject.getDouble("replay-cache-fp-rate");
+        }
     }
 
     /**
@@ -49,7 +160,25 @@ public class Config implements JSONSerializable {
      * the secrets.
      * <li>port: An integer representing the port to listen on.
      * <li>validity-period: A long representing the maximum time in milliseconds
-     * that a ticket is valid for.
+     * that a service ticket is valid for.
+     * <li>tgt-lifetime: The ticket-granting ticket lifetime in milliseconds.
+     * <li>io-mode: The connection handling mode, "pool", "virtual" or "nio".
+     * <li>debug: A boolean indicating if debug logging is enabled.
+     * <li>admin-port: The metrics port, only present when enabled.
+     * <li>session-keys: Where session keys come from.
+     * <li>session-key-pool-size: The size of the session key pool.
+     * <li>master-key: The HKDF master key, only present when set.
+     * <li>principal-store: The binary principal store, only present when set.
+     * <li>replication-port: The replication port, only present when enabled.
+     * <li>principal-log: The principal change log, only present when set.
+     * <li>replica-of: The primary's replication address, only present on a
+     * replica.
+     * <li>replication-key: The replication secret, only present when set.
+     * <li>session-idle-timeout: The KDC session idle timeout.
+     * <li>replay-cache: The replay cache mode, "exact" or "bloom".
+     * <li>replay-window: How long a nonce is remembered, in seconds.
+     * <li>replay-cache-capacity: The Bloom filter capacity per window.
+     * <li>replay-cache-fp-rate: The Bloom filter false-positive target.
      * </ul>
      */
     @Override
@@ -58,6 +187,37 @@ public class Config implements JSONSerializable {
         jsonObject.put("secrets-file", this.secretsFile);
         jsonObject.put("port", this.port);
         jsonObject.put("validity-period", this.validityPeriod);
+        jsonObject.put("tgt-lifetime", this.tgtLifetime);
+        jsonObject.put("io-mode", this.ioMode);
+        if (this.adminPort > 0) {
+            jsonObject.put("admin-port", this.adminPort);
+        }
+        jsonObject.put("debug", this.debug);
+        jsonObject.put("session-keys", this.sessionKeys);
+        jsonObject.put("session-key-pool-size", this.sessionKeyPoolSize);
+        if (this.masterKey != null) {
+            jsonObject.put("master-key", this.masterKey);
+        }
+        if (this.principalStore != null) {
+            jsonObject.put("principal-store", this.principalStore);
+        }
+        if (this.replicationPort > 0) {
+            jsonObject.put("replication-port", this.replicationPort);
+        }
+        if (this.principalLog != null) {
+            jsonObject.put("principal-log", this.principalLog);
+        }
+        if (this.replicaOf != null) {
+            jsonObject.put("replica-of", this.replicaOf);
+        }
+        if (this.replicationKey != null) {
+            jsonObject.put("replication-key", this.replicationKey);
+        }
+        jsonObject.put("session-idle-timeout", this.sessionIdleTimeout);
+        jsonObject.put("replay-cache", this.replayCache);
+        jsonObject.put("replay-window", this.replayWindow);
+        jsonObject.put("replay-cache-capacity", this.replayCacheCapacity);
+        jsonObject.put("replay-cache-fp-rate", this.replayCacheFpRate);
         return jsonObject;
     }
 
@@ -0,0 +1,84 @@
+package kdcd;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import common.CryptoPrimitives;
+import common.Metrics;
+import common.Randomness;
+import common.SessionKeySupplier;
+
+/**
+ * Derives each session key from a KDC master key with HKDF-SHA256
+ * (RFC 5869) and a fresh random salt per ticket:
+ *
+ * <pre>
+ *   PRK = HKDF-Extract("kdc", masterKey)              once, at startup
+ *   key = HKDF-Expand(PRK, "kdc session key" || salt)  per ticket
+ * </pre>
+ *
+ * The per-ticket salt goes into the expand step's info, so issuing a key is
+ * a single HMAC on a per-thread Mac already keyed with the PRK, plus 16
+ * bytes from the randomness pool. The salt is not kept: keys are never
+ * re-derived, the master key only has to stay secret. Derivations are
+ * counted in session_key_derivations.
+ */
+public class HkdfSessionKeySupplier implements SessionKeySupplier {
+    private static final byte[] EXTRACT_SALT = "kdc".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INFO = "kdc session key".getBytes(StandardCharsets.US_ASCII);
+    private static final int KEY_LENGTH = 32;
+
+    private final SecretKeySpec prk;
+    private final ThreadLocal<Mac> expand;
+    private final AtomicLong derivations = new AtomicLong();
+
+    /**
+     * @param masterKey the KDC master key, at least 32 bytes.
+     */
+    public HkdfSessionKeySupplier(byte[] masterKey) {
+        if (masterKey.length < KEY_LENGTH) {
+            throw new IllegalArgumentException("HKDF master key must be at least 32 bytes.");
+        }
+        try {
+            prk = new SecretKeySpec(CryptoPrimitives.hmacSha256(EXTRACT_SALT).doFinal(masterKey), "HmacSHA256");
+        } catch (Exception e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+        expand = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(prk);
+                return mac;
+            } catch (Exception e) {
+                throw new IllegalStateException("HmacSHA256 unavailable", e);
+            }
+        });
+        Metrics.gauge("session_key_derivations", derivations::get);
+    }
+
+    @Override
+    public String nextSessionKey() {
+        derivations.incrementAndGet();
+        return Base64.getEncoder().encodeToString(derive(Randomness.nonce()));
+    }
+
+    /**
+     * Derives the session key for a salt.
+     * @param salt the per-ticket salt.
+     * @return the 32 byte key.
+     */
+    byte[] derive(byte[] salt) {
+        // doFinal leaves the Mac keyed with the PRK, ready for the next key.
+        Mac mac = expand.get();
+        mac.update(INFO);
+        mac.update(salt);
+        mac.update((byte) 1);
+        byte[] okm = mac.doFinal();
+        return okm.length == KEY_LENGTH ? okm : Arrays.copyOf(okm, KEY_LENGTH);
+    }
+}
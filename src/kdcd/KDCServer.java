@@ -2,20 +2,36 @@ package kdcd;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 
+import common.AdminServer;
 import common.Channel;
+import common.ChapHandler;
 import common.ConnectionHandler;
+import common.CryptoUtils;
+import common.IoModes;
+import common.Log;
+import common.MapPrincipalDatabase;
+import common.NioServer;
+import common.PrincipalDatabase;
+import common.Randomness;
+import common.ReplayCache;
+import common.ReplayCaches;
+import common.TgsHandler;
+import common.TicketIssuer;
 import merrimackutil.json.*;
-import merrimackutil.json.types.JSONArray;
 import merrimackutil.json.types.JSONObject;
-import merrimackutil.util.NonceCache;
 
 public class KDCServer {
     private static Config config;
-    private static Map<String, String> secrets = new HashMap<>();
-    private static NonceCache nonceCache;
+    // Replaced as a whole on reload; handlers keep the snapshot they start with.
+    private static volatile Map<String, String> secrets = Map.of();
+    private static volatile PrincipalDatabase principals = new MapPrincipalDatabase(secrets);
+    private static File principalsFile;
+    private static PrincipalLog principalLog;
+    private static ReplayCache nonceCache;
     private static final String DEFAULT_CONFIG_FILE = "src/kdcd/config.json";
     private static Channel channel;
 
@@ -48,9 +64,24 @@ public class KDCServer {
 
     private static void startServer() {
         System.out.println("Starting KDC server on port " + config.port);
+        AdminServer.startIfConfigured(config.adminPort);
+        installSessionKeySupplier();
+        ChapHandler.setSessionIdleTimeout(config.sessionIdleTimeout);
+        installTicketSettings();
+        if (config.replicaOf != null) {
+            followPrimary();
+        } else {
+            watchSecrets();
+            startReplication();
+        }
+        if (IoModes.NIO.equals(config.ioMode)) {
+            startNioServer();
+            return;
+        }
         try (ServerSocket serverSocket = new ServerSocket(config.port)) {
-            ExecutorService executorService = Executors.newFixedThreadPool(10);
-            nonceCache = new NonceCache(32, 60);
+            ExecutorService executorService = IoModes.newConnectionExecutor(config.ioMode);
+            nonceCache = ReplayCaches.create(config.replayCache, 32, config.replayWindow, config.replayCacheCapacity,
+                    config.replayCacheFpRate);
 
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.out.println("Shutting down KDC server...");
@@ -74,6 +105,71 @@ public class KDCServer {
         }
     }
 
+    /**
+     * Applies the ticket lifetimes and derives the TGS clock skew from the
+     * replay window. An authenticator is accepted anywhere within the skew
+     * either side of now, so the replay cache has to remember it for twice
+     * the skew or a replay could slip in once it has been forgotten.
+     */
+    private static void installTicketSettings() {
+        if (config.validityPeriod <= 0 || config.tgtLifetime <= 0) {
+            System.err.println("validity-period and tgt-lifetime must be positive.");
+            System.exit(1);
+        }
+        if (config.replayWindow <= 0) {
+            System.err.println("replay-window must be positive.");
+            System.exit(1);
+        }
+        long skew = Math.min(TgsHandler.MAX_CLOCK_SKEW, config.replayWindow * 1000L / 2);
+        ChapHandler.setTicketLifetimes(config.validityPeriod, config.tgtLifetime);
+        ChapHandler.setMaxClockSkew(skew);
+        System.out.println("Service tickets last " + config.validityPeriod + " ms, TGTs " + config.tgtLifetime
+                + " ms, TGS clock skew " + skew + " ms");
+    }
+
+    /**
+     * Moves session key generation off the ticket path, as selected by the
+     * "session-keys" config option.
+     */
+    private static void installSessionKeySupplier() {
+        switch (config.sessionKeys) {
+            case "pool":
+                TicketIssuer.setSessionKeySupplier(new PooledSessionKeySupplier(config.sessionKeyPoolSize));
+                break;
+            case "hkdf":
+                byte[] masterKey;
+                if (config.masterKey != null) {
+                    masterKey = Base64.getDecoder().decode(config.masterKey);
+                } else {
+                    Log.warn("No master-key configured, using a random HKDF master key.");
+                    masterKey = Randomness.bytes(32);
+                }
+                TicketIssuer.setSessionKeySupplier(new HkdfSessionKeySupplier(masterKey));
+                break;
+            case "inline":
+                break;
+            default:
+                System.err.println("Unknown session-keys mode: " + config.sessionKeys);
+                System.exit(1);
+        }
+    }
+
+    /**
+     * Serves CHAP and ticket requests on the selector based transport.
+     */
+    private static void startNioServer() {
+        nonceCache = ReplayCaches.create(config.replayCache, 32, config.replayWindow, config.replayCacheCapacity,
+                config.replayCacheFpRate);
+        ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        NioServer server = new NioServer(config.port, NioServer.DEFAULT_LOOP_COUNT,
+                sink -> new ChapHandler(sink, nonceCache, getPrincipals()), workers);
+        try {
+            server.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private static void loadConfig(String configFile) {
         try {
             File file = new File(configFile);
@@ -98,12 +194,72 @@ public class KDCServer {
                 try {
                     config.validityPeriod = Long.parseLong((String) validityObj);
                 } catch (NumberFormatException e) {
-                    sendMessageToChannel(channel, "Invalid 'validity-period' format in config. Using default: 60000 ms.");
-                    config.validityPeriod = 60000L; // Default fallback
+                    sendMessageToChannel(channel, "Invalid 'validity-period' format in config. Using default: "
+                            + ChapHandler.DEFAULT_TICKET_LIFETIME_MILLIS + " ms.");
+                    config.validityPeriod = ChapHandler.DEFAULT_TICKET_LIFETIME_MILLIS; // Default fallback
                 }
             }
+            if (configJson.containsKey("tgt-lifetime")) {
+                config.tgtLifetime = configJson.getLong("tgt-lifetime");
+            }
 
-            loadSecrets(config.secretsFile);
+            if (configJson.containsKey("io-mode")) {
+                config.ioMode = configJson.getString("io-mode");
+            }
+            if (configJson.containsKey("admin-port")) {
+                config.adminPort = configJson.getInt("admin-port");
+            }
+            if (configJson.containsKey("debug")) {
+                config.debug = configJson.getBoolean("debug");
+            }
+            if (configJson.containsKey("session-keys")) {
+                config.sessionKeys = configJson.getString("session-keys");
+            }
+            if (configJson.containsKey("session-key-pool-size")) {
+                config.sessionKeyPoolSize = configJson.getInt("session-key-pool-size");
+            }
+            if (configJson.containsKey("master-key")) {
+                config.masterKey = configJson.getString("master-key");
+            }
+            if (configJson.containsKey("principal-store")) {
+                config.principalStore = configJson.getString("principal-store");
+            }
+            if (configJson.containsKey("replication-port")) {
+                config.replicationPort = configJson.getInt("replication-port");
+            }
+            if (configJson.containsKey("principal-log")) {
+                config.principalLog = configJson.getString("principal-log");
+            }
+            if (configJson.containsKey("replica-of")) {
+                config.replicaOf = configJson.getString("replica-of");
+            }
+            if (configJson.containsKey("replication-key")) {
+                config.replicationKey = configJson.getString("replication-key");
+            }
+            if (configJson.containsKey("session-idle-timeout")) {
+                config.sessionIdleTimeout = configJson.getLong("session-idle-timeout");
+            }
+            if (configJson.containsKey("replay-cache")) {
+                config.replayCache = configJson.getString("replay-cache");
+            }
+            if (configJson.containsKey("replay-window")) {
+                config.replayWindow = configJson.getInt("replay-window");
+            }
+            if (configJson.containsKey("replay-cache-capacity")) {
+                config.replayCacheCapacity = configJson.getLong("replay-cache-capacity");
+            }
+            if (configJson.containsKey("replay-cache-fp-rate")) {
+                config.replayCacheFpRate = configJson.getDouble("replay-cache-fp-rate");
+            }
+            Log.setDebug(config.debug);
+
+            if (config.replicaOf != null) {
+                sendMessageToChannel(channel, "Replica of " + config.replicaOf + ", principals come from the primary");
+            } else if (config.principalStore != null) {
+                loadPrincipalStore(config.principalStore);
+            } else {
+                loadSecrets(config.secretsFile);
+            }
             sendMessageToChannel(channel, "Loaded configuration from: " + configFile);
         } catch (IOException e) {
             e.printStackTrace();
@@ -111,6 +267,161 @@ public class KDCServer {
         }
     }
 
+    /**
+     * Reloads the secrets file or principal store whenever it changes.
+     */
+    private static void watchSecrets() {
+        try {
+            SecretsReloader reloader = new SecretsReloader(principalsFile,
+                    config.principalStore != null ? KDCServer::reloadPrincipalStore : KDCServer::reloadSecrets);
+            reloader.start();
+        } catch (IOException e) {
+            Log.warn("⚠️ Not watching " + principalsFile + " for changes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Installs a new secrets.json. Keys for new and changed principals are
+     * derived before the swap so the first request after a reload does not
+     * pay for scrypt; derived keys of unchanged principals stay cached.
+     */
+    private static void reloadSecrets(File file) throws Exception {
+        Map<String, String> next = Map.copyOf(PrincipalStoreTool.readSecrets(file));
+        int changed = installSecrets(next);
+        if (changed == 0) {
+            return;
+        }
+        if (principalLog != null) {
+            principalLog.sync(next);
+        }
+        Log.info("🔄 Reloaded " + next.size() + " principals from " + file + ", " + changed + " changed");
+    }
+
+    /**
+     * Swaps in a new principal map, from a reload or from the primary.
+     * @return how many principals changed.
+     */
+    private static synchronized int installSecrets(Map<String, String> next) {
+        Map<String, String> previous = secrets;
+        Set<String> changed = SecretsReloader.changedPrincipals(previous, next);
+        if (changed.isEmpty()) {
+            return 0;
+        }
+        for (String name : changed) {
+            if (next.containsKey(name)) {
+                try {
+                    CryptoUtils.deriveKey(next.get(name));
+                } catch (Exception e) {
+                    Log.warn("⚠️ Could not derive the key of " + name + ": " + e.getMessage());
+                }
+            }
+        }
+        secrets = next;
+        principals = new MapPrincipalDatabase(next);
+
+        // The old derived key must not outlive the secret it came from,
+        // unless another principal still uses the same secret.
+        Set<String> live = new HashSet<>(next.values());
+        for (String name : changed) {
+            String old = previous.get(name);
+            if (old != null && !live.contains(old)) {
+                CryptoUtils.invalidateDerivedKey(old);
+            }
+        }
+        return changed.size();
+    }
+
+    /**
+     * On a primary with a "replication-port", logs every principal change
+     * and ships the log to replicas.
+     */
+    private static void startReplication() {
+        if (config.replicationPort <= 0) {
+            return;
+        }
+        if (config.principalStore != null) {
+            System.err.println("Replication needs secrets-file, not a principal-store");
+            System.exit(1);
+        }
+        if (config.replicationKey == null) {
+            System.err.println("Replication needs a replication-key");
+            System.exit(1);
+        }
+        try {
+            File logFile = null;
+            if (config.principalLog != null) {
+                logFile = new File(config.principalLog);
+                if (!logFile.isAbsolute()) {
+                    logFile = new File("src/kdcd", config.principalLog);
+                }
+            }
+            principalLog = new PrincipalLog(logFile);
+            int appended = principalLog.sync(secrets);
+            Log.info("Principal log at seq " + principalLog.getHead() + ", " + appended + " changes since last run");
+            new ReplicationServer(principalLog, config.replicationPort,
+                    config.replicationKey.getBytes(StandardCharsets.UTF_8)).start();
+        } catch (IOException e) {
+            System.err.println("Unable to start replication: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * On a replica, takes the principals from the primary's log and waits
+     * for the first sync before serving.
+     */
+    private static void followPrimary() {
+        if (config.replicationKey == null) {
+            System.err.println("A replica needs the primary's replication-key");
+            System.exit(1);
+        }
+        int colon = config.replicaOf.lastIndexOf(':');
+        ReplicaClient replica = new ReplicaClient(config.replicaOf.substring(0, colon),
+                Integer.parseInt(config.replicaOf.substring(colon + 1)),
+                config.replicationKey.getBytes(StandardCharsets.UTF_8), KDCServer::installSecrets);
+        replica.start();
+        // An unsynced replica would refuse every principal, so keep waiting
+        try {
+            while (!replica.awaitSync(10, TimeUnit.SECONDS)) {
+                Log.warn("⚠️ Not yet synced with " + config.replicaOf + ", still waiting before serving");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Maps a replaced principal store. The old mapping is released once the
+     * sessions still using it finish.
+     */
+    private static void reloadPrincipalStore(File file) throws IOException {
+        MappedPrincipalStore store = new MappedPrincipalStore(file);
+        principals = store;
+        Log.info("🔄 Mapped " + store.size() + " principals from " + file);
+    }
+
+    /**
+     * Maps the binary principal store instead of loading secrets.json.
+     */
+    private static void loadPrincipalStore(String storeFile) {
+        File file = new File(storeFile);
+        if (!file.isAbsolute()) {
+            file = new File("src/kdcd", storeFile);
+        }
+        principalsFile = file;
+        try {
+            long start = System.nanoTime();
+            MappedPrincipalStore store = new MappedPrincipalStore(file);
+            principals = store;
+            sendMessageToChannel(channel, "Mapped " + store.size() + " principals from " + file + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            sendMessageToChannel(channel, "Unable to open principal store: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
     private static void loadSecrets(String secretsFile) {
         try {
             File file = new File(secretsFile);
@@ -123,27 +434,10 @@ public class KDCServer {
                 System.exit(1);
             }
 
-            JSONObject secretsJson = JsonIO.readObject(file);
-            if (secretsJson == null) {
-                throw new IOException("Error reading secrets file");
-            }
-
-            JSONArray secretsArray = secretsJson.getArray("secrets");
-            if (secretsArray == null) {
-                throw new IOException("No 'secrets' array found in secrets file.");
-            }
-
-            for (int i = 0; i < secretsArray.size(); i++) {
-                JSONObject secretObj = secretsArray.getObject(i);
-                String user = secretObj.getString("user");
-                String secret = secretObj.getString("secret");
-
-                if (user == null || secret == null) {
-                    sendMessageToChannel(channel, "Warning: Missing 'user' or 'secret' in entry " + i);
-                    continue;
-                }
-
-                secrets.put(user, secret);
+            principalsFile = file;
+            secrets = Map.copyOf(PrincipalStoreTool.readSecrets(file));
+            principals = new MapPrincipalDatabase(secrets);
+            for (String user : secrets.keySet()) {
                 sendMessageToChannel(channel, "Loaded secret for user: " + user);
             }
 
@@ -167,4 +461,12 @@ public class KDCServer {
     public static Map<String, String> getSecrets() {
         return secrets;
     }
+
+    /**
+     * @return the principals the KDC serves, from secrets.json or the
+     *         mapped principal store.
+     */
+    public static PrincipalDatabase getPrincipals() {
+        return principals;
+    }
 }
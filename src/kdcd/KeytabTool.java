@@ -0,0 +1,109 @@
+package kdcd;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+
+import common.CryptoUtils;
+import common.Keytab;
+import common.PrincipalDatabase;
+
+/**
+ * Exports a service's derived key from the KDC's principals into a keytab,
+ * so the service can be configured with "keytab" instead of its secret.
+ *
+ * The principals come from a binary principal store, whose keys are already
+ * derived, or from a secrets.json file. If the keytab exists and its newest
+ * key for the service differs from the current one, the current key is
+ * added as the next kvno and older versions beyond --keep are dropped.
+ *
+ * To rotate a service's secret without refusing tickets in flight, export
+ * from the updated secrets before the KDC uses them and restart the
+ * service; it then opens tickets under both versions. Install the new
+ * secret at the KDC after that, and drop the old version only once the
+ * tickets issued under it have expired.
+ *
+ * usage: KeytabTool &lt;principals.db|secrets.json&gt; &lt;service&gt; &lt;keytab&gt; [--keep N]
+ *        KeytabTool --list &lt;keytab&gt;
+ */
+public class KeytabTool {
+    static final int DEFAULT_KEEP = 3;
+
+    public static void main(String[] args) {
+        try {
+            if (args.length == 2 && "--list".equals(args[0])) {
+                list(new File(args[1]));
+                return;
+            }
+            if (args.length != 3 && !(args.length == 5 && "--keep".equals(args[3]))) {
+                usage();
+            }
+            int keep = args.length == 5 ? Integer.parseInt(args[4]) : DEFAULT_KEEP;
+            if (keep < 1) {
+                usage();
+            }
+            byte[] key = lookupKey(new File(args[0]), args[1]);
+            Keytab.Entry entry = export(new File(args[2]), args[1], key, keep);
+            System.out.println("Keytab " + args[2] + " holds " + args[1] + " kvno " + entry.kvno());
+        } catch (NumberFormatException e) {
+            usage();
+        } catch (Exception e) {
+            System.err.println("Export failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: KeytabTool <principals.db|secrets.json> <service> <keytab> [--keep N]");
+        System.err.println("       KeytabTool --list <keytab>");
+        System.exit(1);
+    }
+
+    /**
+     * Finds the current derived key of a principal.
+     */
+    static byte[] lookupKey(File source, String principal) throws Exception {
+        byte[] key;
+        if (source.getName().endsWith(".json")) {
+            String secret = PrincipalStoreTool.readSecrets(source).get(principal);
+            key = secret == null ? null : CryptoUtils.deriveKey(secret);
+        } else {
+            PrincipalDatabase store = new MappedPrincipalStore(source);
+            key = store.getDerivedKey(principal);
+        }
+        if (key == null) {
+            throw new IOException("Unknown principal: " + principal);
+        }
+        return key;
+    }
+
+    /**
+     * Adds a key to a keytab unless it is already the newest version there.
+     * @param file the keytab, created if missing.
+     * @param principal the service principal.
+     * @param key the current derived key.
+     * @param keep how many versions to keep.
+     * @return the keytab entry now holding the key.
+     */
+    static Keytab.Entry export(File file, String principal, byte[] key, int keep) throws IOException {
+        Keytab keytab = file.exists() ? Keytab.read(file) : new Keytab();
+        Keytab.Entry latest = keytab.getLatest(principal);
+        if (latest != null && Arrays.equals(latest.key(), key)) {
+            return latest;
+        }
+        Keytab.Entry entry = new Keytab.Entry(principal, latest == null ? 1 : latest.kvno() + 1,
+                System.currentTimeMillis(), key);
+        keytab.add(entry);
+        keytab.prune(principal, keep);
+        keytab.write(file);
+        return entry;
+    }
+
+    private static void list(File file) throws IOException {
+        for (Keytab.Entry e : Keytab.read(file).entries()) {
+            System.out.println(e.principal() + " kvno " + e.kvno() + " created "
+                    + Instant.ofEpochMilli(e.createdMillis()));
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package kdcd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+import common.CryptoUtils;
+import common.PrincipalDatabase;
+
+/**
+ * A read-only principal database served straight from a memory-mapped file.
+ *
+ * Nothing is deserialized at startup: opening the store maps the file and
+ * checks its header, and every lookup reads the mapped pages directly, so
+ * the heap cost does not grow with the number of principals.
+ *
+ * <pre>
+ * header   64 bytes   magic "KPDB", version, slot count, record count,
+ *                     record size
+ * index    8 bytes per slot, open addressing with linear probing. A slot
+ *          holds (fingerprint &lt;&lt; 32 | record number + 1), 0 when empty.
+ *          The fingerprint is the high half of the name's FNV-1a hash, so
+ *          most misses never touch a record.
+ * records  256 bytes each
+ *            0  u16 name length,   2  name (UTF-8, up to 110 bytes)
+ *          112  u16 secret length, 114 secret (UTF-8, up to 108 bytes)
+ *          222  pad, 224  scrypt derived key (32 bytes)
+ * </pre>
+ *
+ * The index has at least twice as many slots as records. A single mapping
+ * is limited to 2 GB, about eight million principals. Files are written by
+ * {@link #write(File, Map)}; see {@link PrincipalStoreTool}.
+ */
+public class MappedPrincipalStore implements PrincipalDatabase {
+    static final int MAGIC = 0x4B504442; // "KPDB"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_SIZE = 8;
+    static final int RECORD_SIZE = 256;
+    static final int MAX_NAME = 110;
+    static final int MAX_SECRET = 108;
+    static final int KEY_SIZE = 32;
+
+    private static final int NAME_OFFSET = 0;
+    private static final int SECRET_OFFSET = 112;
+    private static final int KEY_OFFSET = 224;
+
+    private final File file;
+    private final MappedByteBuffer map;
+    private final int slotMask;
+    private final int recordCount;
+    private final long recordsOffset;
+
+    /**
+     * Maps a store file.
+     * @param file the store written by {@link #write(File, Map)}.
+     * @throws IOException if the file cannot be mapped or is not a store.
+     */
+    public MappedPrincipalStore(File file) throws IOException {
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel ch = raf.getChannel()) {
+            if (ch.size() < HEADER_SIZE || ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a principal store: " + file);
+            }
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        map.order(ByteOrder.BIG_ENDIAN);
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(16) != RECORD_SIZE) {
+            throw new IOException("Not a principal store or unsupported version: " + file);
+        }
+        int slots = map.getInt(8);
+        recordCount = map.getInt(12);
+        if (Integer.bitCount(slots) != 1 || recordCount < 0 || recordCount > slots
+                || HEADER_SIZE + (long) slots * SLOT_SIZE + (long) recordCount * RECORD_SIZE != map.capacity()) {
+            throw new IOException("Corrupt principal store: " + file);
+        }
+        slotMask = slots - 1;
+        recordsOffset = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        if (!indexValid(slots)) {
+            throw new IOException("Corrupt principal store: " + file);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String getSecret(String principal) {
+        int record = find(principal);
+        if (record < 0) {
+            return null;
+        }
+        int base = recordBase(record);
+        return readString(base + SECRET_OFFSET);
+    }
+
+    @Override
+    public byte[] getDerivedKey(String principal) {
+        int record = find(principal);
+        if (record < 0) {
+            return null;
+        }
+        byte[] key = new byte[KEY_SIZE];
+        map.get(recordBase(record) + KEY_OFFSET, key);
+        return key;
+    }
+
+    @Override
+    public boolean contains(String principal) {
+        return find(principal) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return recordCount;
+    }
+
+    /**
+     * Calls an action for every principal, in record order.
+     * @param action receives the name and secret of each principal.
+     */
+    public void forEach(BiConsumer<String, String> action) {
+        for (int r = 0; r < recordCount; r++) {
+            int base = recordBase(r);
+            action.accept(readString(base + NAME_OFFSET), readString(base + SECRET_OFFSET));
+        }
+    }
+
+    /**
+     * Finds the record of a principal by probing the mapped index.
+     * @return the record number, or -1.
+     */
+    private int find(String principal) {
+        if (principal == null) {
+            return -1;
+        }
+        byte[] name = principal.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(name);
+        int fingerprint = (int) (hash >>> 32);
+        for (int slot = (int) hash & slotMask, probes = 0; probes <= slotMask; slot = (slot + 1) & slotMask, probes++) {
+            long entry = map.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+            if (entry == 0) {
+                return -1;
+            }
+            if ((int) (entry >>> 32) == fingerprint) {
+                int record = (int) entry - 1;
+                if (nameEquals(recordBase(record), name)) {
+                    return record;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks once at open that every index entry names a record in the file
+     * and every record holds strings that fit it, so lookups never read past
+     * a record or the mapping.
+     */
+    private boolean indexValid(int slots) {
+        for (int slot = 0; slot < slots; slot++) {
+            long entry = map.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+            int record = (int) entry - 1;
+            if (entry != 0 && (record < 0 || record >= recordCount)) {
+                return false;
+            }
+        }
+        for (int r = 0; r < recordCount; r++) {
+            int base = recordBase(r);
+            if ((map.getShort(base + NAME_OFFSET) & 0xFFFF) > MAX_NAME
+                    || (map.getShort(base + SECRET_OFFSET) & 0xFFFF) > MAX_SECRET) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int recordBase(int record) {
+        return (int) (recordsOffset + (long) record * RECORD_SIZE);
+    }
+
+    private boolean nameEquals(int base, byte[] name) {
+        if ((map.getShort(base + NAME_OFFSET) & 0xFFFF) != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (map.get(base + NAME_OFFSET + 2 + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readString(int offset) {
+        byte[] bytes = new byte[map.getShort(offset) & 0xFFFF];
+        map.get(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 64 bit FNV-1a.
+     */
+    static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Writes a store holding the given principals. Derived keys are computed
+     * here, in parallel, so the KDC never runs scrypt for them. The file is
+     * written next to its destination and moved into place, so a KDC mapping
+     * the old file is not disturbed.
+     * @param out the store file to create or replace.
+     * @param secrets the secrets by principal name.
+     * @throws IOException if a name or secret is too long or writing fails.
+     */
+    public static void write(File out, Map<String, String> secrets) throws IOException {
+        List<String> names = new ArrayList<>(secrets.keySet());
+        int count = names.size();
+        int slots = Integer.highestOneBit(Math.max(2, count * 2 - 1)) << 1;
+        long size = HEADER_SIZE + (long) slots * SLOT_SIZE + (long) count * RECORD_SIZE;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Too many principals for one store: " + count);
+        }
+
+        for (String name : names) {
+            if (name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME
+                    || secrets.get(name).getBytes(StandardCharsets.UTF_8).length > MAX_SECRET) {
+                throw new IOException("Principal name or secret too long: " + name);
+            }
+        }
+
+        byte[][] keys = new byte[count][];
+        try {
+            IntStream.range(0, count).parallel().forEach(i -> {
+                try {
+                    keys[i] = CryptoUtils.deriveKey(secrets.get(names.get(i)));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            throw new IOException("Key derivation failed: " + e.getCause().getMessage(), e.getCause());
+        }
+
+        File dir = out.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(out.getName(), ".tmp", dir);
+        try {
+            try {
+                Files.setPosixFilePermissions(tmp.toPath(), PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system.
+            }
+            try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                fill(buf, names, secrets, keys, slots);
+                buf.force();
+            }
+            Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private static void fill(ByteBuffer buf, List<String> names, Map<String, String> secrets, byte[][] keys,
+            int slots) {
+        int count = names.size();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        buf.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, slots).putInt(12, count).putInt(16, RECORD_SIZE);
+        long recordsOffset = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        for (int r = 0; r < count; r++) {
+            byte[] name = names.get(r).getBytes(StandardCharsets.UTF_8);
+            byte[] secret = secrets.get(names.get(r)).getBytes(StandardCharsets.UTF_8);
+            int base = (int) (recordsOffset + (long) r * RECORD_SIZE);
+            buf.putShort(base + NAME_OFFSET, (short) name.length).put(base + NAME_OFFSET + 2, name);
+            buf.putShort(base + SECRET_OFFSET, (short) secret.length).put(base + SECRET_OFFSET + 2, secret);
+            buf.put(base + KEY_OFFSET, keys[r]);
+
+            long hash = hash(name);
+            int slot = (int) hash & (slots - 1);
+            while (buf.getLong(HEADER_SIZE + slot * SLOT_SIZE) != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            buf.putLong(HEADER_SIZE + slot * SLOT_SIZE, (hash >>> 32) << 32 | (r + 1L));
+        }
+    }
+}
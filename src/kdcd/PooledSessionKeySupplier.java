@@ -0,0 +1,98 @@
+package kdcd;
+
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.KeyGenerator;
+
+import common.LatencyHistogram;
+import common.Log;
+import common.Metrics;
+import common.Randomness;
+import common.SessionKeySupplier;
+import common.TicketIssuer;
+
+/**
+ * Hands out session keys generated ahead of time by a background thread.
+ *
+ * Keys are kept in a bounded queue that a daemon thread keeps full, so a
+ * ticket request only dequeues a key. If requests outrun the refill thread
+ * the caller waits up to {@link #STALL_TIMEOUT_MILLIS} for the next key and
+ * then generates one itself, so a refill thread that has died or fallen
+ * far behind slows ticket requests down but never hangs them. Each wait is
+ * counted as a stall and timed in the session_key_stall histogram. Pool
+ * depth and stalls are exported as session_key_pool_depth and
+ * session_key_stalls. A refill thread that hits an error logs it and starts
+ * over after {@link #REFILL_RETRY_MILLIS}.
+ */
+public class PooledSessionKeySupplier implements SessionKeySupplier {
+    static final long STALL_TIMEOUT_MILLIS = 100;
+    static final long REFILL_RETRY_MILLIS = 1000;
+
+    private final BlockingQueue<String> pool;
+    private final AtomicLong stalls = new AtomicLong();
+    private final LatencyHistogram stallLatency = Metrics.histogram("session_key_stall");
+    private final Thread refiller;
+
+    /**
+     * Creates the pool and starts filling it.
+     * @param capacity the number of keys kept ready.
+     */
+    public PooledSessionKeySupplier(int capacity) {
+        pool = new ArrayBlockingQueue<>(capacity);
+        Metrics.gauge("session_key_pool_depth", pool::size);
+        Metrics.gauge("session_key_stalls", stalls::get);
+        refiller = new Thread(this::refillLoop, "session-key-refill");
+        refiller.setDaemon(true);
+        refiller.start();
+    }
+
+    @Override
+    public String nextSessionKey() throws Exception {
+        String key = pool.poll();
+        if (key != null) {
+            return key;
+        }
+        stalls.incrementAndGet();
+        long start = System.nanoTime();
+        key = refiller.isAlive() ? pool.poll(STALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) : null;
+        if (key == null) {
+            key = TicketIssuer.generateSessionKey();
+        }
+        stallLatency.recordSince(start);
+        return key;
+    }
+
+    public int getDepth() {
+        return pool.size();
+    }
+
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    private void refillLoop() {
+        while (true) {
+            try {
+                KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+                keyGen.init(256, Randomness.secureRandom());
+                while (true) {
+                    pool.put(Base64.getEncoder().encodeToString(keyGen.generateKey().getEncoded()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                Log.error("❌ Session key refill failed, retrying: " + e.getMessage(), e);
+            }
+            try {
+                Thread.sleep(REFILL_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package kdcd;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import common.Log;
+import common.Randomness;
+
+/**
+ * The primary KDC's ordered log of principal changes, shipped to replicas.
+ *
+ * Every added, changed or removed principal is appended as an {@link Entry}
+ * with the next sequence number and a CRC32 over its contents. The log
+ * keeps the principal map it implies, so a replica that is too far behind
+ * (or has never synced) is sent a snapshot of that map followed by the
+ * entries after it.
+ *
+ * When backed by a file the log survives restarts: the file starts with
+ * the magic "KPLG", a version and a random log id, followed by the entries.
+ * A torn entry at the end, left by a crash mid-write, is cut off on open.
+ * The log id changes whenever the log starts over, which tells replicas
+ * that sequence numbers they hold from an older log mean nothing.
+ *
+ * Only the last {@link #DEFAULT_RETAIN} entries are kept in memory for
+ * incremental catch-up.
+ */
+public class PrincipalLog {
+    static final int MAGIC = 0x4B504C47; // "KPLG"
+    static final int VERSION = 1;
+    static final int DEFAULT_RETAIN = 10_000;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    public static final byte PUT = 1;
+    public static final byte DELETE = 2;
+
+    /**
+     * One principal change.
+     */
+    public record Entry(long seq, long timeMillis, byte op, String name, String secret) {
+
+        /**
+         * Writes the entry followed by its checksum.
+         */
+        public void write(DataOutputStream out) throws IOException {
+            byte[] body = body();
+            out.write(body);
+            out.writeInt(checksum(body));
+        }
+
+        /**
+         * Reads an entry and verifies its checksum.
+         * @throws IOException if the entry is corrupt or the stream ends.
+         */
+        public static Entry read(DataInputStream in) throws IOException {
+            long seq = in.readLong();
+            long time = in.readLong();
+            byte op = in.readByte();
+            String name = in.readUTF();
+            String secret = in.readUTF();
+            Entry entry = new Entry(seq, time, op, name, op == DELETE ? null : secret);
+            if (in.readInt() != checksum(entry.body())) {
+                throw new IOException("Principal log entry " + seq + " fails its checksum");
+            }
+            return entry;
+        }
+
+        private byte[] body() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(seq);
+            out.writeLong(timeMillis);
+            out.writeByte(op);
+            out.writeUTF(name);
+            out.writeUTF(secret == null ? "" : secret);
+            return bytes.toByteArray();
+        }
+
+        private static int checksum(byte[] body) {
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            return (int) crc.getValue();
+        }
+    }
+
+    /**
+     * A copy of the principal map as of one sequence number.
+     */
+    public record Snapshot(long seq, Map<String, String> secrets) {
+    }
+
+    private final File file;
+    private final int retain;
+    private final Map<String, String> state = new HashMap<>();
+    private final ArrayDeque<Entry> recent = new ArrayDeque<>();
+    private long logId;
+    private long head = 0;
+    private DataOutputStream out;
+
+    /**
+     * Opens a log, replaying the entries already in the file.
+     * @param file the log file, or null to keep the log in memory only.
+     * @throws IOException if the file cannot be read or created.
+     */
+    public PrincipalLog(File file) throws IOException {
+        this(file, DEFAULT_RETAIN);
+    }
+
+    PrincipalLog(File file, int retain) throws IOException {
+        this.file = file;
+        this.retain = retain;
+        if (file == null) {
+            logId = Randomness.secureRandom().nextLong();
+            return;
+        }
+        restrictToOwner(file);
+        if (file.length() > 0) {
+            replay();
+        } else {
+            logId = Randomness.secureRandom().nextLong();
+            try (DataOutputStream header = new DataOutputStream(new FileOutputStream(file))) {
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                header.writeLong(logId);
+            }
+        }
+        out = new DataOutputStream(new FileOutputStream(file, true));
+    }
+
+    /**
+     * Creates the log file if needed, readable only by its owner like the
+     * principal store, since every entry holds a plaintext secret. A log
+     * left readable by an older version is tightened too.
+     */
+    private static void restrictToOwner(File file) throws IOException {
+        Path path = file.toPath();
+        try {
+            if (!file.exists()) {
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            }
+            Files.setPosixFilePermissions(path, OWNER_ONLY);
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system.
+            if (!file.exists()) {
+                Files.createFile(path);
+            }
+        }
+    }
+
+    private void replay() throws IOException {
+        long good;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a principal log: " + file);
+            }
+            logId = in.readLong();
+            good = 16;
+            while (true) {
+                Entry entry;
+                try {
+                    entry = Entry.read(in);
+                } catch (EOFException e) {
+                    break;
+                } catch (IOException e) {
+                    Log.warn("⚠️ " + e.getMessage() + ", dropping the rest of " + file);
+                    break;
+                }
+                if (entry.seq() != head + 1) {
+                    Log.warn("⚠️ Principal log out of order at " + entry.seq() + ", dropping the rest of " + file);
+                    break;
+                }
+                apply(entry);
+                good += 8 + 8 + 1 + 2 + utfLength(entry.name()) + 2
+                        + utfLength(entry.secret() == null ? "" : entry.secret()) + 4;
+            }
+        }
+        if (good < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(good);
+            }
+        }
+    }
+
+    private static int utfLength(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            n += (c >= 1 && c <= 0x7F) ? 1 : (c <= 0x7FF ? 2 : 3);
+        }
+        return n;
+    }
+
+    public long getLogId() {
+        return logId;
+    }
+
+    /**
+     * @return the sequence number of the last entry, 0 if there is none.
+     */
+    public synchronized long getHead() {
+        return head;
+    }
+
+    /**
+     * Appends the changes that turn the logged principals into the given
+     * ones, and wakes the replication streams waiting for them.
+     * @param secrets the principals as they are now.
+     * @return how many entries were appended.
+     * @throws IOException if the log file cannot be written.
+     */
+    public synchronized int sync(Map<String, String> secrets) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Entry> added = new ArrayList<>();
+        for (Map.Entry<String, String> e : secrets.entrySet()) {
+            if (!Objects.equals(state.get(e.getKey()), e.getValue())) {
+                added.add(new Entry(head + added.size() + 1, now, PUT, e.getKey(), e.getValue()));
+            }
+        }
+        for (String name : state.keySet()) {
+            if (!secrets.containsKey(name)) {
+                added.add(new Entry(head + added.size() + 1, now, DELETE, name, null));
+            }
+        }
+        if (added.isEmpty()) {
+            return 0;
+        }
+        if (out != null) {
+            for (Entry entry : added) {
+                entry.write(out);
+            }
+            out.flush();
+        }
+        for (Entry entry : added) {
+            apply(entry);
+        }
+        notifyAll();
+        return added.size();
+    }
+
+    private void apply(Entry entry) {
+        if (entry.op() == DELETE) {
+            state.remove(entry.name());
+        } else {
+            state.put(entry.name(), entry.secret());
+        }
+        head = entry.seq();
+        recent.addLast(entry);
+        if (recent.size() > retain) {
+            recent.removeFirst();
+        }
+    }
+
+    /**
+     * @return the principals as of the head of the log.
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(head, Map.copyOf(state));
+    }
+
+    /**
+     * Returns the entries after a sequence number, waiting for new ones if
+     * there are none yet.
+     * @param seq the last sequence number the caller has.
+     * @param timeoutMillis how long to wait for a new entry.
+     * @return the entries in order, possibly none, or null if entries after
+     *         seq are no longer retained and a snapshot is needed.
+     */
+    public synchronized List<Entry> entriesAfter(long seq, long timeoutMillis) throws InterruptedException {
+        if (seq > head) {
+            return null;
+        }
+        if (seq == head && timeoutMillis > 0) {
+            wait(timeoutMillis);
+        }
+        if (seq == head) {
+            return List.of();
+        }
+        if (recent.isEmpty() || recent.peekFirst().seq() > seq + 1) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>((int) (head - seq));
+        for (Entry entry : recent) {
+            if (entry.seq() > seq) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,63 @@
+package kdcd;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Converts a secrets.json file into a binary {@link MappedPrincipalStore}
+ * for the KDC's "principal-store" option. Deriving the scrypt key of every
+ * principal happens here, once, on all cores.
+ *
+ * usage: PrincipalStoreTool &lt;secrets.json&gt; &lt;principals.db&gt;
+ */
+public class PrincipalStoreTool {
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("usage: PrincipalStoreTool <secrets.json> <principals.db>");
+            System.exit(1);
+        }
+        try {
+            Map<String, String> secrets = readSecrets(new File(args[0]));
+            long start = System.nanoTime();
+            MappedPrincipalStore.write(new File(args[1]), secrets);
+            System.out.println("Wrote " + secrets.size() + " principals to " + args[1] + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            System.err.println("Conversion failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the "secrets" array of a secrets.json file.
+     * @param file the secrets file.
+     * @return the secrets by principal name.
+     * @throws IOException if the file cannot be read or has no secrets.
+     */
+    static Map<String, String> readSecrets(File file) throws IOException {
+        JSONObject secretsJson = JsonIO.readObject(file);
+        if (secretsJson == null || secretsJson.getArray("secrets") == null) {
+            throw new IOException("No 'secrets' array found in " + file);
+        }
+        JSONArray secretsArray = secretsJson.getArray("secrets");
+        Map<String, String> secrets = new HashMap<>();
+        for (int i = 0; i < secretsArray.size(); i++) {
+            JSONObject secretObj = secretsArray.getObject(i);
+            String user = secretObj.getString("user");
+            String secret = secretObj.getString("secret");
+            if (user == null || secret == null) {
+                System.err.println("Warning: Missing 'user' or 'secret' in entry " + i);
+                continue;
+            }
+            secrets.put(user, secret);
+        }
+        return secrets;
+    }
+}
@@ -0,0 +1,211 @@
+package kdcd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import common.LatencyHistogram;
+import common.Log;
+import common.Metrics;
+import common.Randomness;
+
+/**
+ * Follows a primary KDC's principal log through its {@link ReplicationServer}
+ * and keeps this KDC's principals in step with it.
+ *
+ * Frames that arrive together are applied as one batch, so a burst of
+ * changes swaps the principal map once. The connection is retried with
+ * backoff when it drops or the primary goes quiet for three heartbeats;
+ * on reconnect the replica resumes from the last sequence number it
+ * applied, or receives a fresh snapshot if the primary can no longer
+ * provide the entries after it.
+ *
+ * Lag is exported as kdc_replica_lag_entries (entries the primary has that
+ * are not applied here), kdc_replica_lag_millis (how long the replica has
+ * been behind) and kdc_replica_apply_delay (from the primary appending an
+ * entry to it being served here).
+ */
+public class ReplicaClient {
+    static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private static final LatencyHistogram applyDelay = Metrics.histogram("kdc_replica_apply_delay");
+
+    private final String host;
+    private final int port;
+    private final byte[] key;
+    private final Consumer<Map<String, String>> installer;
+    private final CountDownLatch synced = new CountDownLatch(1);
+
+    private Map<String, String> working = new HashMap<>();
+    private long logId = 0;
+    private volatile long applied = 0;
+    private volatile long primaryHead = 0;
+    private volatile long behindSince = 0;
+    private volatile long reconnects = 0;
+    private long backoff = 100;
+
+    /**
+     * Creates a replica client; call {@link #start()} to begin following.
+     * @param host the primary's replication address.
+     * @param port the primary's replication port.
+     * @param key the replication key shared with the primary.
+     * @param installer installs each new principal map.
+     */
+    public ReplicaClient(String host, int port, byte[] key, Consumer<Map<String, String>> installer) {
+        this.host = host;
+        this.port = port;
+        this.key = key.clone();
+        this.installer = installer;
+    }
+
+    /**
+     * Registers the lag gauges and starts following the primary.
+     */
+    public void start() {
+        Metrics.gauge("kdc_replica_applied_seq", () -> applied);
+        Metrics.gauge("kdc_replica_lag_entries", () -> Math.max(0, primaryHead - applied));
+        Metrics.gauge("kdc_replica_lag_millis", this::getLagMillis);
+        Metrics.gauge("kdc_replica_reconnects", () -> reconnects);
+        Thread thread = new Thread(this::followLoop, "replica-follow");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits until the first snapshot or catch-up has been applied.
+     * @return true if the replica synced within the timeout.
+     */
+    public boolean awaitSync(long timeout, TimeUnit unit) throws InterruptedException {
+        return synced.await(timeout, unit);
+    }
+
+    public long getApplied() {
+        return applied;
+    }
+
+    /**
+     * @return how long this replica has been behind the primary, 0 when it
+     *         is caught up.
+     */
+    public long getLagMillis() {
+        long since = behindSince;
+        return since == 0 ? 0 : System.currentTimeMillis() - since;
+    }
+
+    private void followLoop() {
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), (int) MAX_BACKOFF_MILLIS);
+                socket.setSoTimeout((int) (3 * ReplicationServer.HEARTBEAT_MILLIS));
+                socket.setTcpNoDelay(true);
+                follow(socket);
+            } catch (IOException e) {
+                Log.warn("⚠️ Lost primary " + host + ":" + port + ": " + e.getMessage());
+            }
+            reconnects++;
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    private void follow(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] replicaNonce = Randomness.challenge();
+        out.writeInt(ReplicationServer.MAGIC);
+        out.write(replicaNonce);
+        out.flush();
+        byte[] primaryNonce = in.readNBytes(ReplicationServer.NONCE_LENGTH);
+        byte[] primaryProof = in.readNBytes(32);
+        if (!MessageDigest.isEqual(primaryProof,
+                ReplicationServer.proof(key, "primary", replicaNonce, primaryNonce))) {
+            throw new IOException("Primary failed to authenticate");
+        }
+        // Only an authenticated primary resets the backoff, so a wrong key
+        // does not turn into a tight reconnect loop
+        backoff = 100;
+        out.write(ReplicationServer.proof(key, "replica", primaryNonce, replicaNonce));
+        out.writeLong(logId);
+        out.writeLong(applied);
+        out.flush();
+        Log.info("🔁 Following primary " + host + ":" + port + " from seq " + applied);
+
+        while (true) {
+            // Block for one frame, then take whatever else has already
+            // arrived so a burst is installed as one map.
+            long seq = applied;
+            boolean changed = false;
+            do {
+                byte type = in.readByte();
+                switch (type) {
+                    case ReplicationServer.SNAPSHOT:
+                        seq = readSnapshot(in);
+                        changed = true;
+                        break;
+                    case ReplicationServer.ENTRY:
+                        PrincipalLog.Entry entry = PrincipalLog.Entry.read(in);
+                        if (entry.seq() != seq + 1) {
+                            throw new IOException("Expected entry " + (seq + 1) + " but got " + entry.seq());
+                        }
+                        if (entry.op() == PrincipalLog.DELETE) {
+                            working.remove(entry.name());
+                        } else {
+                            working.put(entry.name(), entry.secret());
+                        }
+                        applyDelay.record(Math.max(0, System.currentTimeMillis() - entry.timeMillis()) * 1_000_000);
+                        seq = entry.seq();
+                        changed = true;
+                        break;
+                    case ReplicationServer.HEARTBEAT:
+                        primaryHead = Math.max(primaryHead, in.readLong());
+                        in.readLong();
+                        break;
+                    default:
+                        throw new IOException("Unknown replication frame " + type);
+                }
+            } while (in.available() > 0);
+
+            if (changed) {
+                installer.accept(Map.copyOf(working));
+                applied = seq;
+            }
+            primaryHead = Math.max(primaryHead, applied);
+            if (applied >= primaryHead) {
+                behindSince = 0;
+                synced.countDown();
+            } else if (behindSince == 0) {
+                behindSince = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private long readSnapshot(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        long seq = in.readLong();
+        int count = in.readInt();
+        Map<String, String> secrets = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            PrincipalLog.Entry entry = PrincipalLog.Entry.read(in);
+            secrets.put(entry.name(), entry.secret());
+        }
+        working = secrets;
+        logId = id;
+        primaryHead = seq;
+        Log.info("🔁 Received snapshot of " + count + " principals at seq " + seq);
+        return seq;
+    }
+}
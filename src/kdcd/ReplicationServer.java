@@ -0,0 +1,200 @@
+package kdcd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+
+import common.CryptoPrimitives;
+import common.Log;
+import common.Metrics;
+import common.Randomness;
+
+/**
+ * Streams the primary's {@link PrincipalLog} to replicas, on the loopback
+ * interface only.
+ *
+ * Loopback keeps the stream off the network but not away from other local
+ * users, so both ends first prove they hold the replication key: each
+ * sends a fresh nonce and answers the other's with an HMAC-SHA256 under
+ * the key, tagged with its role so one side's answer cannot be reflected
+ * back as the other's. Nothing about the principals is sent until the
+ * replica has proved itself.
+ *
+ * After that the replica sends the id of the log it last followed and
+ * the last sequence number it applied. If it is following this log and the
+ * entries after its position are still retained it gets them as they are;
+ * otherwise it first gets a snapshot. After that every new entry is pushed
+ * as soon as it is appended, with a heartbeat carrying the head of the log
+ * when nothing happens for {@link #HEARTBEAT_MILLIS}, from which the
+ * replica measures its lag.
+ *
+ * <pre>
+ * replica:  u32 magic, 32 byte nonce Nr
+ * primary:  32 byte nonce Np, HMAC(key, "primary" Nr Np)
+ * replica:  HMAC(key, "replica" Np Nr), u64 log id, u64 last applied seq
+ * primary:  'S' u64 log id, u64 seq, u32 count, count entries  (snapshot)
+ *           'E' entry                                          (change)
+ *           'H' u64 head seq, u64 time millis                  (heartbeat)
+ * </pre>
+ *
+ * Entries are written with their CRC32 as in the log file.
+ */
+public class ReplicationServer {
+    static final int MAGIC = 0x4B52504C; // "KRPL"
+    static final byte SNAPSHOT = 'S';
+    static final byte ENTRY = 'E';
+    static final byte HEARTBEAT = 'H';
+    static final long HEARTBEAT_MILLIS = 1000;
+    static final int NONCE_LENGTH = 32;
+    static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    private final PrincipalLog log;
+    private final byte[] key;
+    private final ServerSocket serverSocket;
+    private final AtomicLong connected = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+
+    /**
+     * Creates the server; call {@link #start()} to accept replicas.
+     * @param log the log to ship.
+     * @param port the loopback port to listen on.
+     * @param key the replication key shared with the replicas.
+     * @throws IOException if the port cannot be bound.
+     */
+    public ReplicationServer(PrincipalLog log, int port, byte[] key) throws IOException {
+        this.log = log;
+        this.key = key.clone();
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Metrics.gauge("kdc_replicas_connected", connected::get);
+        Metrics.gauge("kdc_replication_snapshots", snapshots::get);
+        Metrics.gauge("kdc_principal_log_head", log::getHead);
+    }
+
+    public void start() {
+        Thread acceptor = new Thread(this::acceptLoop, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.info("Replication listening on 127.0.0.1:" + serverSocket.getLocalPort());
+    }
+
+    public void stop() throws IOException {
+        serverSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread stream = new Thread(() -> serve(socket), "replication-" + socket.getPort());
+                stream.setDaemon(true);
+                stream.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    Log.warn("⚠️ Replication accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        connected.incrementAndGet();
+        String peer = socket.getRemoteSocketAddress().toString();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            if (in.readInt() != MAGIC) {
+                Log.warn("⚠️ Not a replica, closing " + peer);
+                return;
+            }
+            byte[] replicaNonce = in.readNBytes(NONCE_LENGTH);
+            byte[] primaryNonce = Randomness.challenge();
+            out.write(primaryNonce);
+            out.write(proof(key, "primary", replicaNonce, primaryNonce));
+            out.flush();
+            if (!MessageDigest.isEqual(in.readNBytes(32), proof(key, "replica", primaryNonce, replicaNonce))) {
+                Log.warn("⚠️ Replica " + peer + " failed to authenticate, closing");
+                return;
+            }
+            socket.setSoTimeout(0);
+            long logId = in.readLong();
+            long seq = in.readLong();
+            if (logId != log.getLogId()) {
+                seq = -1;
+            }
+            Log.info("🔁 Replica " + peer + " connected at seq " + seq);
+            while (true) {
+                List<PrincipalLog.Entry> entries = seq < 0 ? null : log.entriesAfter(seq, HEARTBEAT_MILLIS);
+                if (entries == null) {
+                    seq = sendSnapshot(out);
+                } else if (entries.isEmpty()) {
+                    out.writeByte(HEARTBEAT);
+                    out.writeLong(log.getHead());
+                    out.writeLong(System.currentTimeMillis());
+                } else {
+                    for (PrincipalLog.Entry entry : entries) {
+                        out.writeByte(ENTRY);
+                        entry.write(out);
+                    }
+                    seq = entries.get(entries.size() - 1).seq();
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            Log.info("🔁 Replica " + peer + " disconnected: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connected.decrementAndGet();
+        }
+    }
+
+    /**
+     * The HMAC one side answers the other's nonce with.
+     * @param key the replication key.
+     * @param role who is answering, "primary" or "replica".
+     * @param theirs the nonce being answered.
+     * @param ours the answering side's own nonce.
+     */
+    static byte[] proof(byte[] key, String role, byte[] theirs, byte[] ours) throws IOException {
+        try {
+            Mac mac = CryptoPrimitives.hmacSha256(key);
+            mac.update(role.getBytes(StandardCharsets.UTF_8));
+            mac.update(theirs);
+            mac.update(ours);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to compute replication proof", e);
+        }
+    }
+
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        PrincipalLog.Snapshot snapshot = log.snapshot();
+        out.writeByte(SNAPSHOT);
+        out.writeLong(log.getLogId());
+        out.writeLong(snapshot.seq());
+        out.writeInt(snapshot.secrets().size());
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, String> e : snapshot.secrets().entrySet()) {
+            new PrincipalLog.Entry(snapshot.seq(), now, PrincipalLog.PUT, e.getKey(), e.getValue()).write(out);
+        }
+        snapshots.incrementAndGet();
+        return snapshot.seq();
+    }
+}
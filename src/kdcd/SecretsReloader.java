@@ -0,0 +1,144 @@
+package kdcd;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import common.LatencyHistogram;
+import common.Log;
+import common.Metrics;
+
+/**
+ * Watches the KDC's secrets file (or principal store) and reloads it when it
+ * changes, without restarting the server.
+ *
+ * A daemon thread waits on a {@link WatchService} for the file's directory,
+ * so editors that save by renaming a temporary file are seen as well.
+ * Bursts of events are coalesced until the file has been quiet for
+ * {@link #SETTLE_MILLIS}, then the reload action parses the new file on this
+ * thread and swaps it in. Request threads never wait for a reload: sessions
+ * already running keep the snapshot they started with. A failed reload is
+ * logged and the previous secrets stay in use.
+ */
+public class SecretsReloader {
+    static final long SETTLE_MILLIS = 250;
+
+    private static final LatencyHistogram reloadLatency = Metrics.histogram("kdc_secrets_reload");
+
+    /**
+     * Loads the changed file and installs it.
+     */
+    public interface ReloadAction {
+        void reload(File file) throws Exception;
+    }
+
+    private final File file;
+    private final ReloadAction action;
+    private final WatchService watcher;
+    private final Thread thread;
+    private volatile long reloads = 0;
+
+    /**
+     * Creates a reloader; call {@link #start()} to begin watching.
+     * @param file the file to watch.
+     * @param action what to do when it changes.
+     * @throws IOException if the directory cannot be watched.
+     */
+    public SecretsReloader(File file, ReloadAction action) throws IOException {
+        this.file = file.getAbsoluteFile();
+        this.action = action;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.file.getParentFile().toPath().register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::watchLoop, "secrets-reloader");
+        this.thread.setDaemon(true);
+        Metrics.gauge("kdc_secrets_reloads", () -> reloads);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() throws IOException {
+        watcher.close();
+    }
+
+    public long getReloads() {
+        return reloads;
+    }
+
+    /**
+     * Returns the principals that were added, removed or given a new secret.
+     * @param before the secrets in use.
+     * @param after the newly loaded secrets.
+     * @return the names of the changed principals.
+     */
+    public static Set<String> changedPrincipals(Map<String, String> before, Map<String, String> after) {
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, String> e : after.entrySet()) {
+            if (!Objects.equals(before.get(e.getKey()), e.getValue())) {
+                changed.add(e.getKey());
+            }
+        }
+        for (String name : before.keySet()) {
+            if (!after.containsKey(name)) {
+                changed.add(name);
+            }
+        }
+        return changed;
+    }
+
+    private void watchLoop() {
+        Path name = file.toPath().getFileName();
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean touched = drain(key, name);
+                // Let the writer finish before reading, coalescing the
+                // events of a multi-step save into one reload.
+                WatchKey more;
+                while ((more = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    touched |= drain(more, name);
+                }
+                if (touched && file.exists()) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped.
+        }
+    }
+
+    private static boolean drain(WatchKey key, Path name) {
+        boolean touched = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context())) {
+                touched = true;
+            }
+        }
+        key.reset();
+        return touched;
+    }
+
+    private void reload() {
+        long start = System.nanoTime();
+        try {
+            action.reload(file);
+            reloads++;
+            reloadLatency.recordSince(start);
+        } catch (Exception e) {
+            Log.warn("⚠️ Reloading " + file + " failed, keeping the previous secrets: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package kdcd;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import common.ConsistentHashRing;
+import common.TgsHandler;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Splits a secrets.json file into one secrets file per KDC shard.
+ *
+ * The shard ids are the "shard" fields of hosts.json, and users are placed
+ * with the same {@link ConsistentHashRing} the client routes with. The
+ * ticket-granting principal and every service named in hosts.json are
+ * copied to all shards, since any shard may have to seal a ticket for them;
+ * further shared principals can be given with --replicate.
+ *
+ * usage: SecretsSplitter &lt;secrets.json&gt; &lt;hosts.json&gt; &lt;outdir&gt;
+ *        [--replicate name,...]
+ *
+ * writes &lt;outdir&gt;/secrets-&lt;shard&gt;.json for each shard.
+ */
+public class SecretsSplitter {
+
+    public static void main(String[] args) {
+        if ((args.length != 3 && args.length != 5) || (args.length == 5 && !args[3].equals("--replicate"))) {
+            System.err.println("usage: SecretsSplitter <secrets.json> <hosts.json> <outdir> [--replicate name,...]");
+            System.exit(1);
+        }
+        try {
+            Map<String, String> secrets = PrincipalStoreTool.readSecrets(new File(args[0]));
+            JSONObject hostsJson = JsonIO.readObject(new File(args[1]));
+            JSONArray hosts = hostsJson == null ? null : hostsJson.getArray("hosts");
+            if (hosts == null) {
+                throw new IOException("No 'hosts' array found in " + args[1]);
+            }
+
+            Set<String> shards = new LinkedHashSet<>();
+            Set<String> replicated = new HashSet<>();
+            replicated.add(TgsHandler.TGS_SERVICE);
+            for (int i = 0; i < hosts.size(); i++) {
+                JSONObject host = hosts.getObject(i);
+                if (host.containsKey("shard")) {
+                    shards.add(host.getString("shard"));
+                } else {
+                    replicated.add(host.getString("host-name"));
+                }
+            }
+            if (args.length == 5) {
+                for (String name : args[4].split(",")) {
+                    replicated.add(name.trim());
+                }
+            }
+            if (shards.isEmpty()) {
+                throw new IOException("No KDC shards in " + args[1]);
+            }
+
+            Map<String, Map<String, String>> split = split(secrets, shards, replicated);
+            File outDir = new File(args[2]);
+            if (!outDir.isDirectory() && !outDir.mkdirs()) {
+                throw new IOException("Cannot create " + outDir);
+            }
+            for (Map.Entry<String, Map<String, String>> e : split.entrySet()) {
+                File out = new File(outDir, "secrets-" + e.getKey() + ".json");
+                writeSecrets(out, e.getValue());
+                System.out.println("Wrote " + e.getValue().size() + " principals to " + out);
+            }
+        } catch (IOException e) {
+            System.err.println("Split failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Assigns every principal to its shard.
+     * @param secrets the secrets by principal name.
+     * @param shards the shard ids.
+     * @param replicated principals copied to every shard.
+     * @return the secrets of each shard, by shard id.
+     */
+    static Map<String, Map<String, String>> split(Map<String, String> secrets, Set<String> shards,
+            Set<String> replicated) {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>();
+        Map<String, Map<String, String>> split = new TreeMap<>();
+        for (String shard : shards) {
+            ring.add(shard, shard);
+            split.put(shard, new TreeMap<>());
+        }
+        for (Map.Entry<String, String> e : secrets.entrySet()) {
+            if (replicated.contains(e.getKey())) {
+                for (Map<String, String> shard : split.values()) {
+                    shard.put(e.getKey(), e.getValue());
+                }
+            } else {
+                split.get(ring.get(e.getKey())).put(e.getKey(), e.getValue());
+            }
+        }
+        return split;
+    }
+
+    private static void writeSecrets(File out, Map<String, String> secrets) throws IOException {
+        JSONArray array = new JSONArray();
+        for (Map.Entry<String, String> e : secrets.entrySet()) {
+            JSONObject entry = new JSONObject();
+            entry.put("user", e.getKey());
+            entry.put("secret", e.getValue());
+            array.add(entry);
+        }
+        JSONObject root = new JSONObject();
+        root.put("secrets", array);
+
+        // Plaintext secrets: owner-only, and moved into place whole so a
+        // KDC watching the file never reads it half written
+        File dir = out.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(out.getName(), ".tmp", dir);
+        try {
+            try {
+                Files.setPosixFilePermissions(tmp.toPath(), PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system.
+            }
+            Files.writeString(tmp.toPath(), root.getFormattedJSON() + System.lineSeparator());
+            Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+}
@@ -4,6 +4,10 @@ import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.types.JSONType;
 import merrimackutil.json.types.JSONObject;
 import java.io.InvalidObjectException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+import common.CryptoPrimitives;
 
 public class RFC1994Response implements JSONSerializable {
     private String type = "RFC1994 Response";
@@ -30,4 +34,19 @@ public class RFC1994Response implements JSONSerializable {
     }
 
     public String getHash() { return hash; }
+
+    /**
+     * Computes the CHAP response hash, SHA-256(secret || challenge), shared
+     * by the client and the KDC so both sides hash the exact same bytes.
+     *
+     * @param secret The shared secret of the principal.
+     * @param challenge The raw challenge bytes sent by the KDC.
+     * @return The base64 encoded hash.
+     * @throws NoSuchAlgorithmException If SHA-256 is unavailable.
+     */
+    public static String computeHash(String secret, byte[] challenge) throws NoSuchAlgorithmException {
+        byte[] hashBytes = CryptoPrimitives.sha256()
+                .digest((secret + new String(challenge)).getBytes());
+        return Base64.getEncoder().encodeToString(hashBytes);
+    }
 }
\ No newline at end of file
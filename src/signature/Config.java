@@ -6,6 +6,7 @@ import java.security.KeyFactory;
 import java.security.interfaces.RSAPrivateKey;
 import java.util.Base64;
 
+import common.ReplayCaches;
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.types.JSONObject;
 import merrimackutil.json.types.JSONType;
@@ -15,7 +16,13 @@ public class Config implements JSONSerializable {
     public boolean debug;
     public String serviceName;
     public String serviceSecret;
+    public String ioMode = "pool";
+    public int adminPort = 0;
     public String signingKey; // Base64 encoded signing key
+    public String replayCache = ReplayCaches.EXACT;
+    public int replayWindow = ReplayCaches.DEFAULT_WINDOW_SECONDS;
+    public long replayCacheCapacity = ReplayCaches.DEFAULT_CAPACITY;
+    public double replayCacheFpRate = ReplayCaches.DEFAULT_FALSE_POSITIVE_RATE;
 
     /**
      * Deserializes the configuration from the provided JSONType.
@@ -36,6 +43,24 @@ public class Config implements JSONSerializable {
         this.debug = jsonObject.getBoolean("debug");
         this.serviceName = jsonObject.getString("service-name");
         this.serviceSecret = jsonObject.getString("service-secret");
+        if (jsonObject.containsKey("io-mode")) {
+            this.ioMode = jsonObject.getString("io-mode");
+        }
+        if (jsonObject.containsKey("admin-port")) {
+            this.adminPort = jsonObject.getInt("admin-port");
+        }
+        if (jsonObject.containsKey("replay-cache")) {
+            this.replayCache = jsonObject.getString("replay-cache");
+        }
+        if (jsonObject.containsKey("replay-window")) {
+            this.replayWindow = jsonObject.getInt("replay-window");
+        }
+        if (jsonObject.containsKey("replay-cache-capacity")) {
+            this.replayCacheCapacity = jsonObject.getLong("replay-cache-capacity");
+        }
+        if (jsonObject.containsKey("replay-cache-fp-rate")) {
+            this.replayCacheFpRate = jsonObject.getDouble("replay-cache-fp-rate");
+        }
         
         // Deserialize the signing key
         if (jsonObject.containsKey("signing-key")) {
@@ -57,6 +82,14 @@ public class Config implements JSONSerializable {
         jsonObject.put("debug", this.debug);
         jsonObject.put("service-name", this.serviceName);
         jsonObject.put("service-secret", this.serviceSecret);
+        jsonObject.put("io-mode", this.ioMode);
+        if (this.adminPort > 0) {
+            jsonObject.put("admin-port", this.adminPort);
+        }
+        jsonObject.put("replay-cache", this.replayCache);
+        jsonObject.put("replay-window", this.replayWindow);
+        jsonObject.put("replay-cache-capacity", this.replayCacheCapacity);
+        jsonObject.put("replay-cache-fp-rate", this.replayCacheFpRate);
         jsonObject.put("signing-key", this.signingKey);  // Add signing key to JSON output
         return jsonObject;
     }
@@ -13,14 +13,19 @@ import java.util.concurrent.Executors;
 
 import merrimackutil.json.JsonIO;
 import merrimackutil.json.types.JSONObject;
+import common.AdminServer;
 import common.Channel;
+import common.IoModes;
+import common.Log;
+import common.NioServer;
+import common.ReplayCache;
 import common.SigningServiceHandler;
-import merrimackutil.util.NonceCache;
+import common.ReplayCaches;
 
 public class SigningService {
 
     private static final String DEFAULT_CONFIG_FILE = "src/signature/config.json";
-    private static NonceCache nonceCache; // NonceCache instance to prevent replay attacks
+    private static ReplayCache nonceCache; // Replay cache shared by all connections
     private static Config config; // Config object to store configuration details
     private static PrivateKey signingKey; // RSA Private Key for signing
 
@@ -75,17 +80,23 @@ public class SigningService {
             return;
         }
 
-        nonceCache = new NonceCache(16, 60000);
+        nonceCache = ReplayCaches.create(config.replayCache, 16, config.replayWindow, config.replayCacheCapacity,
+                config.replayCacheFpRate);
+        AdminServer.startIfConfigured(config.adminPort);
+        if (IoModes.NIO.equals(config.ioMode)) {
+            startNioServer();
+            return;
+        }
 
         // ✅ Start the server immediately
         try (ServerSocket server = new ServerSocket(config.port)) {
             System.out.println("SigningService started on port " + config.port);
-            ExecutorService pool = Executors.newFixedThreadPool(10);
+            ExecutorService pool = IoModes.newConnectionExecutor(config.ioMode);
 
             while (true) {
                 // Wait for incoming connections
                 Socket clientSocket = server.accept();
-                System.out.println("Connection received.");
+                Log.debug(() -> "Connection received.");
 
                 // Create a new Channel instance for each client connection
                 Channel connChannel = new Channel(clientSocket);
@@ -99,6 +110,21 @@ public class SigningService {
         }
     }
 
+    /**
+     * Serves signing sessions on the selector based transport.
+     */
+    private static void startNioServer() {
+        ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        NioServer server = new NioServer(config.port, NioServer.DEFAULT_LOOP_COUNT,
+                sink -> new SigningServiceHandler(sink, nonceCache, config, signingKey), workers);
+        System.out.println("SigningService started on port " + config.port + " (nio)");
+        try {
+            server.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Loads the configuration from the specified file.
      * 
@@ -125,6 +151,25 @@ public class SigningService {
             config.debug = configJson.getBoolean("debug");
             config.serviceName = configJson.getString("service-name");
             config.serviceSecret = configJson.getString("service-secret");
+            if (configJson.containsKey("io-mode")) {
+                config.ioMode = configJson.getString("io-mode");
+            }
+            if (configJson.containsKey("admin-port")) {
+                config.adminPort = configJson.getInt("admin-port");
+            }
+            if (configJson.containsKey("replay-cache")) {
+                config.replayCache = configJson.getString("replay-cache");
+            }
+            if (configJson.containsKey("replay-window")) {
+                config.replayWindow = configJson.getInt("replay-window");
+            }
+            if (configJson.containsKey("replay-cache-capacity")) {
+                config.replayCacheCapacity = configJson.getLong("replay-cache-capacity");
+            }
+            if (configJson.containsKey("replay-cache-fp-rate")) {
+                config.replayCacheFpRate = configJson.getDouble("replay-cache-fp-rate");
+            }
+            Log.setDebug(config.debug);
             String signingKeyBase64 = configJson.getString("signing-key");
 
             // Decode the base64 encoded signing key